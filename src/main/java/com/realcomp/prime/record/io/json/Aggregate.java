@@ -0,0 +1,121 @@
+package com.realcomp.prime.record.io.json;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * An aggregate function of a field, computed per group by a {@link GroupByAggregator}.
+ * <p/>
+ * Written as <i>function</i>[:<i>field</i>[:<i>name</i>]], e.g. <i>count</i>, <i>sum:amount</i> or
+ * <i>distinct:userId:users</i>. The default name is <i>function</i>_<i>field</i>, or just the function if there
+ * is no field.
+ *
+ * @author krenfro
+ */
+public final class Aggregate{
+
+    public enum Function{
+        /** number of records, or of non-null values if a field is specified */
+        COUNT,
+        SUM,
+        MIN,
+        MAX,
+        /** number of distinct values, by 64-bit hash */
+        DISTINCT
+    }
+
+    private final Function function;
+    private final String field;
+    private final String name;
+
+    public Aggregate(Function function, String field, String name){
+        if (function == null){
+            throw new IllegalArgumentException("function is null");
+        }
+        if (field == null && function != Function.COUNT){
+            throw new IllegalArgumentException(function + " requires a field");
+        }
+        this.function = function;
+        this.field = field;
+        this.name = name != null ? name
+                : field == null ? function.name().toLowerCase() : function.name().toLowerCase() + "_" + field;
+    }
+
+    public Aggregate(Function function, String field){
+        this(function, field, null);
+    }
+
+    /**
+     * @param spec e.g. <i>sum:amount</i>
+     * @return the Aggregate
+     */
+    public static Aggregate parse(String spec){
+        if (spec == null){
+            throw new IllegalArgumentException("spec is null");
+        }
+        String[] parts = spec.trim().split(":");
+        if (parts.length > 3 || parts[0].isEmpty()){
+            throw new IllegalArgumentException("invalid aggregate: " + spec);
+        }
+        Function function;
+        try{
+            function = Function.valueOf(parts[0].trim().toUpperCase());
+        }
+        catch (IllegalArgumentException ex){
+            throw new IllegalArgumentException("unknown aggregate function: " + spec);
+        }
+        return new Aggregate(
+                function,
+                parts.length > 1 ? parts[1].trim() : null,
+                parts.length > 2 ? parts[2].trim() : null);
+    }
+
+    /**
+     * @param specs comma-separated aggregates
+     * @return the Aggregates
+     */
+    public static List<Aggregate> parseList(String specs){
+        List<Aggregate> aggregates = new ArrayList<>();
+        for (String spec : specs.split(",")){
+            if (!spec.trim().isEmpty()){
+                aggregates.add(parse(spec));
+            }
+        }
+        return aggregates;
+    }
+
+    public Function getFunction(){
+        return function;
+    }
+
+    public String getField(){
+        return field;
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if (this == o){
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()){
+            return false;
+        }
+        Aggregate that = (Aggregate) o;
+        return function == that.function && Objects.equals(field, that.field) && name.equals(that.name);
+    }
+
+    @Override
+    public int hashCode(){
+        return Objects.hash(function, field, name);
+    }
+
+    @Override
+    public String toString(){
+        return function.name().toLowerCase() + (field == null ? "" : ":" + field) + ":" + name;
+    }
+}
@@ -0,0 +1,80 @@
+package com.realcomp.prime.record.io.json;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread-safe pool of same-sized direct ByteBuffers.
+ *
+ * @author krenfro
+ */
+public class ByteBufferPool{
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_RETAINED = 16;
+
+    private final int bufferSize;
+    private final int maxRetained;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers;
+    private final AtomicInteger retained;
+
+    public ByteBufferPool(){
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_RETAINED);
+    }
+
+    /**
+     * @param bufferSize size, in bytes, of each buffer
+     * @param maxRetained max number of released buffers kept for reuse
+     */
+    public ByteBufferPool(int bufferSize, int maxRetained){
+        if (bufferSize < 1){
+            throw new IllegalArgumentException("bufferSize < 1");
+        }
+        if (maxRetained < 0){
+            throw new IllegalArgumentException("maxRetained < 0");
+        }
+        this.bufferSize = bufferSize;
+        this.maxRetained = maxRetained;
+        buffers = new ConcurrentLinkedQueue<>();
+        retained = new AtomicInteger();
+    }
+
+    /**
+     * @return a cleared buffer, reused if one is available.
+     */
+    public ByteBuffer acquire(){
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null){
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        else{
+            retained.decrementAndGet();
+            buffer.clear();
+        }
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer){
+        if (buffer == null || buffer.capacity() != bufferSize || !buffer.isDirect()){
+            throw new IllegalArgumentException("buffer does not belong to this pool");
+        }
+        if (retained.incrementAndGet() <= maxRetained){
+            buffers.offer(buffer);
+        }
+        else{
+            retained.decrementAndGet();
+        }
+    }
+
+    public int getBufferSize(){
+        return bufferSize;
+    }
+
+    /**
+     * @return number of buffers currently available for reuse
+     */
+    public int getRetained(){
+        return retained.get();
+    }
+}
@@ -0,0 +1,237 @@
+package com.realcomp.prime.record.io.json;
+
+import com.realcomp.prime.conversion.ConversionException;
+import com.realcomp.prime.record.Record;
+import com.realcomp.prime.record.io.IOContext;
+import com.realcomp.prime.record.io.IOContextBuilder;
+import com.realcomp.prime.schema.SchemaException;
+import com.realcomp.prime.validation.ValidationException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A JsonReader for a file that keeps the Records it reads in a {@link JsonRecordCache}. When the same file is read
+ * again, unchanged and with the same schema and attributes, the Records come from the cache without parsing.
+ * <p/>
+ * Cached Records are stored after the schema's field operations have run, and are not transformed again.
+ * The entry is added to the cache only when the whole file has been read with read(). skip() and count() work on
+ * the cache, but when parsing they discard the entry, as do readBatch() and readTyped(); those two are not
+ * supported when reading from the cache. If the entry cannot be written (the disk is full, or a Record is too
+ * large to cache), it is discarded with a warning and reading continues.
+ * <p/>
+ * The file is opened by the reader; the IOContext need not specify an InputStream.
+ *
+ * @author krenfro
+ */
+public class CachedJsonReader extends JsonReader{
+
+    private static final Logger logger = Logger.getLogger(CachedJsonReader.class.getName());
+
+    private final JsonRecordCache cache;
+    private final File file;
+    private final RecordCodec codec = new RecordCodec();
+    private ByteBuffer[] segments;
+    private int segment;
+    private boolean cached;
+    private JsonRecordCache.EntryWriter entryWriter;
+
+    /**
+     * @param cache the cache
+     * @param file the file to read
+     */
+    public CachedJsonReader(JsonRecordCache cache, File file){
+        super();
+        if (cache == null){
+            throw new IllegalArgumentException("cache is null");
+        }
+        if (file == null){
+            throw new IllegalArgumentException("file is null");
+        }
+        this.cache = cache;
+        this.file = file;
+    }
+
+    @Override
+    public void open(IOContext context) throws IOException, SchemaException{
+        String key = cache.key(file, context.getSchema(), context.getAttributes());
+        JsonRecordCache.Entry entry = cache.get(key);
+        if (entry != null){
+            //keep the context for the schema's operations, but do not open the file
+            this.context = context;
+            this.schema = context.getSchema();
+            count = 0;
+            segments = entry.getSegments();
+            segment = 0;
+            cached = true;
+            return;
+        }
+        segments = null;
+        cached = false;
+        if (context.getIn() == null){
+            context = new IOContextBuilder(context).in(new FileInputStream(file)).build();
+        }
+        super.open(context);
+        try{
+            entryWriter = cache.write(key);
+        }
+        catch (IOException ex){
+            logger.log(Level.WARNING, "Unable to cache " + file, ex);
+            entryWriter = null;
+        }
+    }
+
+    @Override
+    public Record read() throws IOException, ValidationException, ConversionException, SchemaException{
+        if (segments == null){
+            Record record = super.read();
+            if (entryWriter != null){
+                try{
+                    if (record == null){
+                        entryWriter.commit();
+                        entryWriter = null;
+                    }
+                    else{
+                        entryWriter.write(record.asSimpleMap());
+                    }
+                }
+                catch (IOException ex){
+                    //a cache failure does not fail the read; the entry is discarded
+                    logger.log(Level.WARNING, "Unable to cache " + file, ex);
+                    entryWriter.close();
+                    entryWriter = null;
+                }
+            }
+            return record;
+        }
+
+        if (!beforeFirstOperationsRun){
+            executeBeforeFirstOperations();
+            beforeFirstOperationsRun = true;
+        }
+        while (segment < segments.length){
+            ByteBuffer buffer = segments[segment];
+            if (buffer.remaining() >= 4){
+                int length = buffer.getInt();
+                if (length >= 0){
+                    int end = buffer.position() + length;
+                    Record record = new Record(codec.decode(buffer));
+                    if (buffer.position() != end){
+                        throw new IOException("Corrupt record cache entry for " + file);
+                    }
+                    count++;
+                    return record;
+                }
+            }
+            segment++;
+        }
+        executeAfterLastOperations();
+        return null;
+    }
+
+    @Override
+    public long skip(long n) throws IOException{
+        if (segments == null){
+            discardEntry();
+            return super.skip(n);
+        }
+        if (n < 0){
+            throw new IllegalArgumentException("n < 0");
+        }
+        long skipped = 0;
+        while (skipped < n && segment < segments.length){
+            ByteBuffer buffer = segments[segment];
+            if (buffer.remaining() >= 4){
+                int length = buffer.getInt();
+                if (length >= 0){
+                    if (length > buffer.remaining()){
+                        throw new IOException("Corrupt record cache entry for " + file);
+                    }
+                    buffer.position(buffer.position() + length);
+                    skipped++;
+                    continue;
+                }
+            }
+            segment++;
+        }
+        return skipped;
+    }
+
+    @Override
+    public long count() throws IOException{
+        return skip(Long.MAX_VALUE);
+    }
+
+    /**
+     * @throws IllegalStateException when reading from the cache
+     */
+    @Override
+    public int readBatch(ColumnBatch batch) throws IOException{
+        if (segments != null){
+            throw new IllegalStateException("readBatch is not supported when reading from the cache");
+        }
+        discardEntry();
+        return super.readBatch(batch);
+    }
+
+    /**
+     * @throws IllegalStateException when reading from the cache
+     */
+    @Override
+    public boolean readTyped(TypedRecord record) throws IOException{
+        if (segments != null){
+            throw new IllegalStateException("readTyped is not supported when reading from the cache");
+        }
+        discardEntry();
+        return super.readTyped(record);
+    }
+
+    /**
+     * Records that do not pass through read() would be missing from the entry; do not cache it.
+     */
+    private void discardEntry(){
+        if (entryWriter != null){
+            entryWriter.close();
+            entryWriter = null;
+        }
+    }
+
+    /**
+     * @return true if the Records are (or were) read from the cache
+     */
+    public boolean isCached(){
+        return cached;
+    }
+
+    @Override
+    public void close(boolean closeIOContext) throws IOException{
+        //incomplete; do not cache
+        discardEntry();
+        if (segments != null){
+            segments = null;
+            if (closeIOContext && context != null){
+                try{
+                    context.close();
+                }
+                catch (IOException ex){
+                    logger.log(Level.WARNING, null, ex);
+                }
+            }
+        }
+        else{
+            super.close(closeIOContext);
+        }
+    }
+
+    public File getFile(){
+        return file;
+    }
+
+    public JsonRecordCache getCache(){
+        return cache;
+    }
+}
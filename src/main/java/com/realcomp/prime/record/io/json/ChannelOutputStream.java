@@ -0,0 +1,188 @@
+package com.realcomp.prime.record.io.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An OutputStream that fills pooled direct ByteBuffers and hands them to a WritableByteChannel,
+ * several at a time with a gathering write when the channel supports it.
+ * <p/>
+ * The channel must be in blocking mode. If the channel is a FileChannel and a sync interval is specified,
+ * the channel is forced to disk each time at least that many bytes have been written since the last sync.
+ * <p/>
+ * Closing the stream flushes it, but does not close the channel.
+ *
+ * @author krenfro
+ */
+public class ChannelOutputStream extends OutputStream{
+
+    private final WritableByteChannel channel;
+    private final ByteBufferPool pool;
+    private final ByteBuffer[] pending;
+    private final long syncInterval;
+    private int pendingCount;
+    private ByteBuffer current;
+    private long unsynced;
+    private long written;
+    private boolean closed;
+
+    /**
+     * @param channel destination
+     * @param pool source of buffers
+     * @param gather max number of full buffers to collect before writing them to the channel
+     * @param syncInterval bytes between calls to {@link FileChannel#force(boolean)}; 0 to never sync
+     */
+    public ChannelOutputStream(WritableByteChannel channel, ByteBufferPool pool, int gather, long syncInterval){
+        if (channel == null){
+            throw new IllegalArgumentException("channel is null");
+        }
+        if (pool == null){
+            throw new IllegalArgumentException("pool is null");
+        }
+        if (gather < 1){
+            throw new IllegalArgumentException("gather < 1");
+        }
+        if (syncInterval < 0){
+            throw new IllegalArgumentException("syncInterval < 0");
+        }
+        this.channel = channel;
+        this.pool = pool;
+        this.syncInterval = syncInterval;
+        pending = new ByteBuffer[gather];
+    }
+
+    @Override
+    public void write(int b) throws IOException{
+        ensureOpen();
+        if (current == null){
+            current = pool.acquire();
+        }
+        current.put((byte) b);
+        if (!current.hasRemaining()){
+            enqueue();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException{
+        ensureOpen();
+        if (off < 0 || len < 0 || off + len > b.length){
+            throw new IndexOutOfBoundsException();
+        }
+        while (len > 0){
+            if (current == null){
+                current = pool.acquire();
+            }
+            int chunk = Math.min(len, current.remaining());
+            current.put(b, off, chunk);
+            off += chunk;
+            len -= chunk;
+            if (!current.hasRemaining()){
+                enqueue();
+            }
+        }
+    }
+
+    private void enqueue() throws IOException{
+        current.flip();
+        pending[pendingCount++] = current;
+        current = null;
+        if (pendingCount == pending.length){
+            drain();
+        }
+    }
+
+    private void drain() throws IOException{
+        if (pendingCount == 0){
+            return;
+        }
+        long bytes = 0;
+        for (int i = 0; i < pendingCount; i++){
+            bytes += pending[i].remaining();
+        }
+
+        if (channel instanceof GatheringByteChannel){
+            GatheringByteChannel gathering = (GatheringByteChannel) channel;
+            long remaining = bytes;
+            while (remaining > 0){
+                remaining -= gathering.write(pending, 0, pendingCount);
+            }
+        }
+        else{
+            for (int i = 0; i < pendingCount; i++){
+                while (pending[i].hasRemaining()){
+                    channel.write(pending[i]);
+                }
+            }
+        }
+
+        for (int i = 0; i < pendingCount; i++){
+            pool.release(pending[i]);
+            pending[i] = null;
+        }
+        pendingCount = 0;
+        written += bytes;
+        unsynced += bytes;
+        if (syncInterval > 0 && unsynced >= syncInterval){
+            sync();
+        }
+    }
+
+    /**
+     * Write any buffered bytes to the channel. Does not force the channel to disk.
+     */
+    @Override
+    public void flush() throws IOException{
+        ensureOpen();
+        if (current != null && current.position() > 0){
+            enqueue();
+        }
+        drain();
+    }
+
+    /**
+     * Force written bytes to disk, if the channel is a FileChannel.
+     */
+    public void sync() throws IOException{
+        if (channel instanceof FileChannel){
+            ((FileChannel) channel).force(false);
+        }
+        unsynced = 0;
+    }
+
+    /**
+     * @return number of bytes written to the channel
+     */
+    public long getWritten(){
+        return written;
+    }
+
+    private void ensureOpen() throws IOException{
+        if (closed){
+            throw new IOException("stream closed");
+        }
+    }
+
+    @Override
+    public void close() throws IOException{
+        if (!closed){
+            try{
+                flush();
+                if (syncInterval > 0 && unsynced > 0){
+                    sync();
+                }
+            }
+            finally{
+                closed = true;
+                if (current != null){
+                    pool.release(current);
+                    current = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.realcomp.prime.record.io.json;
+
+/**
+ * Hashing and comparison of character-buffer ranges, shared by the allocation-free String lookups
+ * ({@link StringCache}, {@link StringDictionary}).
+ *
+ * @author krenfro
+ */
+final class CharBuffers{
+
+    private CharBuffers(){
+    }
+
+    static int hash(char[] buffer, int offset, int length){
+        int h = 0;
+        for (int i = offset; i < offset + length; i++){
+            h = 31 * h + buffer[i];
+        }
+        //spread the high bits down so that similar values do not collide in the low bits
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    static boolean matches(String value, char[] buffer, int offset, int length){
+        if (value.length() != length){
+            return false;
+        }
+        for (int i = 0; i < length; i++){
+            if (value.charAt(i) != buffer[offset + i]){
+                return false;
+            }
+        }
+        return true;
+    }
+}
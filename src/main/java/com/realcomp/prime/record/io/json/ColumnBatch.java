@@ -0,0 +1,135 @@
+package com.realcomp.prime.record.io.json;
+
+import com.realcomp.prime.DataType;
+import com.realcomp.prime.schema.Field;
+import com.realcomp.prime.schema.FieldList;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A fixed-size batch of records stored column-wise in primitive {@link ColumnVector}s.
+ * Filled by {@link JsonReader#readBatch(ColumnBatch)} and reused from batch to batch.
+ *
+ * @author krenfro
+ */
+public class ColumnBatch{
+
+    private final ColumnVector[] columns;
+    private final Map<String, Integer> index;
+    private final int capacity;
+    private int size;
+
+    /**
+     * Build a batch with one column per Field, typed by the Field's DataType.
+     *
+     * @param fields the layout
+     * @param capacity max number of rows per batch
+     */
+    public ColumnBatch(FieldList fields, int capacity){
+        if (fields == null){
+            throw new IllegalArgumentException("fields is null");
+        }
+        if (capacity < 1){
+            throw new IllegalArgumentException("capacity < 1");
+        }
+        this.capacity = capacity;
+        index = new HashMap<>();
+        List<Field> list = new ArrayList<>();
+        for (Field field : fields){
+            list.add(field);
+        }
+        columns = new ColumnVector[list.size()];
+        for (int i = 0; i < columns.length; i++){
+            add(i, list.get(i).getName(), list.get(i).getType());
+        }
+    }
+
+    public ColumnBatch(String[] names, DataType[] types, int capacity){
+        if (names == null || types == null || names.length != types.length){
+            throw new IllegalArgumentException("names and types must be the same length");
+        }
+        if (capacity < 1){
+            throw new IllegalArgumentException("capacity < 1");
+        }
+        this.capacity = capacity;
+        index = new HashMap<>();
+        columns = new ColumnVector[names.length];
+        for (int i = 0; i < names.length; i++){
+            add(i, names[i], types[i]);
+        }
+    }
+
+    private void add(int position, String name, DataType type){
+        if (index.containsKey(name)){
+            throw new IllegalArgumentException("duplicate column " + name);
+        }
+        columns[position] = new ColumnVector(name, type, capacity);
+        index.put(name, position);
+    }
+
+    /**
+     * @return position of the named column, or -1
+     */
+    public int indexOf(String name){
+        Integer position = index.get(name);
+        return position == null ? -1 : position;
+    }
+
+    public ColumnVector getColumn(int position){
+        return columns[position];
+    }
+
+    public ColumnVector getColumn(String name){
+        int position = indexOf(name);
+        return position < 0 ? null : columns[position];
+    }
+
+    public int getColumnCount(){
+        return columns.length;
+    }
+
+    public int getCapacity(){
+        return capacity;
+    }
+
+    /**
+     * Set the dictionary limit of every STRING column. See {@link ColumnVector#setMaxDictionarySize(int)}.
+     */
+    public void setMaxDictionarySize(int maxDictionarySize){
+        for (ColumnVector column : columns){
+            column.setMaxDictionarySize(maxDictionarySize);
+        }
+    }
+
+    /**
+     * @return estimated heap retained by the batch's columns; see {@link RecordSize}
+     */
+    public long getEstimatedBytes(){
+        long bytes = 0;
+        for (ColumnVector column : columns){
+            bytes += column.getEstimatedBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return number of valid rows in this batch
+     */
+    public int getSize(){
+        return size;
+    }
+
+    void setSize(int size){
+        this.size = size;
+    }
+
+    void clear(){
+        size = 0;
+        for (ColumnVector column : columns){
+            column.clear();
+        }
+    }
+}
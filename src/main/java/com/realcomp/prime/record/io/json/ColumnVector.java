@@ -0,0 +1,257 @@
+package com.realcomp.prime.record.io.json;
+
+import com.realcomp.prime.DataType;
+
+import java.util.Arrays;
+
+/**
+ * A single column of a {@link ColumnBatch}, stored in a primitive array chosen by the column's DataType.
+ * <ul>
+ *     <li>INTEGER: int[]</li>
+ *     <li>LONG: long[]</li>
+ *     <li>FLOAT, DOUBLE: double[]</li>
+ *     <li>BOOLEAN: bitset</li>
+ *     <li>STRING: int[] of dictionary codes</li>
+ * </ul>
+ * Nulls, fields missing from a record, and values whose JSON type does not match the column's type are
+ * tracked in a separate bitmap.
+ * <p/>
+ * A STRING column's dictionary is kept across batches, so codes are stable from batch to batch, until it holds
+ * more than <i>maxDictionarySize</i> values; it is then cleared before the next batch is filled. A dictionary
+ * therefore never holds more than maxDictionarySize plus one batch's values.
+ *
+ * @author krenfro
+ */
+public class ColumnVector{
+
+    public static final int DEFAULT_MAX_DICTIONARY_SIZE = 65536;
+
+    private final String name;
+    private final DataType type;
+    private final int capacity;
+    private final long[] nulls;
+
+    private int[] ints;
+    private long[] longs;
+    private double[] doubles;
+    private long[] booleans;
+    private StringDictionary dictionary;
+    private int maxDictionarySize = DEFAULT_MAX_DICTIONARY_SIZE;
+    private long dictionaryResets;
+
+    public ColumnVector(String name, DataType type, int capacity){
+        if (name == null){
+            throw new IllegalArgumentException("name is null");
+        }
+        if (type == null){
+            throw new IllegalArgumentException("type is null");
+        }
+        if (capacity < 1){
+            throw new IllegalArgumentException("capacity < 1");
+        }
+        this.name = name;
+        this.type = type;
+        this.capacity = capacity;
+        nulls = new long[bitsetLength(capacity)];
+        switch (type){
+            case INTEGER:
+                ints = new int[capacity];
+                break;
+            case LONG:
+                longs = new long[capacity];
+                break;
+            case FLOAT:
+            case DOUBLE:
+                doubles = new double[capacity];
+                break;
+            case BOOLEAN:
+                booleans = new long[bitsetLength(capacity)];
+                break;
+            case STRING:
+                ints = new int[capacity];
+                dictionary = new StringDictionary();
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported column type " + type + " for field " + name);
+        }
+    }
+
+    private static int bitsetLength(int capacity){
+        return (capacity + 63) >>> 6;
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    public DataType getType(){
+        return type;
+    }
+
+    public int getCapacity(){
+        return capacity;
+    }
+
+    public boolean isNull(int row){
+        return (nulls[row >>> 6] & (1L << row)) != 0;
+    }
+
+    public void setNull(int row){
+        nulls[row >>> 6] |= 1L << row;
+    }
+
+    void setNotNull(int row){
+        nulls[row >>> 6] &= ~(1L << row);
+    }
+
+    public int getInt(int row){
+        return ints[row];
+    }
+
+    public long getLong(int row){
+        return longs[row];
+    }
+
+    public double getDouble(int row){
+        return doubles[row];
+    }
+
+    public boolean getBoolean(int row){
+        return (booleans[row >>> 6] & (1L << row)) != 0;
+    }
+
+    /**
+     * @return the dictionary code of a STRING column
+     */
+    public int getCode(int row){
+        return ints[row];
+    }
+
+    /**
+     * @return the decoded value of a STRING column, or null
+     */
+    public String getString(int row){
+        return isNull(row) ? null : dictionary.decode(ints[row]);
+    }
+
+    void setInt(int row, int value){
+        ints[row] = value;
+        setNotNull(row);
+    }
+
+    void setLong(int row, long value){
+        longs[row] = value;
+        setNotNull(row);
+    }
+
+    void setDouble(int row, double value){
+        doubles[row] = value;
+        setNotNull(row);
+    }
+
+    void setBoolean(int row, boolean value){
+        if (value){
+            booleans[row >>> 6] |= 1L << row;
+        }
+        else{
+            booleans[row >>> 6] &= ~(1L << row);
+        }
+        setNotNull(row);
+    }
+
+    void setString(int row, char[] buffer, int offset, int length){
+        ints[row] = dictionary.encode(buffer, offset, length);
+        setNotNull(row);
+    }
+
+    /**
+     * The values of an INTEGER column, or the dictionary codes of a STRING column.
+     * Only the first {@link ColumnBatch#getSize()} entries are valid.
+     */
+    public int[] getInts(){
+        return ints;
+    }
+
+    public long[] getLongs(){
+        return longs;
+    }
+
+    public double[] getDoubles(){
+        return doubles;
+    }
+
+    /**
+     * @return the BOOLEAN column's values as a bitset, one bit per row
+     */
+    public long[] getBooleans(){
+        return booleans;
+    }
+
+    /**
+     * @return the null bitmap, one bit per row
+     */
+    public long[] getNulls(){
+        return nulls;
+    }
+
+    /**
+     * @return the STRING column's dictionary. Codes are valid until the dictionary is reset; see
+     *         {@link #getDictionaryResets()}.
+     */
+    public StringDictionary getDictionary(){
+        return dictionary;
+    }
+
+    public int getMaxDictionarySize(){
+        return maxDictionarySize;
+    }
+
+    /**
+     * @param maxDictionarySize number of values above which a STRING column's dictionary is cleared before the
+     *                          next batch
+     */
+    public void setMaxDictionarySize(int maxDictionarySize){
+        if (maxDictionarySize < 1){
+            throw new IllegalArgumentException("maxDictionarySize < 1");
+        }
+        this.maxDictionarySize = maxDictionarySize;
+    }
+
+    /**
+     * @return number of times the dictionary was cleared for exceeding maxDictionarySize
+     */
+    public long getDictionaryResets(){
+        return dictionaryResets;
+    }
+
+    /**
+     * @return estimated heap retained by the column's arrays and dictionary; see {@link RecordSize}
+     */
+    public long getEstimatedBytes(){
+        long bytes = RecordSize.array(nulls.length, 8);
+        if (ints != null){
+            bytes += RecordSize.array(ints.length, 4);
+        }
+        if (longs != null){
+            bytes += RecordSize.array(longs.length, 8);
+        }
+        if (doubles != null){
+            bytes += RecordSize.array(doubles.length, 8);
+        }
+        if (booleans != null){
+            bytes += RecordSize.array(booleans.length, 8);
+        }
+        if (dictionary != null){
+            bytes += dictionary.getEstimatedBytes();
+        }
+        return bytes;
+    }
+
+    void clear(){
+        Arrays.fill(nulls, 0L);
+        if (dictionary != null && dictionary.size() > maxDictionarySize){
+            dictionary.clear();
+            dictionaryResets++;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.realcomp.prime.record.io.json;
+
+import com.realcomp.prime.record.Record;
+import com.realcomp.prime.schema.Field;
+import com.realcomp.prime.schema.FieldList;
+import com.realcomp.prime.schema.Schema;
+import com.realcomp.prime.schema.SchemaException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Chooses the FieldList for a Record from the value of one <i>discriminator</i> field with a hash lookup,
+ * instead of running every classifier of the Schema against the Record.
+ * <p/>
+ * The table is built from the classifiers of the Schema's FieldLists. A classifier that is a literal, or an
+ * alternation of literals (e.g. <code>^(PERSON|PEOPLE)$</code>), maps each literal to its FieldList; when two
+ * FieldLists claim a value the first wins. A value that is not in the table, or a FieldList with any other
+ * kind of classifier, falls back to {@link Schema#classify(Record)}.
+ * <p/>
+ * The top-level field names of each FieldList are its <i>projection</i>; once the discriminator is seen while
+ * parsing, fields outside the projection need not be built.
+ *
+ * @author krenfro
+ */
+class Discriminator{
+
+    private static final Pattern LITERAL = Pattern.compile("[^\\\\^$.|?*+()\\[\\]{}]*");
+
+    private final String field;
+    private final Map<String, FieldList> layouts;
+    private final Map<FieldList, Set<String>> projections;
+
+    Discriminator(String field, Map<String, FieldList> layouts, Map<FieldList, Set<String>> projections){
+        if (field == null || field.isEmpty()){
+            throw new IllegalArgumentException("field is empty");
+        }
+        if (layouts == null){
+            throw new IllegalArgumentException("layouts is null");
+        }
+        this.field = field;
+        this.layouts = layouts;
+        this.projections = projections == null ? Collections.<FieldList, Set<String>>emptyMap() : projections;
+    }
+
+    /**
+     * @param schema the schema
+     * @param field name of the discriminator field
+     * @return a Discriminator for the schema's FieldLists
+     */
+    static Discriminator create(Schema schema, String field){
+        Map<String, FieldList> layouts = new HashMap<>();
+        Map<FieldList, Set<String>> projections = new IdentityHashMap<>();
+        if (schema.getFieldLists() != null){
+            for (FieldList fields : schema.getFieldLists()){
+                if (fields.getClassifier() != null){
+                    for (String value : literals(fields.getClassifier().pattern())){
+                        layouts.putIfAbsent(value, fields);
+                    }
+                }
+                Set<String> projection = new HashSet<>();
+                projection.add(field);
+                for (Field f : fields){
+                    projection.add(topLevel(f.getName()));
+                }
+                projections.put(fields, projection);
+            }
+        }
+        return new Discriminator(field, layouts, projections);
+    }
+
+    /**
+     * @return the literal values matched by a classifier, or an empty list if it is not a literal alternation
+     */
+    static List<String> literals(String classifier){
+        String pattern = classifier;
+        if (pattern.startsWith("^")){
+            pattern = pattern.substring(1);
+        }
+        if (pattern.endsWith("$") && !pattern.endsWith("\\$")){
+            pattern = pattern.substring(0, pattern.length() - 1);
+        }
+        if (pattern.startsWith("(") && pattern.endsWith(")")){
+            pattern = pattern.substring(1, pattern.length() - 1);
+        }
+        List<String> values = new ArrayList<>();
+        for (String value : pattern.split("\\|", -1)){
+            if (value.startsWith("\\Q") && value.endsWith("\\E") && !value.contains("\\E\\")){
+                values.add(value.substring(2, value.length() - 2));
+            }
+            else if (LITERAL.matcher(value).matches()){
+                values.add(value);
+            }
+            else{
+                return Collections.emptyList();
+            }
+        }
+        return values;
+    }
+
+    private static String topLevel(String name){
+        if (name == null){
+            return null;
+        }
+        int end = name.length();
+        int dot = name.indexOf('.');
+        if (dot > 0){
+            end = dot;
+        }
+        int bracket = name.indexOf('[');
+        if (bracket > 0 && bracket < end){
+            end = bracket;
+        }
+        return name.substring(0, end);
+    }
+
+    String getField(){
+        return field;
+    }
+
+    /**
+     * @param value a value of the discriminator field
+     * @return the FieldList for the value, or null if it is not in the table
+     */
+    FieldList get(Object value){
+        return value == null ? null : layouts.get(value.toString());
+    }
+
+    /**
+     * @return the top-level field names needed by the FieldList, or null if unknown
+     */
+    Set<String> getProjection(FieldList fields){
+        return projections.get(fields);
+    }
+
+    /**
+     * @return the FieldList for the record's discriminator value, or the schema's classification if the value is
+     *         not in the table
+     * @throws SchemaException
+     */
+    FieldList classify(Schema schema, Record record) throws SchemaException{
+        FieldList fields = get(record.get(field));
+        return fields == null ? schema.classify(record) : fields;
+    }
+}
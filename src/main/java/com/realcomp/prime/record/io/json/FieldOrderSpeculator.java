@@ -0,0 +1,192 @@
+package com.realcomp.prime.record.io.json;
+
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The key order and value types learned from the top-level fields of a feed's records, for speculative decoding
+ * by {@link JsonTreeBuilder}.
+ * <p/>
+ * The layout is learned from the first record. Each following record is read expecting the same keys in the
+ * same order: the next key is matched against the pre-encoded name with
+ * {@link com.fasterxml.jackson.core.JsonParser#nextFieldName(com.fasterxml.jackson.core.SerializableString)}, and
+ * the value is read by the reader chosen for the learned type. A record that differs is a <i>miss</i>, and the
+ * rest of it is read generically. After <i>relearnThreshold</i> misses in a row the layout is learned again
+ * from the next record.
+ * <p/>
+ * Not thread-safe.
+ *
+ * @author krenfro
+ */
+public class FieldOrderSpeculator{
+
+    public static final int DEFAULT_RELEARN_THRESHOLD = 8;
+
+    static final int STRING = 0;
+    static final int INTEGER = 1;
+    static final int FLOAT = 2;
+    static final int BOOLEAN = 3;
+    static final int OTHER = 4;
+
+    private final int relearnThreshold;
+
+    private SerializedString[] names;
+    private String[] nameStrings;
+    private int[] kinds;
+    private boolean learning = true;
+    private int consecutiveMisses;
+
+    private long hits;
+    private long misses;
+    private long relearns;
+
+    public FieldOrderSpeculator(){
+        this(DEFAULT_RELEARN_THRESHOLD);
+    }
+
+    /**
+     * @param relearnThreshold number of misses in a row after which the layout is learned again
+     */
+    public FieldOrderSpeculator(int relearnThreshold){
+        if (relearnThreshold < 1){
+            throw new IllegalArgumentException("relearnThreshold < 1");
+        }
+        this.relearnThreshold = relearnThreshold;
+    }
+
+    static int kind(JsonToken token){
+        switch (token){
+            case VALUE_STRING:
+                return STRING;
+            case VALUE_NUMBER_INT:
+                return INTEGER;
+            case VALUE_NUMBER_FLOAT:
+                return FLOAT;
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                return BOOLEAN;
+            default:
+                return OTHER;
+        }
+    }
+
+    /**
+     * @return true if the next record should be read generically, and its layout learned
+     */
+    boolean isLearning(){
+        return learning;
+    }
+
+    /**
+     * @param fieldNames top-level keys of a record, in order
+     * @param tokens the value token of each key
+     */
+    void learn(List<String> fieldNames, List<JsonToken> tokens){
+        int size = fieldNames.size();
+        names = new SerializedString[size];
+        nameStrings = new String[size];
+        kinds = new int[size];
+        for (int i = 0; i < size; i++){
+            nameStrings[i] = fieldNames.get(i);
+            names[i] = new SerializedString(nameStrings[i]);
+            kinds[i] = kind(tokens.get(i));
+        }
+        learning = false;
+        consecutiveMisses = 0;
+    }
+
+    void hit(){
+        hits++;
+        consecutiveMisses = 0;
+    }
+
+    void miss(){
+        misses++;
+        if (++consecutiveMisses >= relearnThreshold){
+            learning = true;
+            relearns++;
+        }
+    }
+
+    int getFieldCount(){
+        return names == null ? 0 : names.length;
+    }
+
+    SerializedString getName(int index){
+        return names[index];
+    }
+
+    String getNameString(int index){
+        return nameStrings[index];
+    }
+
+    int getKind(int index){
+        return kinds[index];
+    }
+
+    /**
+     * @return the learned keys, in order
+     */
+    public List<String> getLayout(){
+        if (nameStrings == null){
+            return Collections.emptyList();
+        }
+        List<String> layout = new ArrayList<>(nameStrings.length);
+        Collections.addAll(layout, nameStrings);
+        return layout;
+    }
+
+    /**
+     * Forget the layout; it is learned again from the next record.
+     */
+    public void reset(){
+        names = null;
+        nameStrings = null;
+        kinds = null;
+        learning = true;
+        consecutiveMisses = 0;
+    }
+
+    /**
+     * @return number of records read entirely as expected
+     */
+    public long getHits(){
+        return hits;
+    }
+
+    /**
+     * @return number of records that differed from the layout
+     */
+    public long getMisses(){
+        return misses;
+    }
+
+    /**
+     * @return number of times the layout was learned again after repeated misses
+     */
+    public long getRelearns(){
+        return relearns;
+    }
+
+    /**
+     * @return ratio of hits to speculated records, or 0 if none
+     */
+    public double getHitRate(){
+        long total = hits + misses;
+        return total == 0 ? 0d : (double) hits / total;
+    }
+
+    @Override
+    public String toString(){
+        return "FieldOrderSpeculator{" +
+                "fields=" + getFieldCount() +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                ", relearns=" + relearns +
+                '}';
+    }
+}
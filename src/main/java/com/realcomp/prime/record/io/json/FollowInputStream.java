@@ -0,0 +1,229 @@
+package com.realcomp.prime.record.io.json;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * An InputStream over a file that is still being appended to, like <i>tail -F</i>.
+ * <p/>
+ * At the end of the file a read waits, polling with an interval that grows from <i>minPollMillis</i> to
+ * <i>maxPollMillis</i> while the file is idle, instead of returning end-of-stream. If the file is truncated,
+ * or the path is replaced by a new file (rotation), the stream continues from the start of the new content
+ * and signals the switch by returning end-of-stream once; see {@link #isRotated()}.
+ * Only {@link #close()} ends the stream.
+ * <p/>
+ * {@link JsonReader} recognizes this stream in its IOContext and follows the file, restarting its parser after
+ * each rotation.
+ *
+ * @author krenfro
+ */
+public class FollowInputStream extends InputStream{
+
+    public static final long DEFAULT_MIN_POLL_MILLIS = 10;
+    public static final long DEFAULT_MAX_POLL_MILLIS = 500;
+
+    private final Path path;
+    private final long minPollMillis;
+    private final long maxPollMillis;
+    private final Object lock = new Object();
+
+    private FileChannel channel;
+    private Object fileKey;
+    private long start;
+    private long position;
+    private long pollMillis;
+    private boolean rotated;
+    private volatile boolean closed;
+
+    public FollowInputStream(Path path) throws IOException{
+        this(path, 0, DEFAULT_MIN_POLL_MILLIS, DEFAULT_MAX_POLL_MILLIS);
+    }
+
+    /**
+     * @param path the file to follow
+     * @param offset byte offset at which to start reading, e.g., a previous {@link JsonReader#getFollowOffset()}
+     * @param minPollMillis shortest wait at the end of the file
+     * @param maxPollMillis longest wait at the end of the file
+     */
+    public FollowInputStream(Path path, long offset, long minPollMillis, long maxPollMillis) throws IOException{
+        if (path == null){
+            throw new IllegalArgumentException("path is null");
+        }
+        if (offset < 0){
+            throw new IllegalArgumentException("offset < 0");
+        }
+        if (minPollMillis < 1 || maxPollMillis < minPollMillis){
+            throw new IllegalArgumentException("invalid poll interval");
+        }
+        this.path = path;
+        this.minPollMillis = minPollMillis;
+        this.maxPollMillis = maxPollMillis;
+        pollMillis = minPollMillis;
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        fileKey = fileKey();
+        channel.position(offset);
+        start = offset;
+        position = offset;
+    }
+
+    @Override
+    public int read() throws IOException{
+        byte[] b = new byte[1];
+        int read;
+        do{
+            read = read(b, 0, 1);
+        }while (read == 0);
+        return read < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException{
+        if (off < 0 || len < 0 || off + len > b.length){
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0){
+            return 0;
+        }
+        while (!closed){
+            int read;
+            try{
+                read = channel.read(ByteBuffer.wrap(b, off, len));
+            }
+            catch (ClosedChannelException ex){
+                if (closed){
+                    return -1;
+                }
+                throw ex;
+            }
+            if (read > 0){
+                position += read;
+                pollMillis = minPollMillis;
+                return read;
+            }
+            if (switchFiles()){
+                return -1;
+            }
+            await();
+        }
+        return -1;
+    }
+
+    /**
+     * At the end of the current file, check for truncation or rotation.
+     *
+     * @return true if the stream now reads from the start of new content
+     */
+    private boolean switchFiles() throws IOException{
+        if (channel.size() < position){
+            //truncated in place
+            channel.position(0);
+            markRotated();
+            return true;
+        }
+        Object key = fileKey();
+        if (key != null && fileKey != null && !key.equals(fileKey)){
+            //rotated; the old file is fully read, so switch to the new one
+            FileChannel next;
+            try{
+                next = FileChannel.open(path, StandardOpenOption.READ);
+            }
+            catch (NoSuchFileException ex){
+                return false;
+            }
+            if (channel.size() > position){
+                //appended to before rotation; finish the old file first
+                next.close();
+                return false;
+            }
+            channel.close();
+            channel = next;
+            fileKey = key;
+            markRotated();
+            return true;
+        }
+        return false;
+    }
+
+    private void markRotated(){
+        start = 0;
+        position = 0;
+        rotated = true;
+        pollMillis = minPollMillis;
+    }
+
+    private Object fileKey() throws IOException{
+        try{
+            return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        }
+        catch (NoSuchFileException ex){
+            //mid-rotation
+            return null;
+        }
+    }
+
+    private void await() throws IOException{
+        synchronized (lock){
+            if (closed){
+                return;
+            }
+            try{
+                lock.wait(pollMillis);
+            }
+            catch (InterruptedException ex){
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        pollMillis = Math.min(pollMillis * 2, maxPollMillis);
+    }
+
+    /**
+     * @return true if the file was truncated or rotated since the last call to {@link #clearRotated()}
+     */
+    public boolean isRotated(){
+        return rotated;
+    }
+
+    public void clearRotated(){
+        rotated = false;
+    }
+
+    /**
+     * @return byte offset, in the current file, at which this stream started reading it
+     */
+    public long getStart(){
+        return start;
+    }
+
+    /**
+     * @return byte offset of the next read in the current file
+     */
+    public long getPosition(){
+        return position;
+    }
+
+    public Path getPath(){
+        return path;
+    }
+
+    /**
+     * Stop following. A blocked read returns end-of-stream.
+     */
+    @Override
+    public void close() throws IOException{
+        synchronized (lock){
+            closed = true;
+            lock.notifyAll();
+        }
+        channel.close();
+    }
+}
@@ -0,0 +1,804 @@
+package com.realcomp.prime.record.io.json;
+
+import com.realcomp.prime.conversion.ConversionException;
+import com.realcomp.prime.record.Record;
+import com.realcomp.prime.record.io.RecordReader;
+import com.realcomp.prime.schema.Schema;
+import com.realcomp.prime.schema.SchemaException;
+import com.realcomp.prime.validation.ValidationException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.function.LongConsumer;
+import java.util.stream.Collector;
+
+/**
+ * Computes {@link Aggregate}s of Records grouped by the values of some fields, and writes one Record per group
+ * with {@link JsonWriter}.
+ * <p/>
+ * Groups are found with an open-addressing table, and aggregates are kept in primitive arrays indexed by group,
+ * so adding a Record does not box. Distinct values are counted by 64-bit hash in primitive sets.
+ * <p/>
+ * An aggregator is not thread-safe. To aggregate in parallel, give each thread its own partial from
+ * {@link #newPartial()} and {@link #merge} the partials; {@link #collector()} does this for a parallel Stream.
+ * <p/>
+ * When the estimated heap used by the groups exceeds <i>heapBudget</i>, the groups are written to
+ * {@value #SPILL_PARTITIONS} partition files by key hash and cleared. At the end each partition is merged and
+ * written in turn, so no more than one partition of groups is held at once.
+ * <p/>
+ * Configured from a Schema's format with the <i>groupBy</i> (comma-separated field names), <i>aggregates</i>
+ * (comma-separated, see {@link Aggregate}), <i>aggregationHeapBudget</i> and <i>aggregationSpillDirectory</i>
+ * attributes. Groups are written in no particular order.
+ *
+ * @author krenfro
+ */
+public class GroupByAggregator implements AutoCloseable{
+
+    private static final Logger logger = Logger.getLogger(GroupByAggregator.class.getName());
+
+    public static final int SPILL_PARTITIONS = 16;
+
+    private static final int GROUP_OVERHEAD = 96;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final List<String> groupBy;
+    private final Aggregate[] aggregates;
+    private final long heapBudget;
+    private final File spillDirectory;
+
+    private String[] table;
+    private int[] tableGroups;
+    private int mask;
+
+    private int groups;
+    private String[] keys;
+    private Object[][] groupValues;
+    private long[][] counts;
+    private double[][] values;
+    private boolean[][] fractional;
+    private LongSet[][] distinct;
+    private long estimatedBytes;
+
+    private final List<List<File>> spills = new ArrayList<>();
+    private long spillCount;
+
+    /**
+     * @param groupBy names of the fields to group by
+     * @param aggregates the aggregates to compute for each group
+     * @param heapBudget estimated heap, in bytes, above which groups are spilled to disk; 0 for no limit
+     * @param spillDirectory where to spill; null for the default temporary directory
+     */
+    public GroupByAggregator(List<String> groupBy, List<Aggregate> aggregates, long heapBudget, File spillDirectory){
+        if (groupBy == null){
+            throw new IllegalArgumentException("groupBy is null");
+        }
+        if (aggregates == null || aggregates.isEmpty()){
+            throw new IllegalArgumentException("no aggregates specified");
+        }
+        if (heapBudget < 0){
+            throw new IllegalArgumentException("heapBudget < 0");
+        }
+        this.groupBy = Collections.unmodifiableList(new ArrayList<>(groupBy));
+        this.aggregates = aggregates.toArray(new Aggregate[aggregates.size()]);
+        this.heapBudget = heapBudget;
+        this.spillDirectory = spillDirectory;
+        for (int i = 0; i < SPILL_PARTITIONS; i++){
+            spills.add(new ArrayList<>());
+        }
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param schema a schema with <i>groupBy</i> and <i>aggregates</i> attributes in its format
+     */
+    public GroupByAggregator(Schema schema){
+        this(groupBy(schema), aggregates(schema), heapBudget(schema), spillDirectory(schema));
+    }
+
+    private static String attribute(Schema schema, String name){
+        if (schema == null){
+            throw new IllegalArgumentException("schema is null");
+        }
+        Map<String, String> format = schema.getFormat();
+        return format == null ? null : format.get(name);
+    }
+
+    private static List<String> groupBy(Schema schema){
+        String value = attribute(schema, "groupBy");
+        List<String> names = new ArrayList<>();
+        if (value != null){
+            for (String name : value.split(",")){
+                if (!name.trim().isEmpty()){
+                    names.add(name.trim());
+                }
+            }
+        }
+        return names;
+    }
+
+    private static List<Aggregate> aggregates(Schema schema){
+        String value = attribute(schema, "aggregates");
+        if (value == null){
+            throw new IllegalArgumentException("schema has no aggregates attribute");
+        }
+        return Aggregate.parseList(value);
+    }
+
+    private static long heapBudget(Schema schema){
+        String value = attribute(schema, "aggregationHeapBudget");
+        return value == null ? 0 : Long.parseLong(value);
+    }
+
+    private static File spillDirectory(Schema schema){
+        String value = attribute(schema, "aggregationSpillDirectory");
+        return value == null || value.isEmpty() ? null : new File(value);
+    }
+
+    /**
+     * @return an empty aggregator with the same configuration, to be merged into this one
+     */
+    public GroupByAggregator newPartial(){
+        return new GroupByAggregator(groupBy, Arrays.asList(aggregates), heapBudget, spillDirectory);
+    }
+
+    private void allocate(int capacity){
+        groups = 0;
+        keys = new String[capacity];
+        groupValues = new Object[capacity][];
+        counts = new long[aggregates.length][capacity];
+        values = new double[aggregates.length][capacity];
+        fractional = new boolean[aggregates.length][capacity];
+        distinct = new LongSet[aggregates.length][];
+        for (int a = 0; a < aggregates.length; a++){
+            if (aggregates[a].getFunction() == Aggregate.Function.DISTINCT){
+                distinct[a] = new LongSet[capacity];
+            }
+        }
+        table = new String[capacity * 2];
+        tableGroups = new int[capacity * 2];
+        mask = table.length - 1;
+        estimatedBytes = 0;
+    }
+
+    private void grow(){
+        int capacity = keys.length * 2;
+        keys = Arrays.copyOf(keys, capacity);
+        groupValues = Arrays.copyOf(groupValues, capacity);
+        for (int a = 0; a < aggregates.length; a++){
+            counts[a] = Arrays.copyOf(counts[a], capacity);
+            values[a] = Arrays.copyOf(values[a], capacity);
+            fractional[a] = Arrays.copyOf(fractional[a], capacity);
+            if (distinct[a] != null){
+                distinct[a] = Arrays.copyOf(distinct[a], capacity);
+            }
+        }
+        table = new String[capacity * 2];
+        tableGroups = new int[capacity * 2];
+        mask = table.length - 1;
+        for (int g = 0; g < groups; g++){
+            int slot = keys[g].hashCode() & mask;
+            while (table[slot] != null){
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = keys[g];
+            tableGroups[slot] = g;
+        }
+    }
+
+    private int group(String key, Object[] groupValues){
+        int slot = key.hashCode() & mask;
+        String candidate = table[slot];
+        while (candidate != null){
+            if (candidate.equals(key)){
+                return tableGroups[slot];
+            }
+            slot = (slot + 1) & mask;
+            candidate = table[slot];
+        }
+        if (groups == keys.length){
+            grow();
+            return group(key, groupValues);
+        }
+        int g = groups++;
+        table[slot] = key;
+        tableGroups[slot] = g;
+        keys[g] = key;
+        this.groupValues[g] = groupValues;
+        estimatedBytes += GROUP_OVERHEAD + key.length() * 2 + groupValues.length * 16 + aggregates.length * 17;
+        return g;
+    }
+
+    /**
+     * Add a Record to its group.
+     *
+     * @throws IOException if the groups could not be spilled
+     */
+    public void add(Record record) throws IOException{
+        if (record == null){
+            throw new IllegalArgumentException("record is null");
+        }
+        Object[] groupValues = new Object[groupBy.size()];
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < groupValues.length; i++){
+            groupValues[i] = record.get(groupBy.get(i));
+            if (i > 0){
+                key.append('\u0001');
+            }
+            key.append(groupValues[i]);
+        }
+        int g = group(key.toString(), groupValues);
+
+        for (int a = 0; a < aggregates.length; a++){
+            Aggregate aggregate = aggregates[a];
+            Object value = aggregate.getField() == null ? null : record.get(aggregate.getField());
+            switch (aggregate.getFunction()){
+                case COUNT:
+                    if (aggregate.getField() == null || value != null){
+                        counts[a][g]++;
+                    }
+                    break;
+                case DISTINCT:
+                    if (value != null){
+                        addDistinct(a, g, hash(value));
+                    }
+                    break;
+                default:
+                    double number = toDouble(value);
+                    if (!Double.isNaN(number)){
+                        combine(a, g, 1, number, !isIntegral(value));
+                    }
+            }
+        }
+        checkBudget();
+    }
+
+    /**
+     * Add all remaining Records from a reader.
+     *
+     * @return number of Records added
+     */
+    public long addAll(RecordReader reader)
+            throws IOException, ValidationException, ConversionException, SchemaException{
+        long added = 0;
+        Record record = reader.read();
+        while (record != null){
+            add(record);
+            added++;
+            record = reader.read();
+        }
+        return added;
+    }
+
+    private void combine(int a, int g, long count, double value, boolean isFractional){
+        if (count == 0){
+            return;
+        }
+        double[] v = values[a];
+        switch (aggregates[a].getFunction()){
+            case SUM:
+                v[g] += value;
+                break;
+            case MIN:
+                if (counts[a][g] == 0 || value < v[g]){
+                    v[g] = value;
+                }
+                break;
+            case MAX:
+                if (counts[a][g] == 0 || value > v[g]){
+                    v[g] = value;
+                }
+                break;
+            default:
+        }
+        counts[a][g] += count;
+        fractional[a][g] |= isFractional;
+    }
+
+    private void addDistinct(int a, int g, long hash){
+        LongSet set = distinct[a][g];
+        if (set == null){
+            set = new LongSet();
+            distinct[a][g] = set;
+            estimatedBytes += set.capacity() * 8L + 32;
+        }
+        int before = set.capacity();
+        set.add(hash);
+        estimatedBytes += (set.capacity() - before) * 8L;
+    }
+
+    private void checkBudget() throws IOException{
+        if (heapBudget > 0 && estimatedBytes > heapBudget){
+            spill();
+        }
+    }
+
+    /**
+     * Merge a partial into this aggregator. The partial is left empty.
+     *
+     * @param partial an aggregator from {@link #newPartial()}
+     * @throws IOException if the groups could not be spilled
+     */
+    public void merge(GroupByAggregator partial) throws IOException{
+        if (partial == null){
+            throw new IllegalArgumentException("partial is null");
+        }
+        if (partial == this){
+            return;
+        }
+        if (!Arrays.equals(aggregates, partial.aggregates) || !groupBy.equals(partial.groupBy)){
+            throw new IllegalArgumentException("partial has a different configuration");
+        }
+        for (int pg = 0; pg < partial.groups; pg++){
+            int g = group(partial.keys[pg], partial.groupValues[pg]);
+            for (int a = 0; a < aggregates.length; a++){
+                if (aggregates[a].getFunction() == Aggregate.Function.DISTINCT){
+                    LongSet set = partial.distinct[a][pg];
+                    if (set != null){
+                        int aggregate = a;
+                        set.forEach(hash -> addDistinct(aggregate, g, hash));
+                    }
+                }
+                else if (aggregates[a].getFunction() == Aggregate.Function.COUNT){
+                    counts[a][g] += partial.counts[a][pg];
+                }
+                else{
+                    combine(a, g, partial.counts[a][pg], partial.values[a][pg], partial.fractional[a][pg]);
+                }
+            }
+            checkBudget();
+        }
+        for (int p = 0; p < SPILL_PARTITIONS; p++){
+            spills.get(p).addAll(partial.spills.get(p));
+            partial.spills.get(p).clear();
+        }
+        spillCount += partial.spillCount;
+        partial.allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Write the groups to partition files and clear them.
+     */
+    private void spill() throws IOException{
+        if (groups == 0){
+            return;
+        }
+        DataOutputStream[] outs = new DataOutputStream[SPILL_PARTITIONS];
+        try{
+            for (int g = 0; g < groups; g++){
+                int p = partition(keys[g]);
+                if (outs[p] == null){
+                    File file = File.createTempFile("groupby." + p + ".", ".spill", spillDirectory);
+                    spills.get(p).add(file);
+                    outs[p] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+                }
+                writeGroup(outs[p], g);
+            }
+        }
+        finally{
+            for (DataOutputStream out : outs){
+                if (out != null){
+                    out.close();
+                }
+            }
+        }
+        spillCount++;
+        //drop the arrays grown for the spilled groups; they are not counted in estimatedBytes
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private static int partition(String key){
+        int h = key.hashCode() * 0x9E3779B9;
+        return (h >>> 16) % SPILL_PARTITIONS;
+    }
+
+    private void writeGroup(DataOutputStream out, int g) throws IOException{
+        writeString(out, keys[g]);
+        out.writeInt(groupValues[g].length);
+        for (Object value : groupValues[g]){
+            writeValue(out, value);
+        }
+        for (int a = 0; a < aggregates.length; a++){
+            out.writeLong(counts[a][g]);
+            out.writeDouble(values[a][g]);
+            out.writeBoolean(fractional[a][g]);
+            if (distinct[a] != null){
+                LongSet set = distinct[a][g];
+                out.writeInt(set == null ? 0 : set.size());
+                if (set != null){
+                    set.forEach(hash -> {
+                        try{
+                            out.writeLong(hash);
+                        }
+                        catch (IOException ex){
+                            throw new UncheckedIOException(ex);
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    private void readGroups(File file) throws IOException{
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))){
+            while (true){
+                String key;
+                try{
+                    key = readString(in);
+                }
+                catch (EOFException ex){
+                    return;
+                }
+                Object[] groupValues = new Object[in.readInt()];
+                for (int i = 0; i < groupValues.length; i++){
+                    groupValues[i] = readValue(in);
+                }
+                int g = group(key, groupValues);
+                for (int a = 0; a < aggregates.length; a++){
+                    long count = in.readLong();
+                    double value = in.readDouble();
+                    boolean isFractional = in.readBoolean();
+                    if (aggregates[a].getFunction() == Aggregate.Function.COUNT){
+                        counts[a][g] += count;
+                    }
+                    else if (aggregates[a].getFunction() == Aggregate.Function.DISTINCT){
+                        int n = in.readInt();
+                        for (int i = 0; i < n; i++){
+                            addDistinct(a, g, in.readLong());
+                        }
+                    }
+                    else{
+                        combine(a, g, count, value, isFractional);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException{
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException{
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException{
+        if (value == null){
+            out.writeByte(0);
+        }
+        else if (value instanceof Integer){
+            out.writeByte(1);
+            out.writeInt((Integer) value);
+        }
+        else if (value instanceof Long){
+            out.writeByte(2);
+            out.writeLong((Long) value);
+        }
+        else if (value instanceof Float){
+            out.writeByte(3);
+            out.writeFloat((Float) value);
+        }
+        else if (value instanceof Double){
+            out.writeByte(4);
+            out.writeDouble((Double) value);
+        }
+        else if (value instanceof Boolean){
+            out.writeByte(5);
+            out.writeBoolean((Boolean) value);
+        }
+        else{
+            out.writeByte(6);
+            writeString(out, value.toString());
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException{
+        byte tag = in.readByte();
+        switch (tag){
+            case 0:
+                return null;
+            case 1:
+                return in.readInt();
+            case 2:
+                return in.readLong();
+            case 3:
+                return in.readFloat();
+            case 4:
+                return in.readDouble();
+            case 5:
+                return in.readBoolean();
+            case 6:
+                return readString(in);
+            default:
+                throw new IOException("Invalid spill file; unknown tag " + tag);
+        }
+    }
+
+    /**
+     * Write one Record per group: the group-by fields and the aggregates. Spilled groups are merged one partition
+     * at a time. The aggregator is empty afterwards.
+     *
+     * @param writer an open writer
+     * @return number of groups written
+     */
+    public long write(JsonWriter writer) throws IOException, ValidationException, ConversionException, SchemaException{
+        if (writer == null){
+            throw new IllegalArgumentException("writer is null");
+        }
+        if (spillCount == 0){
+            long written = groups;
+            writeGroups(writer);
+            allocate(INITIAL_CAPACITY);
+            return written;
+        }
+
+        spill();
+        long written = 0;
+        for (List<File> files : spills){
+            for (File file : files){
+                readGroups(file);
+                delete(file);
+            }
+            files.clear();
+            written += groups;
+            writeGroups(writer);
+            allocate(INITIAL_CAPACITY);
+        }
+        spillCount = 0;
+        return written;
+    }
+
+    private void writeGroups(JsonWriter writer) throws IOException, ValidationException, ConversionException, SchemaException{
+        for (int g = 0; g < groups; g++){
+            Record record = new Record();
+            for (int i = 0; i < groupBy.size(); i++){
+                if (groupValues[g][i] != null){
+                    record.put(groupBy.get(i), groupValues[g][i]);
+                }
+            }
+            for (int a = 0; a < aggregates.length; a++){
+                Object value = getValue(a, g);
+                if (value != null){
+                    record.put(aggregates[a].getName(), value);
+                }
+            }
+            writer.write(record);
+        }
+    }
+
+    private Object getValue(int a, int g){
+        switch (aggregates[a].getFunction()){
+            case COUNT:
+                return counts[a][g];
+            case DISTINCT:
+                return distinct[a][g] == null ? 0L : (long) distinct[a][g].size();
+            case SUM:
+                return number(values[a][g], fractional[a][g]);
+            default:
+                return counts[a][g] == 0 ? null : number(values[a][g], fractional[a][g]);
+        }
+    }
+
+    private static Object number(double value, boolean isFractional){
+        if (!isFractional && Math.abs(value) < (1L << 53)){
+            return (long) value;
+        }
+        return value;
+    }
+
+    private static double toDouble(Object value){
+        if (value instanceof Number){
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof String){
+            try{
+                return Double.parseDouble((String) value);
+            }
+            catch (NumberFormatException ex){
+                return Double.NaN;
+            }
+        }
+        return Double.NaN;
+    }
+
+    private static boolean isIntegral(Object value){
+        if (value instanceof Integer || value instanceof Long){
+            return true;
+        }
+        if (value instanceof String){
+            String s = (String) value;
+            return s.indexOf('.') < 0 && s.indexOf('e') < 0 && s.indexOf('E') < 0;
+        }
+        return false;
+    }
+
+    private static long hash(Object value){
+        String s = value.toString();
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++){
+            h = (h ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    /**
+     * @return a Collector that aggregates a Stream of Records, with a partial per thread for a parallel Stream.
+     *         IOExceptions are rethrown as UncheckedIOException, after the failed partial's spill files are
+     *         deleted. The result is this aggregator.
+     */
+    public Collector<Record, GroupByAggregator, GroupByAggregator> collector(){
+        return Collector.of(
+                this::newPartial,
+                (partial, record) -> {
+                    try{
+                        partial.add(record);
+                    }
+                    catch (IOException ex){
+                        partial.close();
+                        throw new UncheckedIOException(ex);
+                    }
+                },
+                (left, right) -> {
+                    try{
+                        left.merge(right);
+                        return left;
+                    }
+                    catch (IOException ex){
+                        left.close();
+                        right.close();
+                        throw new UncheckedIOException(ex);
+                    }
+                },
+                partial -> {
+                    try{
+                        merge(partial);
+                        return this;
+                    }
+                    catch (IOException ex){
+                        partial.close();
+                        throw new UncheckedIOException(ex);
+                    }
+                },
+                Collector.Characteristics.UNORDERED);
+    }
+
+    /**
+     * @return number of groups in memory
+     */
+    public int getGroups(){
+        return groups;
+    }
+
+    /**
+     * @return number of times groups were spilled to disk
+     */
+    public long getSpillCount(){
+        return spillCount;
+    }
+
+    public long getEstimatedBytes(){
+        return estimatedBytes;
+    }
+
+    public List<String> getGroupBy(){
+        return groupBy;
+    }
+
+    public List<Aggregate> getAggregates(){
+        return Collections.unmodifiableList(Arrays.asList(aggregates));
+    }
+
+    /**
+     * Discard the groups and delete any spill files.
+     */
+    @Override
+    public void close(){
+        for (List<File> files : spills){
+            for (File file : files){
+                delete(file);
+            }
+            files.clear();
+        }
+        spillCount = 0;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private static void delete(File file){
+        if (!file.delete()){
+            logger.log(Level.WARNING, "Unable to delete {0}", file);
+        }
+    }
+
+    /**
+     * An open-addressing set of longs.
+     */
+    private static final class LongSet{
+
+        private long[] values = new long[8];
+        private int size;
+        private boolean containsZero;
+
+        boolean add(long value){
+            if (value == 0){
+                if (containsZero){
+                    return false;
+                }
+                containsZero = true;
+                size++;
+                return true;
+            }
+            if ((size + 1) * 2 > values.length){
+                rehash(values.length * 2);
+            }
+            int mask = values.length - 1;
+            int slot = (int) (value ^ (value >>> 32)) & mask;
+            while (values[slot] != 0){
+                if (values[slot] == value){
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            values[slot] = value;
+            size++;
+            return true;
+        }
+
+        private void rehash(int capacity){
+            long[] old = values;
+            values = new long[capacity];
+            int mask = capacity - 1;
+            for (long value : old){
+                if (value != 0){
+                    int slot = (int) (value ^ (value >>> 32)) & mask;
+                    while (values[slot] != 0){
+                        slot = (slot + 1) & mask;
+                    }
+                    values[slot] = value;
+                }
+            }
+        }
+
+        void forEach(LongConsumer consumer){
+            if (containsZero){
+                consumer.accept(0);
+            }
+            for (long value : values){
+                if (value != 0){
+                    consumer.accept(value);
+                }
+            }
+        }
+
+        int size(){
+            return size;
+        }
+
+        int capacity(){
+            return values.length;
+        }
+    }
+}
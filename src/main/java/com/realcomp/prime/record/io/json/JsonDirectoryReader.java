@@ -0,0 +1,408 @@
+package com.realcomp.prime.record.io.json;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.realcomp.prime.record.Record;
+import com.realcomp.prime.record.io.IOContext;
+import com.realcomp.prime.record.io.IOContextBuilder;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads all JSON files in a directory that match a glob, parsing several files concurrently on a bounded pool,
+ * and merges their Records into a single stream.
+ * <p/>
+ * In {@link Order#INTERLEAVED} order Records are returned as soon as any file produces them. In
+ * {@link Order#GROUPED} order all Records of a file are returned before those of the next, in file-name order.
+ * <p/>
+ * Each worker reuses one JsonReader for all the files it parses. A file that fails to parse does not stop the
+ * other files: its Records read so far are kept, and the failure is available from {@link #getErrors()}.
+ * <p/>
+ * The queues are bounded by number of Records. To bound them by size, set a {@link MemoryBudget}: workers
+ * acquire the estimated size of each Record before queueing it and wait while the budget is used up. A Record's
+ * size is released on the read() after the one that returned it.
+ * <p/>
+ * Likewise, the {@link SpilledString} files of a Record are deleted on the read() after the one that returned it,
+ * or when the directory reader is closed.
+ *
+ * @author krenfro
+ */
+public class JsonDirectoryReader implements AutoCloseable{
+
+    private static final Logger logger = Logger.getLogger(JsonDirectoryReader.class.getName());
+
+    private static final Object END = new Object();
+
+    public enum Order{
+        INTERLEAVED,
+        GROUPED
+    }
+
+    private final Path directory;
+    private final String glob;
+    private final IOContext template;
+    private final int threads;
+    private final Order order;
+    private final int queueSize;
+    private final JsonFactory jsonFactory;
+
+    private List<Path> files;
+    private List<BlockingQueue<Object>> queues;
+    private Map<Path, Long> counts;
+    private Map<Path, Exception> errors;
+    private AtomicInteger next;
+    private ExecutorService executor;
+    private volatile int current;
+    private int ended;
+    private long count;
+    private MemoryBudget memoryBudget;
+    private long inFlight;
+    private List<SpilledString> inFlightSpilled = Collections.emptyList();
+
+    /**
+     * @param directory the directory to read
+     * @param glob selects the files to read, e.g., "*.json"
+     * @param template provides the schema and attributes for each file's reader; its streams are not used
+     * @param threads max number of files parsed concurrently
+     * @param order order of the merged Records
+     */
+    public JsonDirectoryReader(Path directory, String glob, IOContext template, int threads, Order order){
+        this(directory, glob, template, threads, order, 1024);
+    }
+
+    /**
+     * @param queueSize max number of parsed Records buffered per queue
+     */
+    public JsonDirectoryReader(
+            Path directory, String glob, IOContext template, int threads, Order order, int queueSize){
+        if (directory == null){
+            throw new IllegalArgumentException("directory is null");
+        }
+        if (glob == null){
+            throw new IllegalArgumentException("glob is null");
+        }
+        if (template == null){
+            throw new IllegalArgumentException("template is null");
+        }
+        if (threads < 1){
+            throw new IllegalArgumentException("threads < 1");
+        }
+        if (order == null){
+            throw new IllegalArgumentException("order is null");
+        }
+        if (queueSize < 1){
+            throw new IllegalArgumentException("queueSize < 1");
+        }
+        this.directory = directory;
+        this.glob = glob;
+        this.template = template;
+        this.threads = threads;
+        this.order = order;
+        this.queueSize = queueSize;
+        jsonFactory = new JsonFactory();
+    }
+
+    /**
+     * List the matching files and start parsing them.
+     */
+    public void open() throws IOException{
+        if (executor != null){
+            throw new IllegalStateException("already open");
+        }
+        files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob)){
+            for (Path file : stream){
+                if (Files.isRegularFile(file)){
+                    files.add(file);
+                }
+            }
+        }
+        Collections.sort(files);
+
+        queues = new ArrayList<>();
+        if (order == Order.INTERLEAVED){
+            BlockingQueue<Object> shared = new ArrayBlockingQueue<>(queueSize);
+            for (int i = 0; i < files.size(); i++){
+                queues.add(shared);
+            }
+        }
+        else{
+            for (int i = 0; i < files.size(); i++){
+                queues.add(new ArrayBlockingQueue<>(queueSize));
+            }
+        }
+        counts = new ConcurrentHashMap<>();
+        errors = new ConcurrentHashMap<>();
+        next = new AtomicInteger();
+        current = 0;
+        ended = 0;
+        count = 0;
+
+        int workers = Math.min(threads, Math.max(1, files.size()));
+        executor = Executors.newFixedThreadPool(workers, new ThreadFactory(){
+            private final AtomicInteger id = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable){
+                Thread thread = new Thread(runnable, "prime-json-directory-" + id.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int i = 0; i < workers; i++){
+            executor.execute(new Worker());
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * @param memoryBudget budget for the estimated size of queued Records; null for none. Set before open().
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget){
+        if (executor != null){
+            throw new IllegalStateException("already open");
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    public MemoryBudget getMemoryBudget(){
+        return memoryBudget;
+    }
+
+    /**
+     * @return the next Record from any file, or null when all files have been read.
+     * @throws IOException if interrupted while waiting
+     */
+    public Record read() throws IOException{
+        if (executor == null){
+            throw new IllegalStateException("not open");
+        }
+        releaseInFlight();
+        try{
+            while (ended < files.size()){
+                Object next = queues.get(current).take();
+                if (next == END){
+                    ended++;
+                    if (order == Order.GROUPED){
+                        current++;
+                    }
+                }
+                else if (next instanceof Queued){
+                    Queued queued = (Queued) next;
+                    count++;
+                    inFlight = queued.size;
+                    inFlightSpilled = queued.spilled;
+                    return queued.record;
+                }
+                else{
+                    count++;
+                    return (Record) next;
+                }
+            }
+        }
+        catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        return null;
+    }
+
+    /**
+     * @return number of Records returned by read()
+     */
+    public long getCount(){
+        return count;
+    }
+
+    public List<Path> getFiles(){
+        return files == null ? Collections.<Path>emptyList() : Collections.unmodifiableList(files);
+    }
+
+    /**
+     * @return number of Records parsed from each file, in file order
+     */
+    public Map<Path, Long> getCounts(){
+        Map<Path, Long> result = new LinkedHashMap<>();
+        for (Path file : getFiles()){
+            Long fileCount = counts.get(file);
+            result.put(file, fileCount == null ? 0L : fileCount);
+        }
+        return result;
+    }
+
+    /**
+     * @return the failure of each file that could not be read completely
+     */
+    public Map<Path, Exception> getErrors(){
+        Map<Path, Exception> result = new LinkedHashMap<>();
+        for (Path file : getFiles()){
+            Exception error = errors.get(file);
+            if (error != null){
+                result.put(file, error);
+            }
+        }
+        return result;
+    }
+
+    private void releaseInFlight(){
+        release(inFlight, inFlightSpilled);
+        inFlight = 0;
+        inFlightSpilled = Collections.emptyList();
+    }
+
+    private void release(long size, List<SpilledString> spilled){
+        if (size > 0){
+            memoryBudget.release(size);
+        }
+        for (SpilledString value : spilled){
+            if (!value.delete() && value.getFile().exists()){
+                logger.log(Level.WARNING, "Unable to delete {0}", value.getFile());
+            }
+        }
+    }
+
+    @Override
+    public void close(){
+        if (executor != null){
+            executor.shutdownNow();
+            try{
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            catch (InterruptedException ex){
+                Thread.currentThread().interrupt();
+            }
+            //return the memory and delete the spill files held by unread Records
+            releaseInFlight();
+            for (BlockingQueue<Object> queue : new HashSet<>(queues)){
+                for (Object next : queue){
+                    if (next instanceof Queued){
+                        release(((Queued) next).size, ((Queued) next).spilled);
+                    }
+                }
+                queue.clear();
+            }
+        }
+    }
+
+    /**
+     * A queued Record with the size it holds in the memory budget and the spilled values it owns.
+     */
+    private static final class Queued{
+
+        private final Record record;
+        private final long size;
+        private final List<SpilledString> spilled;
+
+        Queued(Record record, long size, List<SpilledString> spilled){
+            this.record = record;
+            this.size = size;
+            this.spilled = spilled;
+        }
+    }
+
+    private class Worker implements Runnable{
+
+        private void put(BlockingQueue<Object> queue, Record record, int index, List<SpilledString> spilled)
+                throws InterruptedException{
+            if (memoryBudget == null && spilled.isEmpty()){
+                queue.put(record);
+                return;
+            }
+            long size = memoryBudget == null ? 0 : RecordSize.estimate(record);
+            long acquired = 0;
+            try{
+                if (memoryBudget != null){
+                    while (!memoryBudget.acquire(size, 10, TimeUnit.MILLISECONDS)){
+                        if (order == Order.GROUPED && index == current){
+                            /* the budget is held by Records of later files, which cannot be read until this file
+                             * is; go over the budget rather than deadlock */
+                            memoryBudget.force(size);
+                            break;
+                        }
+                    }
+                    acquired = size;
+                }
+                queue.put(new Queued(record, size, spilled));
+            }
+            catch (InterruptedException ex){
+                release(acquired, spilled);
+                throw ex;
+            }
+        }
+
+        @Override
+        public void run(){
+            JsonReader reader = new JsonReader(jsonFactory);
+            boolean opened = false;
+            try{
+                int index;
+                while ((index = next.getAndIncrement()) < files.size()){
+                    Path file = files.get(index);
+                    BlockingQueue<Object> queue = queues.get(index);
+                    long fileCount = 0;
+                    try{
+                        IOContext context = new IOContextBuilder(template)
+                                .in(new BufferedInputStream(Files.newInputStream(file)))
+                                .build();
+                        if (opened){
+                            reader.reset(context);
+                        }
+                        else{
+                            reader.open(context);
+                            opened = true;
+                        }
+                        Record record = reader.read();
+                        while (record != null){
+                            //the spilled values are deleted when the Record is consumed, not by the next read
+                            put(queue, record, index, reader.detachSpilled());
+                            fileCount++;
+                            record = reader.read();
+                        }
+                    }
+                    catch (InterruptedException ex){
+                        throw ex;
+                    }
+                    catch (Exception ex){
+                        logger.log(Level.WARNING, "Unable to read " + file, ex);
+                        errors.put(file, ex);
+                    }
+                    finally{
+                        counts.put(file, fileCount);
+                    }
+                    queue.put(END);
+                }
+            }
+            catch (InterruptedException ex){
+                Thread.currentThread().interrupt();
+            }
+            finally{
+                try{
+                    reader.close(false);
+                }
+                catch (IOException ex){
+                    logger.log(Level.WARNING, null, ex);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,623 @@
+package com.realcomp.prime.record.io.json;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.realcomp.prime.record.Record;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Accepts newline-delimited JSON over TCP and hands the Records to a handler.
+ * <p/>
+ * All connections are served by one thread with a non-blocking Selector, so thousands of connections do not
+ * need thousands of threads. The selector thread only splits each connection's bytes into lines; the lines go to
+ * a bounded queue that is drained by <i>handlerThreads</i> tasks on the specified Executor, which parse them
+ * (each with its own parser state) and pass the Records to the handler. Parsing therefore scales with the
+ * handler threads, and a slow or large record does not hold up reading from other connections. When the queue is
+ * full, the listener stops reading from the connection that produced the line until there is room again; TCP flow
+ * control then slows the sender, without affecting other connections.
+ * <p/>
+ * With a {@link MemoryBudget}, each queued line also holds its size in the budget until a handler has handled it,
+ * and a full budget pauses the connection as a full queue does. The Record parsed from the line is not accounted
+ * separately; it lives only for the handler call.
+ * <p/>
+ * A line that is not a JSON object, or longer than <i>maxRecordBytes</i>, is counted as a parse error and
+ * skipped. Unix domain sockets are not supported, as Java 8 has no channel for them.
+ *
+ * @author krenfro
+ */
+public class JsonIngestListener implements AutoCloseable{
+
+    private static final Logger logger = Logger.getLogger(JsonIngestListener.class.getName());
+
+    public static final int DEFAULT_MAX_RECORD_BYTES = 16 * 1024 * 1024;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long POLL_MILLIS = 100;
+
+    private final SocketAddress address;
+    private final Consumer<Record> handler;
+    private final Executor executor;
+    private final int handlerThreads;
+    private final BlockingQueue<byte[]> queue;
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final List<Connection> paused = new ArrayList<>();
+    private final Queue<Connection> resumable = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pausedCount = new AtomicInteger();
+    private int maxRecordBytes = DEFAULT_MAX_RECORD_BYTES;
+    private MemoryBudget memoryBudget;
+    private int maxDepth = 1000;
+    private int maxObjectSize;
+
+    private ServerSocketChannel server;
+    private Selector selector;
+    private Thread selectorThread;
+    private CountDownLatch handlersDone;
+    private volatile boolean running;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong parseErrors = new AtomicLong();
+    private final AtomicLong pauses = new AtomicLong();
+    private final AtomicLong handled = new AtomicLong();
+
+    /**
+     * @param address where to listen; port 0 for any free port
+     * @param handler receives every Record; called concurrently if there is more than one handler thread
+     * @param executor runs the handler tasks
+     * @param handlerThreads number of handler tasks
+     * @param queueCapacity max number of lines waiting for a handler
+     */
+    public JsonIngestListener(
+            SocketAddress address, Consumer<Record> handler, Executor executor, int handlerThreads, int queueCapacity){
+        if (address == null){
+            throw new IllegalArgumentException("address is null");
+        }
+        if (handler == null){
+            throw new IllegalArgumentException("handler is null");
+        }
+        if (executor == null){
+            throw new IllegalArgumentException("executor is null");
+        }
+        if (handlerThreads < 1){
+            throw new IllegalArgumentException("handlerThreads < 1");
+        }
+        if (queueCapacity < 1){
+            throw new IllegalArgumentException("queueCapacity < 1");
+        }
+        this.address = address;
+        this.handler = handler;
+        this.executor = executor;
+        this.handlerThreads = handlerThreads;
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    /**
+     * Start listening.
+     *
+     * @throws IOException if the address could not be bound
+     */
+    public synchronized void start() throws IOException{
+        if (server != null){
+            throw new IllegalStateException("already started");
+        }
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        try{
+            server.bind(address);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        }
+        catch (IOException ex){
+            server.close();
+            selector.close();
+            throw ex;
+        }
+        running = true;
+        handlersDone = new CountDownLatch(handlerThreads);
+        for (int i = 0; i < handlerThreads; i++){
+            executor.execute(this::handle);
+        }
+        selectorThread = new Thread(this::select, "JsonIngestListener " + getAddress());
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    private void select(){
+        try{
+            while (running){
+                if (paused.isEmpty() && resumable.isEmpty()){
+                    selector.select();
+                }
+                else{
+                    //handlers wake the selector as they take lines; poll too, in case the queue is already empty
+                    selector.select(POLL_MILLIS);
+                }
+                resume();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()){
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()){
+                        continue;
+                    }
+                    if (key.isAcceptable()){
+                        accept();
+                    }
+                    else if (key.isReadable()){
+                        Connection connection = (Connection) key.attachment();
+                        try{
+                            connection.read();
+                        }
+                        catch (IOException ex){
+                            logger.log(Level.FINE, "Closing connection from " + connection.remote, ex);
+                            connection.close();
+                        }
+                    }
+                }
+            }
+        }
+        catch (IOException | ClosedSelectorException ex){
+            if (running){
+                logger.log(Level.SEVERE, "JsonIngestListener stopped", ex);
+            }
+        }
+        finally{
+            for (SelectionKey key : selector.keys()){
+                if (key.attachment() instanceof Connection){
+                    ((Connection) key.attachment()).close();
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException{
+        SocketChannel channel = server.accept();
+        if (channel != null){
+            channel.configureBlocking(false);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.incrementAndGet();
+            accepted.incrementAndGet();
+        }
+    }
+
+    /**
+     * Move the lines of paused connections to the queue, and resume reading from those that are caught up.
+     */
+    private void resume(){
+        Connection connection = resumable.poll();
+        while (connection != null){
+            if (!paused.contains(connection)){
+                paused.add(connection);
+            }
+            connection = resumable.poll();
+        }
+        Iterator<Connection> i = paused.iterator();
+        while (i.hasNext()){
+            connection = i.next();
+            if (connection.offerPending()){
+                i.remove();
+                pausedCount.decrementAndGet();
+                if (connection.eof){
+                    connection.close();
+                }
+                else{
+                    connection.key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+        }
+    }
+
+    private void handle(){
+        JsonTreeBuilder treeBuilder = new JsonTreeBuilder();
+        treeBuilder.setLimits(maxDepth, maxObjectSize, 0);
+        try{
+            while (running || !queue.isEmpty()){
+                byte[] line = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (line != null){
+                    if (pausedCount.get() > 0){
+                        selector.wakeup();
+                    }
+                    try{
+                        Record record = parse(treeBuilder, line);
+                        if (record == null){
+                            continue;
+                        }
+                        records.incrementAndGet();
+                        try{
+                            handler.accept(record);
+                        }
+                        catch (RuntimeException ex){
+                            logger.log(Level.WARNING, "Record handler failed", ex);
+                        }
+                        handled.incrementAndGet();
+                    }
+                    finally{
+                        if (memoryBudget != null){
+                            memoryBudget.release(RecordSize.array(line.length, 1));
+                        }
+                    }
+                }
+            }
+        }
+        catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+        }
+        finally{
+            handlersDone.countDown();
+        }
+    }
+
+    /**
+     * Queue a line, drawing its size from the memory budget.
+     *
+     * @return false if the queue or the budget is full
+     */
+    private boolean offer(byte[] line){
+        if (memoryBudget == null){
+            return queue.offer(line);
+        }
+        long size = RecordSize.array(line.length, 1);
+        if (!memoryBudget.tryAcquire(size)){
+            return false;
+        }
+        if (queue.offer(line)){
+            return true;
+        }
+        memoryBudget.release(size);
+        return false;
+    }
+
+    private Record parse(JsonTreeBuilder treeBuilder, byte[] line){
+        try (JsonParser parser = jsonFactory.createJsonParser(line)){
+            if (parser.nextToken() != JsonToken.START_OBJECT){
+                throw new JsonParseException(parser, "Expected a JSON object");
+            }
+            Map map = treeBuilder.build(parser);
+            if (parser.nextToken() != null){
+                throw new JsonParseException(parser, "Unexpected content after the end of the object");
+            }
+            return new Record(map);
+        }
+        catch (IOException ex){
+            parseErrors.incrementAndGet();
+            logger.log(Level.FINE, "Discarding malformed record: {0}", ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the address listened on; useful after binding to port 0
+     */
+    public InetSocketAddress getAddress(){
+        try{
+            return server == null ? null : (InetSocketAddress) server.getLocalAddress();
+        }
+        catch (IOException ex){
+            return null;
+        }
+    }
+
+    /**
+     * @param maxRecordBytes longest line accepted
+     */
+    public void setMaxRecordBytes(int maxRecordBytes){
+        if (maxRecordBytes < 1){
+            throw new IllegalArgumentException("maxRecordBytes < 1");
+        }
+        this.maxRecordBytes = maxRecordBytes;
+    }
+
+    public int getMaxRecordBytes(){
+        return maxRecordBytes;
+    }
+
+    /**
+     * Limit the shape of each record, as the <i>maxDepth</i> and <i>maxObjectSize</i> attributes of
+     * {@link JsonReader} do; a record that exceeds a limit is counted as a parse error. The length of a record is
+     * limited by {@link #setMaxRecordBytes(int)}.
+     *
+     * @param maxDepth max nesting depth of objects and arrays; 0 for no limit. Default 1000.
+     * @param maxObjectSize max number of entries in any object or array; 0 (the default) for no limit
+     * @throws IllegalStateException if the listener has been started
+     */
+    public void setLimits(int maxDepth, int maxObjectSize){
+        if (maxDepth < 0){
+            throw new IllegalArgumentException("maxDepth < 0");
+        }
+        if (maxObjectSize < 0){
+            throw new IllegalArgumentException("maxObjectSize < 0");
+        }
+        if (running){
+            throw new IllegalStateException("already started");
+        }
+        this.maxDepth = maxDepth;
+        this.maxObjectSize = maxObjectSize;
+    }
+
+    public int getMaxDepth(){
+        return maxDepth;
+    }
+
+    public int getMaxObjectSize(){
+        return maxObjectSize;
+    }
+
+    /**
+     * Bound the queued lines by their size as well as their number.
+     *
+     * @param memoryBudget budget shared with other stages; null for none
+     * @throws IllegalStateException if the listener has been started
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget){
+        if (running){
+            throw new IllegalStateException("already started");
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    public MemoryBudget getMemoryBudget(){
+        return memoryBudget;
+    }
+
+    /**
+     * @return number of open connections
+     */
+    public int getConnections(){
+        return connections.get();
+    }
+
+    /**
+     * @return number of connections accepted since starting
+     */
+    public long getAccepted(){
+        return accepted.get();
+    }
+
+    /**
+     * @return number of Records parsed
+     */
+    public long getRecords(){
+        return records.get();
+    }
+
+    /**
+     * @return number of Records passed to the handler
+     */
+    public long getHandled(){
+        return handled.get();
+    }
+
+    /**
+     * @return number of bytes received
+     */
+    public long getBytes(){
+        return bytes.get();
+    }
+
+    public long getParseErrors(){
+        return parseErrors.get();
+    }
+
+    /**
+     * @return number of times a connection was paused because the queue was full
+     */
+    public long getPauses(){
+        return pauses.get();
+    }
+
+    /**
+     * @return number of lines waiting for a handler
+     */
+    public int getQueued(){
+        return queue.size();
+    }
+
+    /**
+     * Stop accepting and reading, close all connections, and wait for the handlers to finish the lines
+     * already queued.
+     */
+    @Override
+    public void close() throws IOException{
+        Thread thread;
+        synchronized (this){
+            if (!running){
+                return;
+            }
+            running = false;
+            thread = selectorThread;
+        }
+        selector.wakeup();
+        try{
+            thread.join();
+            handlersDone.await();
+        }
+        catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+        }
+        finally{
+            server.close();
+            selector.close();
+        }
+    }
+
+    @Override
+    public String toString(){
+        return "JsonIngestListener{" +
+                "address=" + getAddress() +
+                ", connections=" + connections +
+                ", records=" + records +
+                ", bytes=" + bytes +
+                ", parseErrors=" + parseErrors +
+                ", pauses=" + pauses +
+                '}';
+    }
+
+    private class Connection{
+
+        private final SocketChannel channel;
+        private final SocketAddress remote;
+        private SelectionKey key;
+        private byte[] buffer = new byte[1024];
+        private int limit;
+        private int scanned;
+        private boolean skipping;
+        private boolean eof;
+        private boolean closed;
+        private final Queue<byte[]> pending = new ArrayDeque<>();
+
+        Connection(SocketChannel channel) throws IOException{
+            this.channel = channel;
+            remote = channel.getRemoteAddress();
+        }
+
+        void read() throws IOException{
+            readBuffer.clear();
+            int n = channel.read(readBuffer);
+            if (n < 0){
+                eof = true;
+                if (limit > 0 && !skipping){
+                    deliver(0, limit);
+                }
+                limit = 0;
+                if (pending.isEmpty()){
+                    close();
+                }
+                else{
+                    //closed once the pending lines are queued
+                    pause();
+                }
+                return;
+            }
+            bytes.addAndGet(n);
+            readBuffer.flip();
+            if (limit + n > buffer.length){
+                byte[] larger = new byte[Math.max(buffer.length * 2, limit + n)];
+                System.arraycopy(buffer, 0, larger, 0, limit);
+                buffer = larger;
+            }
+            readBuffer.get(buffer, limit, n);
+            limit += n;
+            frame();
+        }
+
+        private void frame(){
+            int start = 0;
+            for (int i = scanned; i < limit; i++){
+                if (buffer[i] == '\n'){
+                    if (!skipping){
+                        if (i - start > maxRecordBytes){
+                            tooLong();
+                        }
+                        else{
+                            deliver(start, i);
+                        }
+                    }
+                    skipping = false;
+                    start = i + 1;
+                }
+            }
+            System.arraycopy(buffer, start, buffer, 0, limit - start);
+            limit -= start;
+            scanned = limit;
+            if (limit > maxRecordBytes){
+                //drop the rest of this line
+                if (!skipping){
+                    tooLong();
+                }
+                skipping = true;
+                limit = 0;
+                scanned = 0;
+            }
+            if (!pending.isEmpty()){
+                //the queue is full; stop reading until the handlers catch up
+                pause();
+            }
+        }
+
+        private void tooLong(){
+            parseErrors.incrementAndGet();
+            logger.log(Level.FINE, "Discarding record of more than {0} bytes from {1}",
+                    new Object[]{maxRecordBytes, remote});
+        }
+
+        private void pause(){
+            key.interestOps(0);
+            pauses.incrementAndGet();
+            pausedCount.incrementAndGet();
+            resumable.add(this);
+        }
+
+        private void deliver(int start, int end){
+            int length = end - start;
+            while (length > 0 && (buffer[start + length - 1] == '\r' || buffer[start + length - 1] == ' ')){
+                length--;
+            }
+            if (length == 0){
+                return;
+            }
+            byte[] line = Arrays.copyOfRange(buffer, start, start + length);
+            if (!pending.isEmpty() || !offer(line)){
+                pending.add(line);
+            }
+        }
+
+        /**
+         * @return true if no lines are left pending
+         */
+        boolean offerPending(){
+            byte[] line = pending.peek();
+            while (line != null && offer(line)){
+                pending.poll();
+                line = pending.peek();
+            }
+            return line == null;
+        }
+
+        void close(){
+            if (!closed){
+                closed = true;
+                connections.decrementAndGet();
+                key.cancel();
+                try{
+                    channel.close();
+                }
+                catch (IOException ex){
+                    logger.log(Level.FINE, null, ex);
+                }
+            }
+        }
+    }
+}
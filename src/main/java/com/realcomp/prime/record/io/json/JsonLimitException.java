@@ -0,0 +1,19 @@
+package com.realcomp.prime.record.io.json;
+
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+/**
+ * Thrown when a JSON record exceeds a configured depth, size or length limit.
+ * The offending record has been skipped; the reader may continue with the next record.
+ *
+ * @author krenfro
+ */
+public class JsonLimitException extends JsonProcessingException{
+
+    private static final long serialVersionUID = 1L;
+
+    public JsonLimitException(String message, JsonLocation location){
+        super(message, location);
+    }
+}
@@ -0,0 +1,106 @@
+package com.realcomp.prime.record.io.json;
+
+import com.realcomp.prime.conversion.Conversion;
+import com.realcomp.prime.conversion.ConversionException;
+import com.realcomp.prime.record.Record;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * Replaces a value with a field of the reference record that has the value as its key, from a
+ * {@link JsonLookupIndex} in the {@link JsonLookupRegistry}. Null if no reference record has the key.
+ * <p/>
+ * For example, with an index of ZIP code records, a lookup on a <i>zip</i> field with field <i>county</i>
+ * yields the county of the ZIP code.
+ *
+ * @author krenfro
+ */
+public class JsonLookup implements Conversion{
+
+    private String index;
+    private String field;
+    private transient JsonLookupIndex lookupIndex;
+
+    public JsonLookup(){
+    }
+
+    /**
+     * @param index name of a registered index, or the path of an index file
+     * @param field the reference field to return; null for the whole reference record
+     */
+    public JsonLookup(String index, String field){
+        this.index = index;
+        this.field = field;
+    }
+
+    @Override
+    public Object convert(Object value) throws ConversionException{
+        if (value == null){
+            return null;
+        }
+        try{
+            if (lookupIndex == null){
+                if (index == null){
+                    throw new ConversionException("no lookup index specified");
+                }
+                lookupIndex = JsonLookupRegistry.get(index);
+            }
+            Record reference = lookupIndex.get(value.toString());
+            if (reference == null){
+                return null;
+            }
+            return field == null ? reference.asSimpleMap() : reference.get(field);
+        }
+        catch (IOException ex){
+            throw new ConversionException("Unable to look up [" + value + "] in " + index, ex);
+        }
+    }
+
+    @Override
+    public JsonLookup copyOf(){
+        return new JsonLookup(index, field);
+    }
+
+    public String getIndex(){
+        return index;
+    }
+
+    public void setIndex(String index){
+        this.index = index;
+        lookupIndex = null;
+    }
+
+    public String getField(){
+        return field;
+    }
+
+    public void setField(String field){
+        this.field = field;
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if (this == o){
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()){
+            return false;
+        }
+        JsonLookup that = (JsonLookup) o;
+        return Objects.equals(index, that.index) && Objects.equals(field, that.field);
+    }
+
+    @Override
+    public int hashCode(){
+        return Objects.hash(index, field);
+    }
+
+    @Override
+    public String toString(){
+        return "JsonLookup{" +
+                "index='" + index + '\'' +
+                ", field='" + field + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,526 @@
+package com.realcomp.prime.record.io.json;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.realcomp.prime.conversion.ConversionException;
+import com.realcomp.prime.record.Record;
+import com.realcomp.prime.record.io.IOContext;
+import com.realcomp.prime.schema.SchemaException;
+import com.realcomp.prime.validation.ValidationException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A read-only index of JSON reference records by key, in a memory-mapped file. The records stay in the page cache
+ * rather than on the heap, so processes on the same machine share one copy of the reference data.
+ * <p/>
+ * {@link #build(IOContext, List, File)} reads the reference records and writes the index file: the key and
+ * record of each entry in a data section, followed by a table of (key hash, data offset) pairs sorted by hash.
+ * A lookup is a binary search of the table. An optional LRU cache of decoded records (see {@link #setCacheSize})
+ * avoids decoding frequently used records again. Each lookup returns its own copy of a cached record, so a caller
+ * may modify it.
+ * <p/>
+ * A key is the text of the key field values, joined with '\u0001'. If several records have the same key, the first
+ * is found. Records missing a key field, or with a null key value, are not indexed, so they cannot be confused with
+ * a key of "null". Lookups are thread-safe.
+ *
+ * @author krenfro
+ */
+public class JsonLookupIndex implements AutoCloseable{
+
+    private static final Logger logger = Logger.getLogger(JsonLookupIndex.class.getName());
+
+    private static final long MAGIC = 0x5052494d454c4b50L; //PRIMELKP
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int ENTRY_SIZE = 16;
+    private static final int SEGMENT_SIZE = 1 << 30;
+    private static final char KEY_SEPARATOR = '\u0001';
+
+    private final File file;
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer[] segments;
+    private final long count;
+    private final long entriesOffset;
+    private Map<String, Map> cache;
+    private int cacheSize;
+    private long hits;
+    private long misses;
+
+    /**
+     * Open an index file written by {@link #build(IOContext, List, File)}.
+     *
+     * @param file the index
+     * @throws IOException if the file is not an index
+     */
+    public JsonLookupIndex(File file) throws IOException{
+        if (file == null){
+            throw new IllegalArgumentException("file is null");
+        }
+        this.file = file;
+        raf = new RandomAccessFile(file, "r");
+        try{
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            int segmentCount = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            segments = new MappedByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++){
+                long start = (long) i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+                segments[i].order(ByteOrder.BIG_ENDIAN);
+            }
+            if (size < HEADER_SIZE || getLong(0) != MAGIC){
+                throw new IOException("Not a lookup index: " + file);
+            }
+            if (getInt(8) != VERSION){
+                throw new IOException("Unsupported lookup index version " + getInt(8) + ": " + file);
+            }
+            count = getLong(16);
+            entriesOffset = getLong(24);
+        }
+        catch (IOException | RuntimeException ex){
+            raf.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Build an index file from reference records.
+     *
+     * @param reference the reference records; any format {@link JsonReader} reads, optionally with a schema
+     * @param keyFields names of the fields that make up the key
+     * @param index the index file to write
+     * @return number of records indexed; records without a key are skipped
+     * @throws IOException
+     * @throws SchemaException
+     * @throws ValidationException
+     * @throws ConversionException
+     */
+    public static long build(IOContext reference, List<String> keyFields, File index)
+            throws IOException, SchemaException, ValidationException, ConversionException{
+        if (reference == null){
+            throw new IllegalArgumentException("reference is null");
+        }
+        if (keyFields == null || keyFields.isEmpty()){
+            throw new IllegalArgumentException("no keyFields specified");
+        }
+        if (index == null){
+            throw new IllegalArgumentException("index is null");
+        }
+
+        JsonFactory jsonFactory = new JsonFactory();
+        long[] entries = new long[1024];
+        int count = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(index, "rw");
+             JsonReader reader = new JsonReader(jsonFactory)){
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            channel.position(HEADER_SIZE);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(bytes);
+            JsonGenerator generator = jsonFactory.createJsonGenerator(bytes, JsonEncoding.UTF8);
+            generator.setRootValueSeparator(null);
+            reader.open(reference);
+            long skipped = 0;
+            Record record = reader.read();
+            while (record != null){
+                String key = key(record, keyFields);
+                if (key == null){
+                    skipped++;
+                    record = reader.read();
+                    continue;
+                }
+                if (count * 2 == entries.length){
+                    long[] larger = new long[entries.length * 2];
+                    System.arraycopy(entries, 0, larger, 0, entries.length);
+                    entries = larger;
+                }
+                entries[count * 2] = hash(key);
+                entries[count * 2 + 1] = channel.position();
+                count++;
+
+                bytes.reset();
+                byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                data.writeInt(keyBytes.length);
+                data.write(keyBytes);
+                data.writeInt(0);
+                int valueStart = bytes.size();
+                write(generator, record.asSimpleMap());
+                generator.flush();
+                byte[] entry = bytes.toByteArray();
+                ByteBuffer.wrap(entry).putInt(valueStart - 4, entry.length - valueStart);
+                write(channel, ByteBuffer.wrap(entry));
+                record = reader.read();
+            }
+            generator.close();
+            if (skipped > 0){
+                logger.log(Level.WARNING, "{0} records without a key were not indexed in {1}",
+                        new Object[]{skipped, index});
+            }
+
+            long entriesOffset = (channel.position() + ENTRY_SIZE - 1) / ENTRY_SIZE * ENTRY_SIZE;
+            sort(entries, count);
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            channel.position(entriesOffset);
+            for (int i = 0; i < count; i++){
+                if (buffer.remaining() < ENTRY_SIZE){
+                    buffer.flip();
+                    write(channel, buffer);
+                    buffer.clear();
+                }
+                buffer.putLong(entries[i * 2]);
+                buffer.putLong(entries[i * 2 + 1]);
+            }
+            buffer.flip();
+            write(channel, buffer);
+
+            buffer.clear();
+            buffer.putLong(MAGIC).putInt(VERSION).putInt(0).putLong(count).putLong(entriesOffset);
+            buffer.flip();
+            channel.position(0);
+            write(channel, buffer);
+            channel.force(true);
+        }
+        return count;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException{
+        while (buffer.hasRemaining()){
+            channel.write(buffer);
+        }
+    }
+
+    private static void write(JsonGenerator generator, Object value) throws IOException{
+        if (value == null){
+            generator.writeNull();
+        }
+        else if (value instanceof Map){
+            generator.writeStartObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()){
+                generator.writeFieldName(String.valueOf(entry.getKey()));
+                write(generator, entry.getValue());
+            }
+            generator.writeEndObject();
+        }
+        else if (value instanceof List){
+            generator.writeStartArray();
+            for (Object item : (List<?>) value){
+                write(generator, item);
+            }
+            generator.writeEndArray();
+        }
+        else if (value instanceof Boolean){
+            generator.writeBoolean((Boolean) value);
+        }
+        else if (value instanceof Integer || value instanceof Long){
+            generator.writeNumber(((Number) value).longValue());
+        }
+        else if (value instanceof Float || value instanceof Double){
+            generator.writeNumber(((Number) value).doubleValue());
+        }
+        else{
+            generator.writeString(value.toString());
+        }
+    }
+
+    /**
+     * Sort (hash, offset) pairs by hash, then offset; so the first record with a key is found first.
+     */
+    private static void sort(long[] entries, int n){
+        for (int i = n / 2 - 1; i >= 0; i--){
+            siftDown(entries, i, n);
+        }
+        for (int end = n - 1; end > 0; end--){
+            swap(entries, 0, end);
+            siftDown(entries, 0, end);
+        }
+    }
+
+    private static void siftDown(long[] entries, int i, int n){
+        while (true){
+            int child = 2 * i + 1;
+            if (child >= n){
+                return;
+            }
+            if (child + 1 < n && compare(entries, child + 1, child) > 0){
+                child++;
+            }
+            if (compare(entries, child, i) <= 0){
+                return;
+            }
+            swap(entries, i, child);
+            i = child;
+        }
+    }
+
+    private static int compare(long[] entries, int a, int b){
+        int c = Long.compare(entries[a * 2], entries[b * 2]);
+        return c != 0 ? c : Long.compare(entries[a * 2 + 1], entries[b * 2 + 1]);
+    }
+
+    private static void swap(long[] entries, int a, int b){
+        long hash = entries[a * 2];
+        long offset = entries[a * 2 + 1];
+        entries[a * 2] = entries[b * 2];
+        entries[a * 2 + 1] = entries[b * 2 + 1];
+        entries[b * 2] = hash;
+        entries[b * 2 + 1] = offset;
+    }
+
+    /**
+     * @return the record's key, or null if a key field is missing or null
+     */
+    static String key(Record record, List<String> keyFields){
+        Object[] values = new Object[keyFields.size()];
+        for (int i = 0; i < values.length; i++){
+            values[i] = record.get(keyFields.get(i));
+        }
+        return key(values);
+    }
+
+    /**
+     * @param values the key field values, in the order of the key fields the index was built with
+     * @return the key for the values, or null if a value is null; no record is indexed under such a key
+     */
+    public static String key(Object... values){
+        for (Object value : values){
+            if (value == null){
+                return null;
+            }
+        }
+        if (values.length == 1){
+            return values[0].toString();
+        }
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < values.length; i++){
+            if (i > 0){
+                key.append(KEY_SEPARATOR);
+            }
+            key.append(values[i]);
+        }
+        return key.toString();
+    }
+
+    private static long hash(String key){
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++){
+            h = (h ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @param key a key; see {@link #key(Object...)}
+     * @return the reference record with the key, or null if there is none or the key is null
+     * @throws IOException if the record could not be decoded
+     */
+    public Record get(String key) throws IOException{
+        if (key == null){
+            return null;
+        }
+        Map map = null;
+        if (cacheSize > 0){
+            synchronized (this){
+                map = cache.get(key);
+                if (map != null){
+                    hits++;
+                }
+                else{
+                    misses++;
+                }
+            }
+        }
+        if (map == null){
+            map = load(key);
+            if (map == null){
+                return null;
+            }
+            if (cacheSize > 0){
+                synchronized (this){
+                    cache.put(key, map);
+                }
+            }
+        }
+        return new Record(cacheSize > 0 ? (Map) copy(map) : map);
+    }
+
+    /**
+     * @return a deep copy of a decoded value; maps and lists are copied, scalars are immutable and shared.
+     */
+    private static Object copy(Object value){
+        if (value instanceof Map){
+            Map<?, ?> map = (Map<?, ?>) value;
+            Map<Object, Object> copy = new HashMap<>(map.size() * 4 / 3 + 1);
+            for (Map.Entry<?, ?> entry : map.entrySet()){
+                copy.put(entry.getKey(), copy(entry.getValue()));
+            }
+            return copy;
+        }
+        if (value instanceof List){
+            List<?> list = (List<?>) value;
+            List<Object> copy = new ArrayList<>(list.size());
+            for (Object item : list){
+                copy.add(copy(item));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    private Map load(String key) throws IOException{
+        long hash = hash(key);
+        long low = 0;
+        long high = count - 1;
+        while (low <= high){
+            long mid = (low + high) >>> 1;
+            long value = getLong(entriesOffset + mid * ENTRY_SIZE);
+            if (value < hash){
+                low = mid + 1;
+            }
+            else if (value > hash){
+                high = mid - 1;
+            }
+            else{
+                //back up to the first entry with the hash
+                while (mid > 0 && getLong(entriesOffset + (mid - 1) * ENTRY_SIZE) == hash){
+                    mid--;
+                }
+                for (; mid < count && getLong(entriesOffset + mid * ENTRY_SIZE) == hash; mid++){
+                    Map map = load(getLong(entriesOffset + mid * ENTRY_SIZE + 8), key);
+                    if (map != null){
+                        return map;
+                    }
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private Map load(long offset, String key) throws IOException{
+        int keyLength = getInt(offset);
+        byte[] keyBytes = get(offset + 4, keyLength);
+        if (!key.equals(new String(keyBytes, StandardCharsets.UTF_8))){
+            return null;
+        }
+        long valueOffset = offset + 4 + keyLength;
+        byte[] value = get(valueOffset + 4, getInt(valueOffset));
+        try (JsonParser parser = jsonFactory.createJsonParser(value)){
+            parser.nextToken();
+            return new JsonTreeBuilder().build(parser);
+        }
+    }
+
+    private long getLong(long position){
+        ByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)];
+        int offset = (int) (position % SEGMENT_SIZE);
+        if (offset + 8 <= segment.limit()){
+            return segment.getLong(offset);
+        }
+        return ByteBuffer.wrap(get(position, 8)).getLong();
+    }
+
+    private int getInt(long position){
+        ByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)];
+        int offset = (int) (position % SEGMENT_SIZE);
+        if (offset + 4 <= segment.limit()){
+            return segment.getInt(offset);
+        }
+        return ByteBuffer.wrap(get(position, 4)).getInt();
+    }
+
+    private byte[] get(long position, int length){
+        byte[] bytes = new byte[length];
+        int copied = 0;
+        while (copied < length){
+            ByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)].duplicate();
+            int offset = (int) (position % SEGMENT_SIZE);
+            int n = Math.min(length - copied, segment.limit() - offset);
+            segment.position(offset);
+            segment.get(bytes, copied, n);
+            copied += n;
+            position += n;
+        }
+        return bytes;
+    }
+
+    /**
+     * Keep up to <i>size</i> recently used records decoded on the heap.
+     *
+     * @param size number of records to cache; 0 to disable the cache
+     */
+    public synchronized void setCacheSize(final int size){
+        if (size < 0){
+            throw new IllegalArgumentException("size < 0");
+        }
+        cacheSize = size;
+        cache = size == 0 ? null : new LinkedHashMap<String, Map>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Map> eldest){
+                return size() > size;
+            }
+        };
+    }
+
+    public int getCacheSize(){
+        return cacheSize;
+    }
+
+    public synchronized long getCacheHits(){
+        return hits;
+    }
+
+    public synchronized long getCacheMisses(){
+        return misses;
+    }
+
+    /**
+     * @return number of records in the index
+     */
+    public long size(){
+        return count;
+    }
+
+    public File getFile(){
+        return file;
+    }
+
+    /**
+     * Close the index file. The mapped memory is released when the index is garbage collected.
+     */
+    @Override
+    public void close() throws IOException{
+        raf.close();
+    }
+
+    @Override
+    public String toString(){
+        return "JsonLookupIndex{" +
+                "file=" + file +
+                ", size=" + count +
+                ", cacheSize=" + cacheSize +
+                '}';
+    }
+}
@@ -0,0 +1,66 @@
+package com.realcomp.prime.record.io.json;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Named {@link JsonLookupIndex}es shared by every reader, writer and {@link JsonLookup} in the JVM.
+ *
+ * @author krenfro
+ */
+public final class JsonLookupRegistry{
+
+    private static final Map<String, JsonLookupIndex> indexes = new HashMap<>();
+
+    private JsonLookupRegistry(){
+    }
+
+    /**
+     * @param name name the index is found by
+     * @param index the index
+     * @return the index previously registered with the name, or null
+     */
+    public static synchronized JsonLookupIndex register(String name, JsonLookupIndex index){
+        if (name == null){
+            throw new IllegalArgumentException("name is null");
+        }
+        if (index == null){
+            throw new IllegalArgumentException("index is null");
+        }
+        return indexes.put(name, index);
+    }
+
+    /**
+     * @param name the name of a registered index, or the path of an index file
+     * @return the index registered with the name. An index file is opened, and registered by its path,
+     *         the first time it is requested.
+     * @throws IOException if there is no such index
+     */
+    public static synchronized JsonLookupIndex get(String name) throws IOException{
+        if (name == null){
+            throw new IllegalArgumentException("name is null");
+        }
+        JsonLookupIndex index = indexes.get(name);
+        if (index == null){
+            File file = new File(name);
+            if (!file.isFile()){
+                throw new IOException("No lookup index named: " + name);
+            }
+            index = new JsonLookupIndex(file);
+            indexes.put(name, index);
+        }
+        return index;
+    }
+
+    /**
+     * Remove an index from the registry. The index is not closed.
+     *
+     * @param name name of the index
+     * @return the index removed, or null
+     */
+    public static synchronized JsonLookupIndex unregister(String name){
+        return indexes.remove(name);
+    }
+}
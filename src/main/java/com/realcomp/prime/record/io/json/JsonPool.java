@@ -0,0 +1,132 @@
+package com.realcomp.prime.record.io.json;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.realcomp.prime.record.io.IOContext;
+import com.realcomp.prime.schema.SchemaException;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A thread-safe pool of JsonReaders and JsonWriters sharing one JsonFactory. Intended for services that
+ * read or write many small documents, where constructing a reader or writer per document costs more
+ * than parsing it.
+ * <p/>
+ * Sharing the JsonFactory shares its field-name symbol tables between readers. Jackson's parse and generate
+ * buffers are recycled per thread, not per factory, so pooling does not share those.
+ * <p/>
+ * A borrowed reader or writer is opened on the specified IOContext, and must be used by one thread at a time
+ * until it is returned. Returning it closes the current input or output, but not the IOContext.
+ *
+ * @author krenfro
+ */
+public class JsonPool{
+
+    private static final Logger logger = Logger.getLogger(JsonPool.class.getName());
+
+    public static final int DEFAULT_MAX_IDLE = 64;
+
+    private final JsonFactory jsonFactory;
+    private final int maxIdle;
+    private final ConcurrentLinkedQueue<JsonReader> readers;
+    private final ConcurrentLinkedQueue<JsonWriter> writers;
+    private final AtomicInteger idleReaders;
+    private final AtomicInteger idleWriters;
+
+    public JsonPool(){
+        this(new JsonFactory(), DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * @param jsonFactory shared by all readers and writers in the pool
+     * @param maxIdle max number of idle readers, and of idle writers, kept for reuse
+     */
+    public JsonPool(JsonFactory jsonFactory, int maxIdle){
+        if (jsonFactory == null){
+            throw new IllegalArgumentException("jsonFactory is null");
+        }
+        if (maxIdle < 0){
+            throw new IllegalArgumentException("maxIdle < 0");
+        }
+        this.jsonFactory = jsonFactory;
+        this.maxIdle = maxIdle;
+        readers = new ConcurrentLinkedQueue<>();
+        writers = new ConcurrentLinkedQueue<>();
+        idleReaders = new AtomicInteger();
+        idleWriters = new AtomicInteger();
+    }
+
+    public JsonReader borrowReader(IOContext context) throws IOException, SchemaException{
+        JsonReader reader = readers.poll();
+        if (reader == null){
+            reader = new JsonReader(jsonFactory);
+            reader.open(context);
+        }
+        else{
+            idleReaders.decrementAndGet();
+            reader.reset(context);
+        }
+        return reader;
+    }
+
+    public void returnReader(JsonReader reader){
+        if (reader == null){
+            throw new IllegalArgumentException("reader is null");
+        }
+        try{
+            reader.close(false);
+        }
+        catch (IOException ex){
+            logger.log(Level.WARNING, null, ex);
+            return;
+        }
+        if (idleReaders.incrementAndGet() <= maxIdle){
+            readers.offer(reader);
+        }
+        else{
+            idleReaders.decrementAndGet();
+        }
+    }
+
+    public JsonWriter borrowWriter(IOContext context) throws IOException, SchemaException{
+        JsonWriter writer = writers.poll();
+        if (writer == null){
+            writer = new JsonWriter(jsonFactory);
+            writer.open(context);
+        }
+        else{
+            idleWriters.decrementAndGet();
+            writer.reset(context);
+        }
+        return writer;
+    }
+
+    /**
+     * Finishes the writer's output and returns it to the pool.
+     */
+    public void returnWriter(JsonWriter writer){
+        if (writer == null){
+            throw new IllegalArgumentException("writer is null");
+        }
+        try{
+            writer.close(false);
+        }
+        catch (IOException ex){
+            logger.log(Level.WARNING, null, ex);
+            return;
+        }
+        if (idleWriters.incrementAndGet() <= maxIdle){
+            writers.offer(writer);
+        }
+        else{
+            idleWriters.decrementAndGet();
+        }
+    }
+
+    public JsonFactory getJsonFactory(){
+        return jsonFactory;
+    }
+}
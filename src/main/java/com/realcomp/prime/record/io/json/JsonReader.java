@@ -1,9 +1,14 @@
 package com.realcomp.prime.record.io.json;
 
+import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonLocation;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.JsonToken;
+import com.realcomp.prime.DataType;
 import com.realcomp.prime.Operation;
 import com.realcomp.prime.conversion.ConversionException;
 import com.realcomp.prime.record.Record;
@@ -11,40 +16,188 @@ import com.realcomp.prime.record.io.BaseRecordReaderWriter;
 import com.realcomp.prime.record.io.IOContext;
 import com.realcomp.prime.record.io.RecordReader;
 import com.realcomp.prime.schema.Field;
+import com.realcomp.prime.schema.FieldList;
+import com.realcomp.prime.schema.Schema;
 import com.realcomp.prime.schema.SchemaException;
 import com.realcomp.prime.transform.TransformContext;
 import com.realcomp.prime.transform.ValueSurgeon;
 import com.realcomp.prime.validation.ValidationException;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * The JSON format is rich enough that a Schema is <i>not</i> required to parse a Record.
  * If a schema <i>is</i> specified, only the fields specified in the schema will appear in the Record.
  * <p/>
  * Will read a single JSON object or an array of JSON objects.
+ * <p/>
+ * Repeated short String values can be de-duplicated with a {@link StringCache}. Set the <i>stringCache</i>
+ * attribute to cache every String value, or list field names in the <i>stringCacheFields</i> attribute
+ * (e.g., in the schema's format) to cache only those fields.
+ * <p/>
+ * For analytics, {@link #readBatch(ColumnBatch)} reads records column-wise into primitive arrays
+ * without building a Record for each, and {@link #readTyped(TypedRecord)} reads a record into the primitive slots of
+ * a {@link RecordLayout} compiled from the schema.
+ * <p/>
+ * Records are built without recursion. The <i>maxDepth</i>, <i>maxObjectSize</i> (entries per object or array)
+ * and <i>maxDocumentBytes</i> attributes limit the shape of each record; 0 disables a limit. A record that
+ * exceeds a limit is skipped and a {@link JsonLimitException} is thrown; the next read() continues with the
+ * following record.
+ * <p/>
+ * String values longer than the <i>spillThreshold</i> attribute (in chars) are written to a temporary file in
+ * <i>spillDirectory</i> and appear in the Record as a {@link SpilledString} handle, which {@link JsonWriter}
+ * streams back out without loading. The files are deleted when the next Record is read or the reader is closed.
+ * Spilling keeps large values out of the Records, not off the heap while parsing: the parser decodes each String
+ * value in full before its length is known, so a spilled value is briefly held in memory once, as chars.
+ * <p/>
+ * Set the <i>readAhead</i> attribute to read the input on a background thread, into a ring of
+ * <i>readAheadBuffers</i> buffers of <i>readAheadBufferSize</i> bytes, while records are parsed.
+ * <p/>
+ * Records are also available as a java.util.stream.Stream; see {@link #stream()} and
+ * {@link #stream(File, IOContext)}.
+ * <p/>
+ * {@link #skip(long)} and {@link #count()} find record boundaries without building records.
+ * <p/>
+ * Set the <i>tolerant</i> attribute to read newline-delimited JSON past malformed records. A record that
+ * cannot be parsed (or exceeds a limit) is skipped, reading resumes at the next line, and the record's
+ * offset, error and raw bytes are written as a JSON line to the <i>quarantine</i> file (or the stream set
+ * with {@link #setQuarantine(OutputStream)}). More than <i>maxParseErrors</i> malformed records (0 for no limit)
+ * fails the read. Follow mode and {@link #readBatch(ColumnBatch)} are not supported in tolerant mode.
+ * <p/>
+ * Set the <i>dedup</i> attribute to drop Records whose <i>dedupFields</i> (or whole content, if no fields are
+ * listed) were already read; see {@link RecordDeduplicator} for the <i>dedupCapacity</i>, <i>dedupMaxCapacity</i>,
+ * <i>dedupBloomFilterBits</i> and <i>dedupSpillDirectory</i> attributes. Dropped Records are not counted.
+ * <p/>
+ * For a schema with several FieldLists, set the <i>discriminator</i> attribute to the name of a field whose value
+ * selects the FieldList; see {@link Discriminator}. Once the discriminator is parsed, the rest of the object's
+ * fields outside that FieldList are skipped. Set <i>discriminatorProjection</i> to false if operations read
+ * fields that are not in the FieldList.
+ * <p/>
+ * Set the <i>speculative</i> attribute for feeds whose producers write keys in a stable order. The key order and
+ * value types are learned from the first record, and later records are decoded expecting them; a record that
+ * differs is read generically. See {@link FieldOrderSpeculator} and {@link #getSpeculator()}. Speculation is not
+ * used with a <i>discriminator</i> projection.
+ * <p/>
+ * With a {@link MemoryBudget} (see {@link #setMemoryBudget(MemoryBudget)}), read() and readBatch() hold the
+ * estimated size of the Record or batch they return until the next read, and wait before parsing while the budget
+ * is used up by other stages. The read-ahead buffers are held while the reader is open.
+ * {@link #getBytesParsed()} and {@link #getLastRecordBytes()} report the JSON consumed.
+ * <p/>
+ * If the IOContext's InputStream is a {@link FollowInputStream}, the reader follows a growing file: read()
+ * waits for more records at the end of the file instead of returning null, and continues with the new
+ * content after the file is truncated or rotated. read() returns null once the stream is closed.
+ * <p/>
+ * A reader may be reused for another input with {@link #reset(IOContext)}, and readers may share a JsonFactory
+ * (see {@link JsonPool}).
  *
  * @author krenfro
  */
 public class JsonReader extends BaseRecordReaderWriter implements RecordReader{
 
+    private static final Logger logger = Logger.getLogger(JsonReader.class.getName());
+
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
     protected JsonFactory jsonFactory;
     protected JsonParser jsonParser;
+    protected InputStream input;
     protected ValueSurgeon surgeon;
     protected TransformContext transformContext;
+    protected StringCache stringCache;
+    protected Set<String> stringCacheFields = Collections.emptySet();
+    protected Map<Field, List<Operation>> operationsCache = new IdentityHashMap<>();
+    protected Schema operationsCacheSchema;
+    protected JsonTreeBuilder treeBuilder = new JsonTreeBuilder();
+    protected ReadAheadInputStream readAhead;
+    protected FollowInputStream follow;
+    protected long followOffset;
+    protected JsonRecordFramer framer;
+    protected OutputStream quarantine;
+    protected boolean quarantineOwned;
+    protected JsonGenerator quarantineGenerator;
+    protected long parseErrors;
+    protected RecordDeduplicator deduplicator;
+    protected RecordLayout layout;
+    protected FieldList layoutFields;
+    protected Discriminator discriminator;
+    protected Discriminator projection;
+    protected Schema discriminatorSchema;
+    protected MemoryBudget memoryBudget;
+    protected FieldOrderSpeculator speculator;
+    protected long inFlight;
+    protected long expectedSize;
+    protected long readAheadReserved;
+    /* the last value decoded by readScalar */
+    private long scalarLong;
+    private double scalarDouble;
+    private boolean scalarBoolean;
+    protected long bytesParsed;
+    protected long lastRecordBytes;
 
     public JsonReader(){
+        this(new JsonFactory());
+    }
+
+    /**
+     * @param jsonFactory factory for parsers; may be shared between readers.
+     */
+    public JsonReader(JsonFactory jsonFactory){
         super();
+        if (jsonFactory == null){
+            throw new IllegalArgumentException("jsonFactory is null");
+        }
         format.putDefault("type", "JSON");
         format.putDefault("pretty", "false");
         format.putDefault("singleObject", "false");
-        jsonFactory = new JsonFactory();
+        format.putDefault("stringCache", "false");
+        format.putDefault("stringCacheFields", "");
+        format.putDefault("stringCacheSize", Integer.toString(StringCache.DEFAULT_SIZE));
+        format.putDefault("stringCacheMaxLength", Integer.toString(StringCache.DEFAULT_MAX_LENGTH));
+        format.putDefault("maxDepth", "1000");
+        format.putDefault("maxObjectSize", "0");
+        format.putDefault("maxDocumentBytes", "0");
+        format.putDefault("spillThreshold", "0");
+        format.putDefault("spillDirectory", "");
+        format.putDefault("readAhead", "false");
+        format.putDefault("readAheadBuffers", Integer.toString(ReadAheadInputStream.DEFAULT_BUFFER_COUNT));
+        format.putDefault("readAheadBufferSize", Integer.toString(ReadAheadInputStream.DEFAULT_BUFFER_SIZE));
+        format.putDefault("tolerant", "false");
+        format.putDefault("quarantine", "");
+        format.putDefault("maxParseErrors", "0");
+        format.putDefault("dedup", "false");
+        format.putDefault("dedupFields", "");
+        format.putDefault("dedupCapacity", Integer.toString(RecordDeduplicator.DEFAULT_CAPACITY));
+        format.putDefault("dedupMaxCapacity", "");
+        format.putDefault("dedupBloomFilterBits", "0");
+        format.putDefault("dedupSpillDirectory", "");
+        format.putDefault("discriminator", "");
+        format.putDefault("discriminatorProjection", "true");
+        format.putDefault("speculative", "false");
+        this.jsonFactory = jsonFactory;
         surgeon = new ValueSurgeon();
         transformContext = new TransformContext();
     }
@@ -55,11 +208,12 @@ public class JsonReader extends BaseRecordReaderWriter implements RecordReader{
             executeBeforeFirstOperations();
             beforeFirstOperationsRun = true;
         }
-        Record record = null;
-        moveToNextObject();
-        Map map = parseMap();
-
-        if (map != null){
+        releaseInFlight();
+        treeBuilder.deleteSpilled();
+        reserve();
+        Map map = nextMap();
+        while (map != null){
+            Record record;
             if (schema == null){
                 record = new Record(map);
             }
@@ -72,7 +226,8 @@ public class JsonReader extends BaseRecordReaderWriter implements RecordReader{
                 record = new Record();
                 Record temp = new Record(map);
                 transformContext.setRecord(temp);
-                for (Field field : schema.classify(temp)){
+                FieldList fields = discriminator == null ? schema.classify(temp) : discriminator.classify(schema, temp);
+                for (Field field : fields){
                     transformContext.setKey(field.getName());
                     Object value = surgeon.operate(getOperations(field), transformContext);
                     if (value != null){
@@ -83,134 +238,594 @@ public class JsonReader extends BaseRecordReaderWriter implements RecordReader{
                     }
                 }
             }
+            if (deduplicator != null && deduplicator.isDuplicate(record)){
+                map = nextMap();
+                continue;
+            }
+            if (memoryBudget != null){
+                settle(RecordSize.estimate(record));
+            }
             count++;
-        }
-        else{
-            executeAfterLastOperations();
+            return record;
         }
 
-        return record;
+        releaseInFlight();
+        executeAfterLastOperations();
+        return null;
     }
 
-    private List<Operation> getOperations(Field field){
-        assert (field != null);
-        assert (schema != null);
-        List<Operation> operations = new ArrayList<>();
-        if (schema.getBeforeOperations() != null){
-            operations.addAll(schema.getBeforeOperations());
+    private Map nextMap() throws IOException{
+        if (framer != null){
+            return nextTolerantMap();
         }
-        operations.addAll(field.getOperations());
-        if (schema.getAfterOperations() != null){
-            operations.addAll(schema.getAfterOperations());
+        ensureParser();
+        if (follow == null){
+            moveToNextObject();
+            return parse();
         }
-        return operations;
-    }
 
-    private void moveToNextObject() throws IOException{
-        JsonToken token = jsonParser.nextToken();
-        if (token == JsonToken.START_ARRAY){
-            //more than one record in the input stream
-            moveToNextObject();
+        while (true){
+            try{
+                moveToNextObject();
+                Map map = parse();
+                if (map != null){
+                    followOffset = follow.getStart() + jsonParser.getCurrentLocation().getByteOffset();
+                    return map;
+                }
+                if (!follow.isRotated()){
+                    //closed
+                    return null;
+                }
+            }
+            catch (JsonParseException ex){
+                if (!follow.isRotated()){
+                    throw ex;
+                }
+                logger.log(Level.WARNING, "Discarding partial record at the end of {0}: {1}",
+                        new Object[]{follow.getPath(), ex.getMessage()});
+            }
+            //truncated or rotated; parse the new content from the start
+            follow.clearRotated();
+            jsonParser = null;
+            ensureParser();
+            followOffset = 0;
         }
-        else if (token == JsonToken.START_OBJECT){
-            //ready - probably only one json object in the input stream
+    }
+
+    /**
+     * Build the object at the parser's current token, counting the bytes it spans.
+     */
+    private Map parse() throws IOException{
+        long start = offset(jsonParser.getTokenLocation());
+        Map map = treeBuilder.build(jsonParser, projection);
+        if (map != null){
+            lastRecordBytes = offset(jsonParser.getCurrentLocation()) - start;
+            bytesParsed += lastRecordBytes;
         }
+        return map;
+    }
+
+    private static long offset(JsonLocation location){
+        return location.getByteOffset() >= 0 ? location.getByteOffset() : location.getCharOffset();
+    }
+
+    /**
+     * Take ownership of the values spilled for the last Record, so that they are not deleted by the next read().
+     * For stages that buffer Records.
+     *
+     * @return the spilled values; the caller must delete them
+     */
+    List<SpilledString> detachSpilled(){
+        return treeBuilder.detachSpilled();
     }
 
-    private Map parseMap() throws IOException{
-        Map map = null;
-        if (jsonParser.getCurrentToken() == JsonToken.START_OBJECT){
+    private void releaseInFlight(){
+        if (inFlight > 0){
+            memoryBudget.release(inFlight);
+            inFlight = 0;
+        }
+    }
 
-            map = new HashMap();
-            while (jsonParser.nextToken() != JsonToken.END_OBJECT){
+    /**
+     * Wait for the size of the last Record (or batch) before parsing the next, so that memory is not allocated
+     * while the budget is used up.
+     */
+    private void reserve() throws InterruptedIOException{
+        if (memoryBudget != null && inFlight == 0 && expectedSize > 0){
+            memoryBudget.acquire(expectedSize);
+            inFlight = expectedSize;
+        }
+    }
 
-                JsonToken token = jsonParser.getCurrentToken();
+    /**
+     * Adjust the reservation to the estimated size of what was read. The excess is forced rather than waited
+     * for, since the memory is already allocated.
+     */
+    private void settle(long size){
+        if (size > inFlight){
+            memoryBudget.force(size - inFlight);
+        }
+        else if (size < inFlight){
+            memoryBudget.release(inFlight - size);
+        }
+        inFlight = size;
+        expectedSize = size;
+    }
 
-                if (token == JsonToken.START_ARRAY){
-                    //nested list
-                    map.put(jsonParser.getCurrentName(), parseList());
-                }
-                else if (token == JsonToken.START_OBJECT){
-                    //nested map
-                    map.put(jsonParser.getCurrentName(), parseMap());
+    private Map nextTolerantMap() throws IOException{
+        while (framer.next()){
+            JsonParser parser = jsonFactory.createJsonParser(
+                    framer.getBuffer(), framer.getRecordStart(), framer.getRecordLength());
+            try{
+                if (parser.nextToken() != JsonToken.START_OBJECT){
+                    throw new JsonParseException(parser, "Expected a JSON object");
                 }
-                else if (token == JsonToken.VALUE_TRUE){
-                    map.put(jsonParser.getCurrentName(), Boolean.TRUE);
+                Map map = treeBuilder.build(parser, projection);
+                if (parser.nextToken() != null){
+                    throw new JsonParseException(parser, "Unexpected content after the end of the object");
                 }
-                else if (token == JsonToken.VALUE_FALSE){
-                    map.put(jsonParser.getCurrentName(), Boolean.FALSE);
+                lastRecordBytes = framer.getRecordLength();
+                bytesParsed += lastRecordBytes;
+                return map;
+            }
+            catch (JsonProcessingException ex){
+                quarantine(ex);
+            }
+            finally{
+                parser.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write a malformed record's bytes to the quarantine as a <i>record</i> string if they are valid UTF-8, or
+     * as a base64 <i>recordBase64</i> field otherwise, so the original bytes can always be recovered exactly.
+     */
+    private void writeRaw(byte[] buffer, int start, int length) throws IOException{
+        String text;
+        try{
+            text = StandardCharsets.UTF_8.newDecoder()
+                    .decode(ByteBuffer.wrap(buffer, start, length)).toString();
+        }
+        catch (CharacterCodingException ex){
+            quarantineGenerator.writeFieldName("recordBase64");
+            quarantineGenerator.writeBinary(buffer, start, length);
+            return;
+        }
+        quarantineGenerator.writeStringField("record", text);
+    }
+
+    private void quarantine(JsonProcessingException ex) throws IOException{
+        parseErrors++;
+        long offset = framer.getRecordOffset();
+        if (quarantineGenerator != null){
+            quarantineGenerator.writeStartObject();
+            quarantineGenerator.writeNumberField("offset", offset);
+            quarantineGenerator.writeStringField("error", ex.getOriginalMessage());
+            writeRaw(framer.getBuffer(), framer.getRecordStart(), framer.getRecordLength());
+            quarantineGenerator.writeEndObject();
+            quarantineGenerator.writeRaw('\n');
+            quarantineGenerator.flush();
+        }
+        else{
+            logger.log(Level.WARNING, "Discarding malformed record at offset {0}: {1}",
+                    new Object[]{offset, ex.getOriginalMessage()});
+        }
+        long maxParseErrors = Long.parseLong(format.get("maxParseErrors"));
+        if (maxParseErrors > 0 && parseErrors > maxParseErrors){
+            throw new IOException(String.format(
+                    "Malformed record at offset %s exceeds the maxParseErrors threshold of %s",
+                    offset, maxParseErrors), ex);
+        }
+    }
+
+    /**
+     * Columnar read mode. Fills the batch with up to {@link ColumnBatch#getCapacity()} records, decoding
+     * values straight from the token stream into the batch's primitive columns. No Record is built, and
+     * schema operations are <i>not</i> run; fields of the input that are not columns of the batch are skipped.
+     * Values that do not match the column's type are read as null.
+     *
+     * @param batch the batch to fill. Any previous contents are discarded.
+     * @return number of records read into the batch; 0 when there are no more records.
+     * @throws IOException
+     */
+    public int readBatch(ColumnBatch batch) throws IOException{
+        if (batch == null){
+            throw new IllegalArgumentException("batch is null");
+        }
+        if (framer != null){
+            throw new IllegalStateException("readBatch is not supported in tolerant mode");
+        }
+        ensureParser();
+        releaseInFlight();
+        reserve();
+        batch.clear();
+        int row = 0;
+        while (row < batch.getCapacity()){
+            moveToNextObject();
+            if (jsonParser.getCurrentToken() != JsonToken.START_OBJECT){
+                break;
+            }
+            for (int i = 0; i < batch.getColumnCount(); i++){
+                batch.getColumn(i).setNull(row);
+            }
+            while (jsonParser.nextToken() == JsonToken.FIELD_NAME){
+                int column = batch.indexOf(jsonParser.getCurrentName());
+                JsonToken token = jsonParser.nextToken();
+                if (column < 0 || token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY){
+                    jsonParser.skipChildren();
                 }
-                else if (token == JsonToken.VALUE_STRING){
-                    //TODO: charset being used!
-                    map.put(jsonParser.getCurrentName(), jsonParser.getText());
+                else if (token != JsonToken.VALUE_NULL){
+                    readColumnValue(batch.getColumn(column), row, token);
                 }
-                else if (token == JsonToken.VALUE_NUMBER_FLOAT){
-                    try{
-                        map.put(jsonParser.getCurrentName(), Float.valueOf(jsonParser.getFloatValue()));
+            }
+            row++;
+            count++;
+        }
+        batch.setSize(row);
+        if (memoryBudget != null){
+            if (row == 0){
+                releaseInFlight();
+            }
+            else{
+                settle(batch.getEstimatedBytes());
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Typed read mode. Decodes the next record straight from the token stream into the record's slots.
+     * No Record is built, and schema operations are <i>not</i> run; fields of the input that are not in the
+     * record's layout are skipped, and values that do not match a field's type are left null.
+     *
+     * @param record the record to fill. Any previous contents are discarded.
+     * @return false when there are no more records
+     * @throws IOException
+     */
+    public boolean readTyped(TypedRecord record) throws IOException{
+        if (record == null){
+            throw new IllegalArgumentException("record is null");
+        }
+        if (framer != null){
+            throw new IllegalStateException("readTyped is not supported in tolerant mode");
+        }
+        treeBuilder.deleteSpilled();
+        ensureParser();
+        moveToNextObject();
+        if (jsonParser.getCurrentToken() != JsonToken.START_OBJECT){
+            return false;
+        }
+        record.clear();
+        RecordLayout layout = record.getLayout();
+        while (jsonParser.nextToken() == JsonToken.FIELD_NAME){
+            String name = jsonParser.getCurrentName();
+            int field = layout.indexOf(name);
+            JsonToken token = jsonParser.nextToken();
+            if (field < 0){
+                jsonParser.skipChildren();
+            }
+            else if (token != JsonToken.VALUE_NULL){
+                readTypedValue(record, field, token, name);
+            }
+        }
+        count++;
+        return true;
+    }
+
+    /**
+     * Decode the current token into the record's slot. As in {@link #readBatch(ColumnBatch)}, a value whose JSON
+     * type does not match a primitive field's type (e.g., "abc", a fraction in an INTEGER field, or an object)
+     * is skipped and the slot left null rather than coerced; a String is parsed if it holds exactly a value of
+     * the field's type.
+     */
+    private void readTypedValue(TypedRecord record, int field, JsonToken token, String name) throws IOException{
+        DataType type = record.getLayout().getType(field);
+        if (!isPrimitive(type)){
+            if (token == JsonToken.START_OBJECT){
+                record.setObject(field, treeBuilder.build(jsonParser));
+            }
+            else if (token == JsonToken.START_ARRAY){
+                record.setObject(field, treeBuilder.buildList(jsonParser));
+            }
+            else{
+                record.setObject(field, treeBuilder.getValue(jsonParser, token, name));
+            }
+            return;
+        }
+        if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY){
+            jsonParser.skipChildren();
+            return;
+        }
+        if (readScalar(type, token)){
+            switch (type){
+                case INTEGER:
+                case LONG:
+                    record.setLong(field, scalarLong);
+                    break;
+                case FLOAT:
+                case DOUBLE:
+                    record.setDouble(field, scalarDouble);
+                    break;
+                default:
+                    record.setBoolean(field, scalarBoolean);
+            }
+        }
+    }
+
+    private static boolean isPrimitive(DataType type){
+        return type == DataType.INTEGER || type == DataType.LONG || type == DataType.FLOAT
+                || type == DataType.DOUBLE || type == DataType.BOOLEAN;
+    }
+
+    /**
+     * Decode the current scalar token as a value of a primitive type, into {@link #scalarLong} (INTEGER and LONG),
+     * {@link #scalarDouble} (FLOAT and DOUBLE) or {@link #scalarBoolean}. A String is parsed if it holds exactly
+     * a value of the type. Any other value whose JSON type does not match the type (e.g., "abc" or a fraction for
+     * an INTEGER) is rejected rather than coerced.
+     *
+     * @return false if the token is not a value of the type
+     */
+    private boolean readScalar(DataType type, JsonToken token) throws IOException{
+        boolean isString = token == JsonToken.VALUE_STRING;
+        try{
+            switch (type){
+                case INTEGER:
+                    if (token == JsonToken.VALUE_NUMBER_INT
+                            && jsonParser.getNumberType() == JsonParser.NumberType.INT){
+                        scalarLong = jsonParser.getIntValue();
+                        return true;
                     }
-                    catch (JsonParseException ex){
-                        map.put(jsonParser.getCurrentName(), Double.valueOf(jsonParser.getDoubleValue()));
+                    if (isString){
+                        scalarLong = Integer.parseInt(jsonParser.getText());
+                        return true;
                     }
-                }
-                else if (token == JsonToken.VALUE_NUMBER_INT){
-                    try{
-                        map.put(jsonParser.getCurrentName(), Integer.valueOf(jsonParser.getIntValue()));
+                    return false;
+                case LONG:
+                    if (token == JsonToken.VALUE_NUMBER_INT
+                            && jsonParser.getNumberType() != JsonParser.NumberType.BIG_INTEGER){
+                        scalarLong = jsonParser.getLongValue();
+                        return true;
                     }
-                    catch (JsonParseException ex){
-                        map.put(jsonParser.getCurrentName(), Long.valueOf(jsonParser.getLongValue()));
+                    if (isString){
+                        scalarLong = Long.parseLong(jsonParser.getText());
+                        return true;
                     }
-                }
-                else if (token == JsonToken.VALUE_NULL){
-                    //skip
-                }
+                    return false;
+                case FLOAT:
+                case DOUBLE:
+                    if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT){
+                        scalarDouble = jsonParser.getDoubleValue();
+                        return true;
+                    }
+                    if (isString){
+                        scalarDouble = Double.parseDouble(jsonParser.getText());
+                        return true;
+                    }
+                    return false;
+                case BOOLEAN:
+                    if (token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE){
+                        scalarBoolean = token == JsonToken.VALUE_TRUE;
+                        return true;
+                    }
+                    if (isString && ("true".equals(jsonParser.getText()) || "false".equals(jsonParser.getText()))){
+                        scalarBoolean = "true".equals(jsonParser.getText());
+                        return true;
+                    }
+                    return false;
+                default:
+                    return false;
             }
         }
+        catch (NumberFormatException ex){
+            return false;
+        }
+    }
 
-        return map;
+    /**
+     * @return a layout of the schema's FieldList, for {@link #readTyped(TypedRecord)}
+     * @throws IllegalStateException if there is no schema, or the schema has more than one FieldList, as records
+     *         are not classified in typed read mode; compile a {@link RecordLayout} from the FieldList to use instead
+     */
+    public RecordLayout getLayout(){
+        if (schema == null || schema.getFieldLists() == null || schema.getFieldLists().isEmpty()){
+            throw new IllegalStateException("no schema");
+        }
+        if (schema.getFieldLists().size() > 1){
+            throw new IllegalStateException("the schema has more than one FieldList");
+        }
+        FieldList fields = schema.getFieldLists().get(0);
+        if (layout == null || layoutFields != fields){
+            layout = new RecordLayout(fields);
+            layoutFields = fields;
+        }
+        return layout;
     }
 
-    private List parseList() throws IOException{
-        List list = null;
-        if (jsonParser.getCurrentToken() == JsonToken.START_ARRAY){
+    /**
+     * Decode the current scalar token into the column. A String is parsed if it holds exactly a value of the
+     * column's type. Any other value whose JSON type does not match the column's type (e.g., "abc" or a fraction
+     * in an INTEGER column) is left null rather than coerced.
+     */
+    private void readColumnValue(ColumnVector column, int row, JsonToken token) throws IOException{
+        DataType type = column.getType();
+        if (!isPrimitive(type)){
+            column.setString(
+                    row, jsonParser.getTextCharacters(), jsonParser.getTextOffset(), jsonParser.getTextLength());
+        }
+        else if (readScalar(type, token)){
+            switch (type){
+                case INTEGER:
+                    column.setInt(row, (int) scalarLong);
+                    break;
+                case LONG:
+                    column.setLong(row, scalarLong);
+                    break;
+                case FLOAT:
+                case DOUBLE:
+                    column.setDouble(row, scalarDouble);
+                    break;
+                default:
+                    column.setBoolean(row, scalarBoolean);
+            }
+        }
+    }
 
-            list = new ArrayList();
-            while (jsonParser.nextToken() != JsonToken.END_ARRAY){
+    private List<Operation> getOperations(Field field){
+        assert (field != null);
+        assert (schema != null);
+        if (operationsCacheSchema != schema){
+            operationsCache.clear();
+            operationsCacheSchema = schema;
+        }
+        List<Operation> operations = operationsCache.get(field);
+        if (operations != null){
+            return operations;
+        }
+        operations = new ArrayList<>();
+        if (schema.getBeforeOperations() != null){
+            operations.addAll(schema.getBeforeOperations());
+        }
+        operations.addAll(field.getOperations());
+        if (schema.getAfterOperations() != null){
+            operations.addAll(schema.getAfterOperations());
+        }
+        operationsCache.put(field, operations);
+        return operations;
+    }
 
-                JsonToken token = jsonParser.getCurrentToken();
+    private void ensureParser() throws IOException{
+        if (jsonParser == null){
+            if (input == null){
+                throw new IllegalStateException("not open");
+            }
+            jsonParser = jsonFactory.createJsonParser(input);
+            if (follow != null){
+                //the parser closes its input at end-of-input, which a rotation signals
+                jsonParser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            }
+        }
+    }
 
-                if (token == JsonToken.START_ARRAY){
-                    //nested list
-                    list.add(parseList());
-                }
-                else if (token == JsonToken.START_OBJECT){
-                    //nested map
-                    list.add(parseMap());
-                }
-                else if (token == JsonToken.VALUE_TRUE){
-                    list.add(Boolean.TRUE);
-                }
-                else if (token == JsonToken.VALUE_FALSE){
-                    list.add(Boolean.FALSE);
+    /**
+     * Skip records without building them. Before the first read, the raw input is scanned for record boundaries
+     * without tokenizing it; afterwards the parser skips whole objects without decoding their values.
+     * Skipped records are not included in {@link #getCount()}. The input must be UTF-8 (or ASCII).
+     * Not supported when following a file, as skipped records would not advance {@link #getFollowOffset()}.
+     *
+     * @param n number of records to skip
+     * @return number of records skipped; less than <i>n</i> at the end of the input
+     * @throws IOException
+     * @throws IllegalStateException if following a file
+     */
+    public long skip(long n) throws IOException{
+        if (n < 0){
+            throw new IllegalArgumentException("n < 0");
+        }
+        if (follow != null){
+            throw new IllegalStateException("skip is not supported when following a file");
+        }
+        if (n == 0){
+            return 0;
+        }
+        if (framer != null){
+            long skipped = 0;
+            while (skipped < n && framer.next()){
+                skipped++;
+            }
+            return skipped;
+        }
+        if (jsonParser != null){
+            long skipped = 0;
+            while (skipped < n){
+                moveToNextObject();
+                if (jsonParser.getCurrentToken() != JsonToken.START_OBJECT){
+                    break;
                 }
-                else if (token == JsonToken.VALUE_NULL){
-                    //skip
+                jsonParser.skipChildren();
+                skipped++;
+            }
+            return skipped;
+        }
+        if (input == null){
+            throw new IllegalStateException("not open");
+        }
+
+        JsonRecordScanner scanner = new JsonRecordScanner();
+        byte[] buffer = new byte[SCAN_BUFFER_SIZE];
+        int position = 0;
+        int limit = 0;
+        long skipped = 0;
+        while (skipped < n){
+            if (position == limit){
+                position = 0;
+                limit = Math.max(0, input.read(buffer));
+                if (limit == 0){
+                    break;
                 }
-                else if (token == JsonToken.VALUE_STRING){
-                    //TODO: charset being used!
-                    list.add(jsonParser.getText());
+            }
+            int end = scanner.findRecordEnd(buffer, position, limit);
+            if (end < 0){
+                position = limit;
+            }
+            else{
+                position = end;
+                skipped++;
+            }
+        }
+
+        //only the enclosing arrays that are still open; the scan may have consumed their closing brackets
+        int arrays = Math.min(scanner.getRecordDepth(), scanner.getDepth());
+        if (arrays > 0 && skipped > 0){
+            //drop the separator after the last skipped element, and re-open the enclosing arrays for the parser
+            boolean separator = false;
+            while (true){
+                if (position == limit){
+                    position = 0;
+                    limit = Math.max(0, input.read(buffer));
+                    if (limit == 0){
+                        break;
+                    }
                 }
-                else if (token == JsonToken.VALUE_NUMBER_FLOAT){
-                    //TODO: charset being used!
-                    list.add(Float.valueOf(jsonParser.getFloatValue()));
+                byte b = buffer[position];
+                if (!separator && b == ','){
+                    separator = true;
                 }
-                else if (token == JsonToken.VALUE_NUMBER_INT){
-                    //TODO: charset being used!
-                    list.add(Integer.valueOf(jsonParser.getIntValue()));
+                else if (b != ' ' && b != '\t' && b != '\n' && b != '\r'){
+                    break;
                 }
+                position++;
             }
         }
 
-        return list;
+        byte[] remaining = new byte[Math.max(arrays, 0) + limit - position];
+        Arrays.fill(remaining, 0, Math.max(arrays, 0), (byte) '[');
+        System.arraycopy(buffer, position, remaining, Math.max(arrays, 0), limit - position);
+        input = new SequenceInputStream(new ByteArrayInputStream(remaining), input);
+        return skipped;
+    }
+
+    /**
+     * Count the remaining records without building them, as {@link #skip(long)} does. Consumes the input.
+     *
+     * @return number of remaining records
+     * @throws IOException
+     */
+    public long count() throws IOException{
+        if (follow != null){
+            throw new IllegalStateException("a followed file never ends");
+        }
+        return skip(Long.MAX_VALUE);
+    }
+
+    private void moveToNextObject() throws IOException{
+        JsonToken token = jsonParser.nextToken();
+        while (token == JsonToken.START_ARRAY){
+            //more than one record in the input stream
+            token = jsonParser.nextToken();
+        }
+        //if START_OBJECT, ready - probably only one json object in the input stream
     }
 
     @Override
@@ -219,9 +834,159 @@ public class JsonReader extends BaseRecordReaderWriter implements RecordReader{
         if (context.getIn() == null){
             throw new IllegalArgumentException("Invalid IOContext. No InputStream specified");
         }
-        jsonParser = jsonFactory.createJsonParser(context.getIn());
+        follow = context.getIn() instanceof FollowInputStream ? (FollowInputStream) context.getIn() : null;
+        followOffset = follow == null ? 0 : follow.getStart();
+        if (isReadAhead() && follow == null){
+            int buffers = Integer.parseInt(format.get("readAheadBuffers"));
+            int bufferSize = Integer.parseInt(format.get("readAheadBufferSize"));
+            if (memoryBudget != null){
+                long size = (long) buffers * RecordSize.array(bufferSize, 1);
+                memoryBudget.acquire(size);
+                readAheadReserved = size;
+            }
+            readAhead = new ReadAheadInputStream(context.getIn(), buffers, bufferSize);
+            input = readAhead;
+        }
+        else{
+            readAhead = null;
+            input = context.getIn();
+        }
+        //the parser is created on first use, so that skip() can scan the raw input
+        jsonParser = null;
+        parseErrors = 0;
+        bytesParsed = 0;
+        lastRecordBytes = 0;
+        if (isTolerant()){
+            if (follow != null){
+                throw new IllegalArgumentException("tolerant mode cannot follow a file");
+            }
+            framer = new JsonRecordFramer(input);
+            openQuarantine();
+        }
+        else{
+            framer = null;
+        }
         transformContext.setValidationExceptionThreshold(context.getValidationExeptionThreshold());
         transformContext.setSchema(schema);
+        openStringCache();
+        openDeduplicator();
+        openDiscriminator();
+        if (isSpeculative()){
+            if (speculator == null){
+                speculator = new FieldOrderSpeculator();
+            }
+            treeBuilder.setSpeculator(speculator);
+        }
+        else{
+            treeBuilder.setSpeculator(null);
+        }
+        treeBuilder.setLimits(
+                Integer.parseInt(format.get("maxDepth")),
+                Integer.parseInt(format.get("maxObjectSize")),
+                Long.parseLong(format.get("maxDocumentBytes")));
+        String spillDirectory = format.get("spillDirectory");
+        treeBuilder.setSpill(
+                Long.parseLong(format.get("spillThreshold")),
+                spillDirectory.isEmpty() ? null : new File(spillDirectory));
+    }
+
+    private void openDeduplicator(){
+        if (!isDedup()){
+            if (deduplicator != null){
+                deduplicator.close();
+                deduplicator = null;
+            }
+            return;
+        }
+        List<String> fields = new ArrayList<>();
+        for (String name : format.get("dedupFields").split(",")){
+            if (!name.trim().isEmpty()){
+                fields.add(name.trim());
+            }
+        }
+        int capacity = Integer.parseInt(format.get("dedupCapacity"));
+        String max = format.get("dedupMaxCapacity");
+        String path = format.get("dedupSpillDirectory");
+        File spillDirectory = path.isEmpty() ? null : new File(path);
+        int maxCapacity = max.isEmpty()
+                ? RecordDeduplicator.defaultMaxCapacity(capacity, spillDirectory)
+                : Integer.parseInt(max);
+        long bloomFilterBits = Long.parseLong(format.get("dedupBloomFilterBits"));
+
+        //reuse the off-heap tables of the last open, rather than leave them for the garbage collector
+        if (deduplicator != null
+                && deduplicator.hasSettings(fields, capacity, maxCapacity, bloomFilterBits, spillDirectory)){
+            deduplicator.reset();
+            return;
+        }
+        if (deduplicator != null){
+            deduplicator.close();
+        }
+        deduplicator = new RecordDeduplicator(fields, capacity, maxCapacity, bloomFilterBits, spillDirectory);
+    }
+
+    private void openDiscriminator(){
+        String field = format.get("discriminator");
+        if (schema == null || field.isEmpty()){
+            discriminator = null;
+        }
+        else if (discriminator == null || discriminatorSchema != schema || !discriminator.getField().equals(field)){
+            discriminator = Discriminator.create(schema, field);
+            discriminatorSchema = schema;
+        }
+        projection = discriminator != null && Boolean.parseBoolean(format.get("discriminatorProjection"))
+                ? discriminator
+                : null;
+    }
+
+    private void openQuarantine() throws IOException{
+        String path = format.get("quarantine");
+        if (quarantine == null && !path.isEmpty()){
+            quarantine = new BufferedOutputStream(new FileOutputStream(path, true));
+            quarantineOwned = true;
+        }
+        if (quarantine != null){
+            quarantineGenerator = jsonFactory.createJsonGenerator(quarantine, JsonEncoding.UTF8);
+            quarantineGenerator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            quarantineGenerator.setRootValueSeparator(null);
+        }
+    }
+
+    private void openStringCache(){
+        stringCacheFields = new HashSet<>();
+        for (String name : format.get("stringCacheFields").split(",")){
+            if (!name.trim().isEmpty()){
+                stringCacheFields.add(name.trim());
+            }
+        }
+        if (isStringCacheEnabled() || !stringCacheFields.isEmpty()){
+            int size = Integer.parseInt(format.get("stringCacheSize"));
+            int maxLength = Integer.parseInt(format.get("stringCacheMaxLength"));
+            if (stringCache == null || stringCache.getSize() < size || stringCache.getMaxLength() != maxLength){
+                stringCache = new StringCache(size, maxLength);
+            }
+        }
+        else{
+            stringCache = null;
+        }
+        treeBuilder.setStringCache(stringCache, isStringCacheEnabled(), stringCacheFields);
+    }
+
+    /**
+     * Close the current input, without closing its IOContext, and open the specified IOContext.
+     * The JsonFactory, StringCache and the operations compiled for the schema are kept.
+     *
+     * @param context the next input
+     * @throws IOException
+     * @throws SchemaException
+     */
+    public void reset(IOContext context) throws IOException, SchemaException{
+        if (input != null){
+            close(false);
+        }
+        count = 0;
+        beforeFirstOperationsRun = false;
+        open(context);
     }
 
     @Override
@@ -232,8 +997,223 @@ public class JsonReader extends BaseRecordReaderWriter implements RecordReader{
                 jsonParser.close();
             }
             catch (IOException ex){
-                Logger.getLogger(JsonReader.class.getName()).log(Level.SEVERE, null, ex);
+                logger.log(Level.SEVERE, null, ex);
             }
+            jsonParser = null;
         }
+        else if (input != null){
+            //never parsed
+            try{
+                input.close();
+            }
+            catch (IOException ex){
+                logger.log(Level.SEVERE, null, ex);
+            }
+        }
+        input = null;
+        framer = null;
+        releaseInFlight();
+        treeBuilder.deleteSpilled();
+        closeQuarantine();
+        if (deduplicator != null){
+            deduplicator.close();
+        }
+        if (follow != null){
+            try{
+                follow.close();
+            }
+            catch (IOException ex){
+                logger.log(Level.SEVERE, null, ex);
+            }
+        }
+        if (readAhead != null){
+            try{
+                readAhead.close();
+            }
+            catch (IOException ex){
+                logger.log(Level.SEVERE, null, ex);
+            }
+        }
+        releaseReadAhead();
+    }
+
+    private void releaseReadAhead(){
+        if (readAheadReserved > 0){
+            memoryBudget.release(readAheadReserved);
+            readAheadReserved = 0;
+        }
+    }
+
+    private void closeQuarantine(){
+        if (quarantineGenerator != null){
+            try{
+                quarantineGenerator.close();
+            }
+            catch (IOException ex){
+                logger.log(Level.SEVERE, null, ex);
+            }
+            quarantineGenerator = null;
+        }
+        if (quarantine != null){
+            try{
+                if (quarantineOwned){
+                    quarantine.close();
+                    quarantine = null;
+                    quarantineOwned = false;
+                }
+                else{
+                    quarantine.flush();
+                }
+            }
+            catch (IOException ex){
+                logger.log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * A sequential Stream of the remaining Records. Reaching the end of the Stream, or closing it, closes
+     * this reader and its IOContext.
+     * Checked exceptions are rethrown as {@link UncheckedIOException} or {@link UncheckedRecordException}.
+     *
+     * @return the remaining Records
+     */
+    public Stream<Record> stream(){
+        JsonRecordSpliterator spliterator = new JsonRecordSpliterator(this);
+        return StreamSupport.stream(spliterator, false).onClose(spliterator::close);
+    }
+
+    /**
+     * A Stream of the Records in a newline-delimited JSON file. A parallel Stream splits the file at
+     * record boundaries and parses the parts concurrently, each with its own reader.
+     * Closing the Stream closes every reader it opened.
+     * Checked exceptions are rethrown as {@link UncheckedIOException} or {@link UncheckedRecordException}.
+     *
+     * @param file newline-delimited JSON; one object per line
+     * @param context provides the schema and attributes for the readers; its streams are not used
+     * @return the Records in the file
+     */
+    public static Stream<Record> stream(File file, IOContext context){
+        if (file == null){
+            throw new IllegalArgumentException("file is null");
+        }
+        if (context == null){
+            throw new IllegalArgumentException("context is null");
+        }
+        JsonRecordSpliterator spliterator = new JsonRecordSpliterator(file, context);
+        return StreamSupport.stream(spliterator, false).onClose(spliterator::close);
+    }
+
+    /**
+     * @return when following a file, the byte offset in the current file just after the last Record read.
+     *         A new {@link FollowInputStream} started at this offset resumes with the next Record.
+     */
+    public long getFollowOffset(){
+        return followOffset;
+    }
+
+    /**
+     * Draw the estimated size of each Record returned by read(), or of each batch filled by readBatch(), from a
+     * shared budget. A Record is in flight, and its size is held, until the next read or close(). Before parsing,
+     * a read waits for as much as the last Record took, and then takes or returns the difference.
+     * <p/>
+     * The read-ahead buffers are drawn when the reader is opened, so set the budget before open().
+     *
+     * @param memoryBudget the budget; null for none
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget){
+        releaseInFlight();
+        releaseReadAhead();
+        expectedSize = 0;
+        this.memoryBudget = memoryBudget;
+    }
+
+    public MemoryBudget getMemoryBudget(){
+        return memoryBudget;
+    }
+
+    /**
+     * @return estimated bytes held in the memory budget by the last Record returned
+     */
+    public long getInFlight(){
+        return inFlight;
+    }
+
+    /**
+     * @return bytes (or chars, for character input) of JSON parsed into Records
+     */
+    public long getBytesParsed(){
+        return bytesParsed;
+    }
+
+    /**
+     * @return bytes (or chars, for character input) of JSON in the last Record parsed
+     */
+    public long getLastRecordBytes(){
+        return lastRecordBytes;
+    }
+
+    public boolean isSpeculative(){
+        return Boolean.parseBoolean(format.get("speculative"));
+    }
+
+    /**
+     * @return the key order learned in speculative mode, with hit and miss counts; null if not speculative
+     */
+    public FieldOrderSpeculator getSpeculator(){
+        return isSpeculative() ? speculator : null;
+    }
+
+    public boolean isTolerant(){
+        return Boolean.parseBoolean(format.get("tolerant"));
+    }
+
+    /**
+     * @param quarantine where tolerant mode writes malformed records; takes precedence over the
+     *                   <i>quarantine</i> attribute. Flushed, but not closed, when the reader is closed.
+     */
+    public void setQuarantine(OutputStream quarantine){
+        this.quarantine = quarantine;
+        quarantineOwned = false;
+    }
+
+    /**
+     * @return number of malformed records skipped in tolerant mode since the reader was opened
+     */
+    public long getParseErrors(){
+        return parseErrors;
+    }
+
+    public boolean isDedup(){
+        return Boolean.parseBoolean(format.get("dedup"));
+    }
+
+    /**
+     * @return number of duplicate Records dropped since the reader was opened
+     */
+    public long getDuplicates(){
+        return deduplicator == null ? 0 : deduplicator.getDuplicates();
+    }
+
+    public boolean isReadAhead(){
+        return Boolean.parseBoolean(format.get("readAhead"));
+    }
+
+    /**
+     * @return the read-ahead stream, with stall metrics, or null if read-ahead is not enabled.
+     */
+    public ReadAheadInputStream getReadAhead(){
+        return readAhead;
+    }
+
+    public boolean isStringCacheEnabled(){
+        return Boolean.parseBoolean(format.get("stringCache"));
+    }
+
+    /**
+     * @return the StringCache, with hit-rate statistics, or null if String caching is not enabled.
+     */
+    public StringCache getStringCache(){
+        return stringCache;
     }
 }
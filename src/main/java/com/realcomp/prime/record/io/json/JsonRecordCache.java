@@ -0,0 +1,367 @@
+package com.realcomp.prime.record.io.json;
+
+import com.realcomp.prime.schema.Schema;
+import com.realcomp.prime.schema.xml.XStreamFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A directory of parsed Records, so that an unchanged input need not be parsed again. See {@link CachedJsonReader}.
+ * <p/>
+ * An entry is keyed by the input's path, size and modification time, a fingerprint of its content, the schema and
+ * the reader's attributes. The fingerprint is a digest of the first, middle and last {@value #SAMPLE_SIZE} bytes
+ * of the input; hashing all of the input would cost as much I/O as parsing it.
+ * <p/>
+ * Entries are binary ({@link RecordCodec}) and read through memory-mapped segments. When the directory grows past
+ * <i>maxBytes</i>, the least recently used entries are deleted. Entries are written to a temporary file and
+ * renamed when complete, so concurrent readers never see a partial entry.
+ *
+ * @author krenfro
+ */
+public class JsonRecordCache{
+
+    private static final Logger logger = Logger.getLogger(JsonRecordCache.class.getName());
+
+    public static final int SAMPLE_SIZE = 64 * 1024;
+
+    static final long MAGIC = 0x5052494d45524543L; //PRIMEREC
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 24;
+    static final int SEGMENT_SIZE = 1 << 30;
+    private static final String SUFFIX = ".rec";
+
+    private final File directory;
+    private final long maxBytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param directory where entries are kept; created if necessary
+     * @param maxBytes max total size of the entries; 0 for no limit
+     * @throws IOException if the directory could not be created
+     */
+    public JsonRecordCache(File directory, long maxBytes) throws IOException{
+        if (directory == null){
+            throw new IllegalArgumentException("directory is null");
+        }
+        if (maxBytes < 0){
+            throw new IllegalArgumentException("maxBytes < 0");
+        }
+        Files.createDirectories(directory.toPath());
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param input the input file
+     * @param schema the schema the input is read with; may be null
+     * @param attributes the reader's attributes
+     * @return the key of the cache entry for the input
+     * @throws IOException if the input could not be read
+     */
+    public String key(File input, Schema schema, Map<String, String> attributes) throws IOException{
+        MessageDigest digest = sha256();
+        update(digest, input.getCanonicalPath());
+        update(digest, Long.toString(input.length()));
+        update(digest, Long.toString(input.lastModified()));
+        try (RandomAccessFile raf = new RandomAccessFile(input, "r")){
+            long length = raf.length();
+            byte[] sample = new byte[SAMPLE_SIZE];
+            for (long position : new long[]{0, length / 2, length - SAMPLE_SIZE}){
+                position = Math.max(0, position);
+                raf.seek(position);
+                int n = raf.read(sample);
+                if (n > 0){
+                    digest.update(sample, 0, n);
+                }
+            }
+        }
+        update(digest, schema == null ? "" : XStreamFactory.build(true).toXML(schema));
+        if (attributes != null){
+            for (Map.Entry<String, String> entry : new TreeMap<>(attributes).entrySet()){
+                update(digest, entry.getKey());
+                update(digest, entry.getValue());
+            }
+        }
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()){
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    private static MessageDigest sha256(){
+        try{
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException ex){
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static void update(MessageDigest digest, String s){
+        digest.update(s.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    /**
+     * @param key an entry's key
+     * @return the entry, or null if there is none
+     * @throws IOException
+     */
+    Entry get(String key) throws IOException{
+        File file = new File(directory, key + SUFFIX);
+        if (!file.isFile()){
+            misses.incrementAndGet();
+            return null;
+        }
+        try{
+            Entry entry = new Entry(file);
+            hits.incrementAndGet();
+            if (!file.setLastModified(System.currentTimeMillis())){
+                logger.log(Level.FINE, "Unable to touch {0}", file);
+            }
+            return entry;
+        }
+        catch (IOException ex){
+            logger.log(Level.WARNING, "Discarding invalid cache entry " + file, ex);
+            if (!file.delete()){
+                logger.log(Level.WARNING, "Unable to delete {0}", file);
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * @param key the key of the entry to write
+     * @return a writer for the entry. It is added to the cache when committed.
+     * @throws IOException
+     */
+    EntryWriter write(String key) throws IOException{
+        return new EntryWriter(key);
+    }
+
+    /**
+     * Delete the least recently used entries until the cache is no larger than <i>maxBytes</i>.
+     */
+    public void evict(){
+        if (maxBytes == 0){
+            return;
+        }
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null){
+            return;
+        }
+        long total = 0;
+        for (File file : files){
+            total += file.length();
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; i < files.length && total > maxBytes; i++){
+            long length = files[i].length();
+            if (files[i].delete()){
+                total -= length;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public File getDirectory(){
+        return directory;
+    }
+
+    public long getMaxBytes(){
+        return maxBytes;
+    }
+
+    public long getHits(){
+        return hits.get();
+    }
+
+    public long getMisses(){
+        return misses.get();
+    }
+
+    public long getEvictions(){
+        return evictions.get();
+    }
+
+    /**
+     * A complete cache entry, mapped for reading.
+     */
+    static class Entry{
+
+        private final MappedByteBuffer[] segments;
+        private final long count;
+
+        Entry(File file) throws IOException{
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")){
+                FileChannel channel = raf.getChannel();
+                long size = channel.size();
+                int segmentCount = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+                segments = new MappedByteBuffer[segmentCount];
+                for (int i = 0; i < segmentCount; i++){
+                    long start = (long) i * SEGMENT_SIZE;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+                }
+                if (size < HEADER_SIZE || segments[0].getLong(0) != MAGIC){
+                    throw new IOException("Not a record cache entry: " + file);
+                }
+                if (segments[0].getInt(8) != VERSION){
+                    throw new IOException("Unsupported record cache version " + segments[0].getInt(8) + ": " + file);
+                }
+                count = segments[0].getLong(16);
+            }
+        }
+
+        long getCount(){
+            return count;
+        }
+
+        /**
+         * @return the segments, each positioned at its first record
+         */
+        ByteBuffer[] getSegments(){
+            ByteBuffer[] buffers = new ByteBuffer[segments.length];
+            for (int i = 0; i < segments.length; i++){
+                buffers[i] = segments[i].duplicate();
+            }
+            buffers[0].position(HEADER_SIZE);
+            return buffers;
+        }
+    }
+
+    /**
+     * Writes an entry. Each record is a length followed by its encoding; no record spans a segment boundary,
+     * and a length of -1 marks the end of a segment's records.
+     */
+    class EntryWriter implements AutoCloseable{
+
+        private final String key;
+        private final File temp;
+        private final OutputStream out;
+        private final RecordCodec codec = new RecordCodec();
+        private long position;
+        private long count;
+        private boolean closed;
+
+        private EntryWriter(String key) throws IOException{
+            this.key = key;
+            temp = File.createTempFile(key, ".tmp", directory);
+            out = new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024);
+            out.write(new byte[HEADER_SIZE]);
+            position = HEADER_SIZE;
+        }
+
+        void write(Map<?, ?> map) throws IOException{
+            byte[] bytes = codec.encode(map);
+            int length = codec.getLength();
+            if (length + 8 > SEGMENT_SIZE){
+                throw new IOException("Record too large to cache: " + length + " bytes");
+            }
+            long remaining = SEGMENT_SIZE - position % SEGMENT_SIZE;
+            if (remaining < length + 4){
+                //no room in this segment; move to the next
+                if (remaining >= 4){
+                    writeInt(-1);
+                    remaining -= 4;
+                }
+                out.write(new byte[(int) remaining]);
+                position += remaining;
+            }
+            writeInt(length);
+            out.write(bytes, 0, length);
+            position += length;
+            count++;
+        }
+
+        private void writeInt(int value) throws IOException{
+            out.write(value >>> 24);
+            out.write(value >>> 16);
+            out.write(value >>> 8);
+            out.write(value);
+            position += 4;
+        }
+
+        /**
+         * Finish the entry and add it to the cache.
+         */
+        void commit() throws IOException{
+            if (closed){
+                throw new IllegalStateException("closed");
+            }
+            boolean committed = false;
+            try{
+                if (SEGMENT_SIZE - position % SEGMENT_SIZE >= 4){
+                    writeInt(-1);
+                }
+                out.close();
+                try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")){
+                    raf.writeLong(MAGIC);
+                    raf.writeInt(VERSION);
+                    raf.writeInt(0);
+                    raf.writeLong(count);
+                }
+                File file = new File(directory, key + SUFFIX);
+                try{
+                    Files.move(temp.toPath(), file.toPath(),
+                            StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                }
+                catch (AtomicMoveNotSupportedException ex){
+                    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                committed = true;
+            }
+            finally{
+                if (!committed){
+                    //discard the partial entry
+                    close();
+                }
+            }
+            closed = true;
+            evict();
+        }
+
+        /**
+         * Discard the entry, unless it was committed.
+         */
+        @Override
+        public void close(){
+            if (!closed){
+                closed = true;
+                try{
+                    out.close();
+                }
+                catch (IOException ex){
+                    logger.log(Level.FINE, null, ex);
+                }
+                if (!temp.delete()){
+                    logger.log(Level.WARNING, "Unable to delete {0}", temp);
+                }
+            }
+        }
+    }
+}
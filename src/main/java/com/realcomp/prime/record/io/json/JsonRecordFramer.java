@@ -0,0 +1,215 @@
+package com.realcomp.prime.record.io.json;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits newline-delimited JSON into the raw bytes of each record without parsing it, so that a malformed
+ * record can be set aside and reading resumed at the next one.
+ * <p/>
+ * A record ends at a newline outside of any object or array. A raw newline cannot appear in a valid JSON string,
+ * so a newline also ends any open string. A '{' at the start of a line while an earlier record is still open
+ * starts a new record; that keeps an unbalanced record from swallowing the rest of the input, and still allows
+ * pretty-printed records, whose nested objects are indented.
+ * <p/>
+ * Blank lines are skipped. The input must use an ASCII-compatible encoding such as UTF-8.
+ *
+ * @author krenfro
+ */
+class JsonRecordFramer{
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private byte[] buffer;
+    private int limit;
+    private int position;
+    private int start;
+    private long bufferOffset;
+    private boolean eof;
+
+    private int recordStart;
+    private int recordLength;
+
+    private int depth;
+    private boolean inString;
+    private boolean escape;
+    private boolean lineStart = true;
+
+    JsonRecordFramer(InputStream in){
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    JsonRecordFramer(InputStream in, int bufferSize){
+        if (in == null){
+            throw new IllegalArgumentException("in is null");
+        }
+        if (bufferSize < 1){
+            throw new IllegalArgumentException("bufferSize < 1");
+        }
+        this.in = in;
+        buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Advance to the next record.
+     *
+     * @return false at the end of the input
+     * @throws IOException
+     */
+    boolean next() throws IOException{
+        while (true){
+            if (!frame()){
+                return false;
+            }
+            if (!isBlank()){
+                return true;
+            }
+        }
+    }
+
+    private boolean frame() throws IOException{
+        while (true){
+            if (position == limit){
+                if (!fill()){
+                    if (start == limit){
+                        return false;
+                    }
+                    //last record has no trailing newline
+                    end(limit, limit);
+                    return true;
+                }
+            }
+
+            byte b = buffer[position++];
+            if (b == '\n'){
+                inString = false;
+                escape = false;
+                lineStart = true;
+                if (depth <= 0){
+                    end(position - 1, position);
+                    return true;
+                }
+                continue;
+            }
+            if (lineStart && b == '{' && depth > 0 && position - 1 > start){
+                //an unbalanced record; this line starts the next one
+                position--;
+                end(position, position);
+                return true;
+            }
+            lineStart = false;
+
+            if (inString){
+                if (escape){
+                    escape = false;
+                }
+                else if (b == '\\'){
+                    escape = true;
+                }
+                else if (b == '"'){
+                    inString = false;
+                }
+                continue;
+            }
+            switch (b){
+                case '"':
+                    inString = true;
+                    break;
+                case '{':
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    break;
+                default:
+            }
+        }
+    }
+
+    private void end(int recordEnd, int next){
+        while (recordEnd > start && isWhitespace(buffer[recordEnd - 1])){
+            recordEnd--;
+        }
+        recordStart = start;
+        recordLength = recordEnd - start;
+        start = next;
+        depth = 0;
+        inString = false;
+        escape = false;
+    }
+
+    private boolean fill() throws IOException{
+        if (eof){
+            return false;
+        }
+        if (start > 0){
+            //all of the buffer has been scanned; keep only the unfinished record
+            System.arraycopy(buffer, start, buffer, 0, limit - start);
+            bufferOffset += start;
+            limit -= start;
+            position -= start;
+            start = 0;
+        }
+        if (limit == buffer.length){
+            byte[] larger = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, larger, 0, limit);
+            buffer = larger;
+        }
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read == 0){
+            //the stream broke its contract; a single-byte read blocks until there is data or the end
+            int b = in.read();
+            if (b >= 0){
+                buffer[limit] = (byte) b;
+                read = 1;
+            }
+            else{
+                read = -1;
+            }
+        }
+        if (read < 0){
+            eof = true;
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    private boolean isBlank(){
+        for (int i = recordStart; i < recordStart + recordLength; i++){
+            if (!isWhitespace(buffer[i])){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(byte b){
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    /**
+     * @return buffer holding the current record; valid until the next call to {@link #next()}
+     */
+    byte[] getBuffer(){
+        return buffer;
+    }
+
+    int getRecordStart(){
+        return recordStart;
+    }
+
+    int getRecordLength(){
+        return recordLength;
+    }
+
+    /**
+     * @return byte offset of the current record in the input
+     */
+    long getRecordOffset(){
+        return bufferOffset + recordStart;
+    }
+}
@@ -0,0 +1,180 @@
+package com.realcomp.prime.record.io.json;
+
+import com.realcomp.prime.record.Record;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A reactive-streams Publisher of the Records read by an open JsonReader. Records are parsed only as fast
+ * as the Subscriber requests them, on the specified Executor, which may be bounded or create virtual threads.
+ * No thread is held while there is no outstanding demand.
+ * <p/>
+ * The Publisher has no buffer of its own. If the reader has a {@link MemoryBudget}, each Record holds its size
+ * only until the next Record is read, so Records that the Subscriber keeps after onNext are not accounted; bound
+ * them by the demand the Subscriber requests.
+ * <p/>
+ * Supports a single Subscriber. The reader is closed when the input is exhausted, on error, or on cancel.
+ *
+ * @author krenfro
+ */
+public class JsonRecordPublisher implements Publisher<Record>{
+
+    private static final Logger logger = Logger.getLogger(JsonRecordPublisher.class.getName());
+
+    private final JsonReader reader;
+    private final Executor executor;
+    private final AtomicBoolean subscribed;
+
+    /**
+     * @param reader an open reader
+     * @param executor runs the parsing
+     */
+    public JsonRecordPublisher(JsonReader reader, Executor executor){
+        if (reader == null){
+            throw new IllegalArgumentException("reader is null");
+        }
+        if (executor == null){
+            throw new IllegalArgumentException("executor is null");
+        }
+        this.reader = reader;
+        this.executor = executor;
+        subscribed = new AtomicBoolean();
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super Record> subscriber){
+        if (subscriber == null){
+            throw new NullPointerException("subscriber is null");
+        }
+        if (subscribed.compareAndSet(false, true)){
+            subscriber.onSubscribe(new RecordSubscription(subscriber));
+        }
+        else{
+            subscriber.onSubscribe(new Subscription(){
+                @Override
+                public void request(long n){
+                }
+
+                @Override
+                public void cancel(){
+                }
+            });
+            subscriber.onError(new IllegalStateException("JsonRecordPublisher supports only one Subscriber"));
+        }
+    }
+
+    private void closeReader(){
+        try{
+            reader.close();
+        }
+        catch (IOException ex){
+            logger.log(Level.WARNING, null, ex);
+        }
+    }
+
+    private class RecordSubscription implements Subscription, Runnable{
+
+        private final Subscriber<? super Record> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable invalidRequest;
+        private boolean done;
+
+        RecordSubscription(Subscriber<? super Record> subscriber){
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n){
+            if (n <= 0){
+                invalidRequest = new IllegalArgumentException("request must be positive: " + n);
+            }
+            else{
+                long current;
+                long next;
+                do{
+                    current = demand.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                }while (!demand.compareAndSet(current, next));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel(){
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule(){
+            if (pending.getAndIncrement() == 0){
+                executor.execute(this);
+            }
+        }
+
+        /**
+         * Emit Records while there is demand. Only one thread runs this at a time.
+         */
+        @Override
+        public void run(){
+            int missed = 1;
+            do{
+                if (done){
+                    return;
+                }
+                long requested = demand.get();
+                long emitted = 0;
+                while (emitted != requested && !cancelled && invalidRequest == null){
+                    Record record;
+                    try{
+                        record = reader.read();
+                    }
+                    catch (Exception ex){
+                        terminate(ex);
+                        return;
+                    }
+                    if (record == null){
+                        terminate(null);
+                        return;
+                    }
+                    subscriber.onNext(record);
+                    emitted++;
+                }
+                if (cancelled){
+                    done = true;
+                    closeReader();
+                    return;
+                }
+                if (invalidRequest != null){
+                    terminate(invalidRequest);
+                    return;
+                }
+                if (emitted != 0 && requested != Long.MAX_VALUE){
+                    demand.addAndGet(-emitted);
+                }
+                missed = pending.addAndGet(-missed);
+            }while (missed != 0);
+        }
+
+        private void terminate(Throwable error){
+            done = true;
+            closeReader();
+            if (error == null){
+                subscriber.onComplete();
+            }
+            else{
+                subscriber.onError(error);
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.realcomp.prime.record.io.json;
+
+/**
+ * Finds record boundaries in JSON bytes without parsing values, by tracking only quotes, escapes and
+ * bracket depth.
+ * <p/>
+ * A record is a top-level object, or an object element of the top-level array(s) the input starts with.
+ * The input must use an ASCII-compatible encoding such as UTF-8. The scanner is stateful, so a record
+ * may span any number of buffers.
+ *
+ * @author krenfro
+ */
+class JsonRecordScanner{
+
+    private int depth;
+    private int recordDepth = -1;
+    private boolean inRecord;
+    private boolean inString;
+    private boolean escape;
+
+    /**
+     * @param buffer bytes to scan
+     * @param from first byte to scan
+     * @param to end of the bytes to scan (exclusive)
+     * @return position just after the end of the first record that ends in the range, or -1 if none does.
+     */
+    int findRecordEnd(byte[] buffer, int from, int to){
+        for (int i = from; i < to; i++){
+            byte b = buffer[i];
+            if (inString){
+                if (escape){
+                    escape = false;
+                }
+                else if (b == '\\'){
+                    escape = true;
+                }
+                else if (b == '"'){
+                    inString = false;
+                }
+                continue;
+            }
+
+            switch (b){
+                case '"':
+                    inString = true;
+                    break;
+                case '{':
+                    if (recordDepth < 0){
+                        recordDepth = depth;
+                    }
+                    if (depth == recordDepth){
+                        inRecord = true;
+                    }
+                    depth++;
+                    break;
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                    depth--;
+                    if (inRecord && depth == recordDepth){
+                        inRecord = false;
+                        return i + 1;
+                    }
+                    break;
+                case ']':
+                    depth--;
+                    break;
+                default:
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return number of top-level arrays enclosing the records; -1 if no record has been seen.
+     */
+    int getRecordDepth(){
+        return recordDepth;
+    }
+
+    /**
+     * @return number of brackets and braces open at the last byte scanned
+     */
+    int getDepth(){
+        return depth;
+    }
+
+    boolean isInRecord(){
+        return inRecord;
+    }
+}
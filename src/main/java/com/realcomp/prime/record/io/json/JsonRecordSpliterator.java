@@ -0,0 +1,238 @@
+package com.realcomp.prime.record.io.json;
+
+import com.realcomp.prime.conversion.ConversionException;
+import com.realcomp.prime.record.Record;
+import com.realcomp.prime.record.io.IOContext;
+import com.realcomp.prime.record.io.IOContextBuilder;
+import com.realcomp.prime.schema.SchemaException;
+import com.realcomp.prime.validation.ValidationException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A Spliterator over the Records of a JsonReader.
+ * <p/>
+ * When built over a newline-delimited JSON file, the Spliterator can be split at record (line) boundaries
+ * before it is traversed, and each part is read by its own JsonReader over its own byte range of the file.
+ * Each reader is closed once it is exhausted; {@link #close()} closes every reader still open, in this
+ * Spliterator and the parts split from it.
+ *
+ * @author krenfro
+ */
+class JsonRecordSpliterator implements Spliterator<Record>, AutoCloseable{
+
+    private static final Logger logger = Logger.getLogger(JsonRecordSpliterator.class.getName());
+
+    static final long MIN_SPLIT_SIZE = 1024 * 1024;
+
+    private final File file;
+    private final IOContext template;
+    private final Queue<AutoCloseable> opened;
+    private long start;
+    private long end;
+    private JsonReader reader;
+    private InputStream in;
+    private boolean done;
+
+    /**
+     * Traverse an open reader. Not splittable.
+     */
+    JsonRecordSpliterator(JsonReader reader){
+        this.reader = reader;
+        file = null;
+        template = null;
+        opened = new ConcurrentLinkedQueue<>();
+        opened.add(reader);
+    }
+
+    /**
+     * Traverse a newline-delimited JSON file.
+     *
+     * @param template IOContext providing the schema and attributes for each part's reader
+     */
+    JsonRecordSpliterator(File file, IOContext template){
+        this(file, template, 0, file.length(), new ConcurrentLinkedQueue<AutoCloseable>());
+    }
+
+    private JsonRecordSpliterator(File file, IOContext template, long start, long end, Queue<AutoCloseable> opened){
+        this.file = file;
+        this.template = template;
+        this.start = start;
+        this.end = end;
+        this.opened = opened;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Record> action){
+        if (done){
+            return false;
+        }
+        try{
+            if (reader == null){
+                open();
+            }
+            Record record = reader.read();
+            if (record == null){
+                done = true;
+                finish();
+                return false;
+            }
+            action.accept(record);
+            return true;
+        }
+        catch (IOException ex){
+            throw new UncheckedIOException(ex);
+        }
+        catch (ValidationException | ConversionException | SchemaException ex){
+            throw new UncheckedRecordException(ex);
+        }
+    }
+
+    /**
+     * Release the reader, and what it reads from, as soon as it is exhausted rather than when the Stream is closed.
+     * An open reader is closed with its IOContext; a part's reader is closed with its byte range of the file.
+     */
+    private void finish() throws IOException{
+        opened.remove(reader);
+        if (file == null){
+            reader.close();
+        }
+        else{
+            opened.remove(in);
+            try{
+                reader.close(false);
+            }
+            finally{
+                in.close();
+            }
+        }
+    }
+
+    private void open() throws IOException, SchemaException{
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        channel.position(start);
+        in = new RangeInputStream(channel, end - start);
+        opened.add(in);
+        reader = new JsonReader();
+        opened.add(reader);
+        reader.open(new IOContextBuilder(template).in(in).build());
+    }
+
+    @Override
+    public Spliterator<Record> trySplit(){
+        if (file == null || reader != null || end - start < MIN_SPLIT_SIZE * 2){
+            return null;
+        }
+        try{
+            long boundary = findBoundary(start + (end - start) / 2);
+            if (boundary >= end){
+                return null;
+            }
+            JsonRecordSpliterator prefix = new JsonRecordSpliterator(file, template, start, boundary, opened);
+            start = boundary;
+            return prefix;
+        }
+        catch (IOException ex){
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * @return the position after the first newline at or after <i>position</i>, or the end of the file.
+     */
+    private long findBoundary(long position) throws IOException{
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            channel.position(position);
+            int read;
+            while ((read = channel.read(buffer)) > 0){
+                buffer.flip();
+                for (int i = 0; i < read; i++){
+                    if (buffer.get(i) == '\n'){
+                        return position + i + 1;
+                    }
+                }
+                position += read;
+                buffer.clear();
+            }
+            return channel.size();
+        }
+    }
+
+    @Override
+    public long estimateSize(){
+        return file == null ? Long.MAX_VALUE : end - start;
+    }
+
+    @Override
+    public int characteristics(){
+        return ORDERED | NONNULL;
+    }
+
+    @Override
+    public void close(){
+        AutoCloseable closeable;
+        while ((closeable = opened.poll()) != null){
+            try{
+                if (closeable instanceof JsonReader && file != null){
+                    ((JsonReader) closeable).close(false);
+                }
+                else{
+                    closeable.close();
+                }
+            }
+            catch (Exception ex){
+                logger.log(Level.WARNING, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Reads at most <i>length</i> bytes of a FileChannel from its current position.
+     */
+    private static class RangeInputStream extends InputStream{
+
+        private final FileChannel channel;
+        private long remaining;
+
+        RangeInputStream(FileChannel channel, long length){
+            this.channel = channel;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException{
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException{
+            if (remaining <= 0){
+                return -1;
+            }
+            int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)));
+            if (read > 0){
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException{
+            channel.close();
+        }
+    }
+}
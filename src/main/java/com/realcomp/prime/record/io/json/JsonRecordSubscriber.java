@@ -0,0 +1,175 @@
+package com.realcomp.prime.record.io.json;
+
+import com.realcomp.prime.record.Record;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A reactive-streams Subscriber that writes Records with an open JsonWriter. Records are requested
+ * <i>batchSize</i> at a time, and the writer is flushed at each batch boundary.
+ * <p/>
+ * Writing runs on the specified Executor, which may be bounded or create virtual threads; by default it runs
+ * on the thread delivering the Records. The writer is closed when the stream completes or fails, and
+ * {@link #getCompletion()} then completes with the number of Records written, or with the failure.
+ *
+ * @author krenfro
+ */
+public class JsonRecordSubscriber implements Subscriber<Record>, Runnable{
+
+    private static final Logger logger = Logger.getLogger(JsonRecordSubscriber.class.getName());
+
+    private final JsonWriter writer;
+    private final int batchSize;
+    private final Executor executor;
+    private final Queue<Record> queue;
+    private final AtomicInteger pending;
+    private final CompletableFuture<Long> completion;
+
+    private Subscription subscription;
+    private volatile boolean complete;
+    private volatile Throwable error;
+    private boolean done;
+    private int received;
+    private long written;
+
+    public JsonRecordSubscriber(JsonWriter writer, int batchSize){
+        this(writer, batchSize, new Executor(){
+            @Override
+            public void execute(Runnable command){
+                command.run();
+            }
+        });
+    }
+
+    /**
+     * @param writer an open writer
+     * @param batchSize number of Records to request at a time
+     * @param executor runs the writing
+     */
+    public JsonRecordSubscriber(JsonWriter writer, int batchSize, Executor executor){
+        if (writer == null){
+            throw new IllegalArgumentException("writer is null");
+        }
+        if (batchSize < 1){
+            throw new IllegalArgumentException("batchSize < 1");
+        }
+        if (executor == null){
+            throw new IllegalArgumentException("executor is null");
+        }
+        this.writer = writer;
+        this.batchSize = batchSize;
+        this.executor = executor;
+        queue = new ConcurrentLinkedQueue<>();
+        pending = new AtomicInteger();
+        completion = new CompletableFuture<>();
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription){
+        if (subscription == null){
+            throw new NullPointerException("subscription is null");
+        }
+        if (this.subscription != null){
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        subscription.request(batchSize);
+    }
+
+    @Override
+    public void onNext(Record record){
+        if (record == null){
+            throw new NullPointerException("record is null");
+        }
+        queue.offer(record);
+        schedule();
+    }
+
+    @Override
+    public void onError(Throwable throwable){
+        if (throwable == null){
+            throw new NullPointerException("throwable is null");
+        }
+        error = throwable;
+        schedule();
+    }
+
+    @Override
+    public void onComplete(){
+        complete = true;
+        schedule();
+    }
+
+    private void schedule(){
+        if (pending.getAndIncrement() == 0){
+            executor.execute(this);
+        }
+    }
+
+    /**
+     * Write queued Records. Only one thread runs this at a time.
+     */
+    @Override
+    public void run(){
+        int missed = 1;
+        do{
+            Record record;
+            while (!done && (record = queue.poll()) != null){
+                try{
+                    writer.write(record);
+                    written++;
+                    if (++received == batchSize){
+                        received = 0;
+                        writer.flush();
+                        subscription.request(batchSize);
+                    }
+                }
+                catch (Exception ex){
+                    subscription.cancel();
+                    finish(ex);
+                }
+            }
+            if (!done && queue.isEmpty() && (complete || error != null)){
+                finish(error);
+            }
+            missed = pending.addAndGet(-missed);
+        }while (missed != 0);
+    }
+
+    private void finish(Throwable failure){
+        done = true;
+        queue.clear();
+        try{
+            writer.close();
+        }
+        catch (IOException ex){
+            logger.log(Level.WARNING, null, ex);
+            if (failure == null){
+                failure = ex;
+            }
+        }
+        if (failure == null){
+            completion.complete(written);
+        }
+        else{
+            completion.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * @return completes with the number of Records written once the stream has completed and the writer is closed
+     */
+    public CompletableFuture<Long> getCompletion(){
+        return completion;
+    }
+}
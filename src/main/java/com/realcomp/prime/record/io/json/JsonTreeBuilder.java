@@ -0,0 +1,496 @@
+package com.realcomp.prime.record.io.json;
+
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.realcomp.prime.schema.FieldList;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Builds the Map for one JSON object from a JsonParser with an explicit stack instead of recursion,
+ * so deeply nested input cannot overflow the thread's stack.
+ * <p/>
+ * Optional limits on nesting depth, entries per object or array, and length of the object are enforced
+ * while building. When a limit is exceeded the rest of the object is skipped, without building it, and a
+ * {@link JsonLimitException} is thrown; the parser is left positioned after the object.
+ * <p/>
+ * Spilled values are tracked until {@link #deleteSpilled()} or {@link #detachSpilled()}.
+ * <p/>
+ * Not thread-safe.
+ *
+ * @author krenfro
+ */
+class JsonTreeBuilder{
+
+    private static final Logger logger = Logger.getLogger(JsonTreeBuilder.class.getName());
+
+    /* the document length is checked every LENGTH_CHECK_INTERVAL tokens, as finding the location allocates */
+    private static final int LENGTH_CHECK_INTERVAL = 64;
+
+    private int maxDepth;
+    private int maxObjectSize;
+    private long maxDocumentBytes;
+
+    private long spillThreshold;
+    private File spillDirectory;
+
+    private final List<SpilledString> spilled = new ArrayList<>();
+
+    private StringCache stringCache;
+    private boolean cacheAllStrings;
+    private Set<String> stringCacheFields = Collections.emptySet();
+
+    private FieldOrderSpeculator speculator;
+    private boolean learning;
+    private final List<String> learnedNames = new ArrayList<>();
+    private final List<JsonToken> learnedTokens = new ArrayList<>();
+
+    private Object[] containers = new Object[16];
+    private String[] names = new String[16];
+    private int[] sizes = new int[16];
+    private int depth;
+    private int tokens;
+
+    /**
+     * @param maxDepth max nesting depth of objects and arrays; 0 for no limit
+     * @param maxObjectSize max number of entries in any object or array; 0 for no limit
+     * @param maxDocumentBytes max length, in bytes (or chars for character input) of an object; 0 for no limit
+     */
+    void setLimits(int maxDepth, int maxObjectSize, long maxDocumentBytes){
+        this.maxDepth = maxDepth;
+        this.maxObjectSize = maxObjectSize;
+        this.maxDocumentBytes = maxDocumentBytes;
+    }
+
+    /**
+     * The parser decodes a String value in full before its length can be checked, so a spilled value is still
+     * held in memory until it is written to the file.
+     *
+     * @param spillThreshold String values longer than this many chars are spilled to a file; 0 to never spill
+     * @param spillDirectory where to create spill files; null for the default temporary directory
+     */
+    void setSpill(long spillThreshold, File spillDirectory){
+        this.spillThreshold = spillThreshold;
+        this.spillDirectory = spillDirectory;
+    }
+
+    private SpilledString spill(JsonParser parser) throws IOException{
+        SpilledString value = SpilledString.spill(parser, spillDirectory);
+        spilled.add(value);
+        return value;
+    }
+
+    /**
+     * Delete the files of the values spilled since the last call.
+     */
+    void deleteSpilled(){
+        for (SpilledString value : spilled){
+            if (!value.delete() && value.getFile().exists()){
+                logger.log(Level.WARNING, "Unable to delete {0}", value.getFile());
+            }
+        }
+        spilled.clear();
+    }
+
+    /**
+     * Stop tracking the values spilled since the last call. The caller becomes responsible for deleting them.
+     *
+     * @return the values
+     */
+    List<SpilledString> detachSpilled(){
+        if (spilled.isEmpty()){
+            return Collections.emptyList();
+        }
+        List<SpilledString> detached = new ArrayList<>(spilled);
+        spilled.clear();
+        return detached;
+    }
+
+    void setStringCache(StringCache stringCache, boolean cacheAllStrings, Set<String> stringCacheFields){
+        this.stringCache = stringCache;
+        this.cacheAllStrings = cacheAllStrings;
+        this.stringCacheFields = stringCacheFields == null ? Collections.<String>emptySet() : stringCacheFields;
+    }
+
+    /**
+     * @param speculator decodes top-level fields speculatively in records built with
+     *                   {@link #build(JsonParser, Discriminator)}; null to disable
+     */
+    void setSpeculator(FieldOrderSpeculator speculator){
+        this.speculator = speculator;
+    }
+
+    /**
+     * Build the object at the parser's current START_OBJECT token.
+     *
+     * @return the object, or null if the parser is not at the start of an object
+     * @throws JsonLimitException if a limit is exceeded
+     * @throws IOException
+     */
+    Map build(JsonParser parser) throws IOException{
+        if (parser.getCurrentToken() != JsonToken.START_OBJECT){
+            return null;
+        }
+        return (Map) build(parser, new HashMap(), null, false);
+    }
+
+    /**
+     * Build the object at the parser's current START_OBJECT token. Once the discriminator field is seen, the
+     * remaining top-level fields outside the projection of its FieldList are skipped without being built.
+     * Without a discriminator, the top-level fields are decoded speculatively if a {@link FieldOrderSpeculator}
+     * is set.
+     *
+     * @param discriminator chooses the FieldList; may be null
+     * @return the object, or null if the parser is not at the start of an object
+     * @throws JsonLimitException if a limit is exceeded
+     * @throws IOException
+     */
+    Map build(JsonParser parser, Discriminator discriminator) throws IOException{
+        if (parser.getCurrentToken() != JsonToken.START_OBJECT){
+            return null;
+        }
+        return (Map) build(parser, new HashMap(), discriminator, speculator != null && discriminator == null);
+    }
+
+    /**
+     * Build the array at the parser's current START_ARRAY token.
+     *
+     * @return the array, or null if the parser is not at the start of an array
+     * @throws JsonLimitException if a limit is exceeded
+     * @throws IOException
+     */
+    List buildList(JsonParser parser) throws IOException{
+        if (parser.getCurrentToken() != JsonToken.START_ARRAY){
+            return null;
+        }
+        return (List) build(parser, new ArrayList(), null, false);
+    }
+
+    private Object build(JsonParser parser, Object root, Discriminator discriminator, boolean speculate)
+            throws IOException{
+        long start = maxDocumentBytes > 0 ? offset(parser.getTokenLocation()) : 0;
+        depth = 0;
+        tokens = 0;
+        push(root, null);
+
+        try{
+            if (speculate){
+                speculate(parser, (Map) root, start);
+            }
+            else{
+                run(parser, start, 0, discriminator);
+            }
+            if (maxDocumentBytes > 0){
+                checkLength(parser, start);
+            }
+        }
+        catch (JsonLimitException ex){
+            skipRemaining(parser);
+            throw ex;
+        }
+        finally{
+            Arrays.fill(containers, 0, containers.length, null);
+        }
+
+        return root;
+    }
+
+    /**
+     * Build generically until the depth drops to <i>stopDepth</i>.
+     */
+    private void run(JsonParser parser, long start, int stopDepth, Discriminator discriminator) throws IOException{
+        Set<String> projection = null;
+        while (depth > stopDepth){
+            JsonToken token = parser.nextToken();
+            if (token == null){
+                throw new JsonParseException(parser, "Unexpected end-of-input within object");
+            }
+            if (maxDocumentBytes > 0 && ++tokens % LENGTH_CHECK_INTERVAL == 0){
+                checkLength(parser, start);
+            }
+
+            if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY){
+                depth--;
+                containers[depth] = null;
+                continue;
+            }
+            if (token == JsonToken.FIELD_NAME){
+                continue;
+            }
+
+            Object container = containers[depth - 1];
+            String name = container instanceof Map ? parser.getCurrentName() : names[depth - 1];
+            if (learning && depth == 1){
+                learnedNames.add(name);
+                learnedTokens.add(token);
+            }
+            if (projection != null && depth == 1 && !projection.contains(name)){
+                //not needed by the FieldList; skip without building
+                if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY){
+                    parser.skipChildren();
+                }
+                continue;
+            }
+            if (maxObjectSize > 0 && ++sizes[depth - 1] > maxObjectSize){
+                throw limit("Object or array exceeds " + maxObjectSize + " entries", parser);
+            }
+
+            if ((token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY)
+                    && maxDepth > 0 && depth >= maxDepth){
+                throw limit("Nesting depth exceeds " + maxDepth, parser);
+            }
+
+            if (token == JsonToken.START_OBJECT){
+                Map map = new HashMap();
+                add(container, name, map);
+                push(map, name);
+            }
+            else if (token == JsonToken.START_ARRAY){
+                List list = new ArrayList();
+                add(container, name, list);
+                push(list, name);
+            }
+            else{
+                Object value = getValue(parser, token, name);
+                if (value != null){
+                    add(container, name, value);
+                    if (discriminator != null && projection == null && depth == 1
+                            && name.equals(discriminator.getField())){
+                        FieldList fields = discriminator.get(value);
+                        projection = fields == null ? null : discriminator.getProjection(fields);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Build the top-level fields expecting the speculator's layout. On the first difference the rest of the
+     * object is built generically.
+     */
+    private void speculate(JsonParser parser, Map root, long start) throws IOException{
+        if (speculator.isLearning()){
+            learnedNames.clear();
+            learnedTokens.clear();
+            learning = true;
+            try{
+                run(parser, start, 0, null);
+            }
+            finally{
+                learning = false;
+            }
+            speculator.learn(learnedNames, learnedTokens);
+            return;
+        }
+
+        boolean hit = true;
+        int count = speculator.getFieldCount();
+        for (int i = 0; i < count; i++){
+            if (!parser.nextFieldName(speculator.getName(i))){
+                speculator.miss();
+                if (parser.getCurrentToken() == JsonToken.END_OBJECT){
+                    //fewer fields than expected
+                    depth = 0;
+                }
+                else{
+                    //a different key; the generic path reads its value next
+                    run(parser, start, 0, null);
+                }
+                return;
+            }
+            JsonToken token = parser.nextToken();
+            if (token == null){
+                throw new JsonParseException(parser, "Unexpected end-of-input within object");
+            }
+            if (maxDocumentBytes > 0 && ++tokens % LENGTH_CHECK_INTERVAL == 0){
+                checkLength(parser, start);
+            }
+            if (maxObjectSize > 0 && ++sizes[0] > maxObjectSize){
+                throw limit("Object or array exceeds " + maxObjectSize + " entries", parser);
+            }
+
+            String name = speculator.getNameString(i);
+            int kind = speculator.getKind(i);
+            if (kind != FieldOrderSpeculator.kind(token)){
+                hit = false;
+            }
+            switch (kind == FieldOrderSpeculator.kind(token) ? kind : FieldOrderSpeculator.OTHER){
+                case FieldOrderSpeculator.STRING:
+                    if (spillThreshold > 0 && parser.getTextLength() > spillThreshold){
+                        root.put(name, spill(parser));
+                    }
+                    else{
+                        root.put(name, getText(parser, name));
+                    }
+                    break;
+                case FieldOrderSpeculator.INTEGER:
+                    root.put(name, parser.getNumberType() == JsonParser.NumberType.INT
+                            ? Integer.valueOf(parser.getIntValue())
+                            : getValue(parser, token, name));
+                    break;
+                case FieldOrderSpeculator.BOOLEAN:
+                    root.put(name, token == JsonToken.VALUE_TRUE ? Boolean.TRUE : Boolean.FALSE);
+                    break;
+                default:
+                    buildValue(parser, token, root, name, start);
+            }
+        }
+
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.END_OBJECT){
+            depth = 0;
+        }
+        else if (token == JsonToken.FIELD_NAME){
+            //more fields than expected
+            hit = false;
+            run(parser, start, 0, null);
+        }
+        else{
+            throw new JsonParseException(parser, "Unexpected token " + token + " within object");
+        }
+        if (hit){
+            speculator.hit();
+        }
+        else{
+            speculator.miss();
+        }
+    }
+
+    /**
+     * Build the value of the current token into a top-level field.
+     */
+    private void buildValue(JsonParser parser, JsonToken token, Map root, String name, long start) throws IOException{
+        if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY){
+            if (maxDepth > 0 && depth >= maxDepth){
+                throw limit("Nesting depth exceeds " + maxDepth, parser);
+            }
+            Object container = token == JsonToken.START_OBJECT ? new HashMap() : new ArrayList();
+            root.put(name, container);
+            push(container, name);
+            run(parser, start, 1, null);
+        }
+        else{
+            Object value = getValue(parser, token, name);
+            if (value != null){
+                root.put(name, value);
+            }
+        }
+    }
+
+    /**
+     * @return the value of the current scalar token, or null for a JSON null.
+     */
+    Object getValue(JsonParser parser, JsonToken token, String name) throws IOException{
+        switch (token){
+            case VALUE_STRING:
+                //TODO: charset being used!
+                if (spillThreshold > 0 && parser.getTextLength() > spillThreshold){
+                    return spill(parser);
+                }
+                return getText(parser, name);
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_NUMBER_FLOAT:
+                try{
+                    return Float.valueOf(parser.getFloatValue());
+                }
+                catch (JsonParseException ex){
+                    return Double.valueOf(parser.getDoubleValue());
+                }
+            case VALUE_NUMBER_INT:
+                try{
+                    return Integer.valueOf(parser.getIntValue());
+                }
+                catch (JsonParseException ex){
+                    return Long.valueOf(parser.getLongValue());
+                }
+            default:
+                //null, embedded objects
+                return null;
+        }
+    }
+
+    /**
+     * @param name the field the current String value belongs to
+     * @return the text of the current String value, from the StringCache if caching is enabled for the field.
+     */
+    String getText(JsonParser parser, String name) throws IOException{
+        if (stringCache != null && (cacheAllStrings || stringCacheFields.contains(name))){
+            return stringCache.get(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+        }
+        return parser.getText();
+    }
+
+    private void add(Object container, String name, Object value){
+        if (container instanceof Map){
+            ((Map) container).put(name, value);
+        }
+        else{
+            ((List) container).add(value);
+        }
+    }
+
+    private void push(Object container, String name){
+        if (depth == containers.length){
+            containers = Arrays.copyOf(containers, depth * 2);
+            names = Arrays.copyOf(names, depth * 2);
+            sizes = Arrays.copyOf(sizes, depth * 2);
+        }
+        containers[depth] = container;
+        names[depth] = name;
+        sizes[depth] = 0;
+        depth++;
+    }
+
+    private void checkLength(JsonParser parser, long start) throws JsonLimitException{
+        if (offset(parser.getCurrentLocation()) - start > maxDocumentBytes){
+            throw limit("Object exceeds " + maxDocumentBytes + " bytes", parser);
+        }
+    }
+
+    /**
+     * Consume the rest of the object being built, without building it.
+     */
+    private void skipRemaining(JsonParser parser) throws IOException{
+        JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY){
+            //limits are checked before a container is pushed
+            parser.skipChildren();
+        }
+        while (depth > 0){
+            token = parser.nextToken();
+            if (token == null){
+                break;
+            }
+            if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY){
+                parser.skipChildren();
+            }
+            else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY){
+                depth--;
+            }
+        }
+        depth = 0;
+    }
+
+    private static JsonLimitException limit(String message, JsonParser parser){
+        return new JsonLimitException(message, parser.getCurrentLocation());
+    }
+
+    private static long offset(JsonLocation location){
+        return location.getByteOffset() >= 0 ? location.getByteOffset() : location.getCharOffset();
+    }
+}
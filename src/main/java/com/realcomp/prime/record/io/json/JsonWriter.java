@@ -3,6 +3,7 @@ package com.realcomp.prime.record.io.json;
 import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
 import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
 import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
 import com.realcomp.prime.DataType;
@@ -14,6 +15,7 @@ import com.realcomp.prime.record.io.IOContext;
 import com.realcomp.prime.record.io.RecordWriter;
 import com.realcomp.prime.schema.Field;
 import com.realcomp.prime.schema.FieldList;
+import com.realcomp.prime.schema.Schema;
 import com.realcomp.prime.schema.SchemaException;
 import com.realcomp.prime.transform.TransformContext;
 import com.realcomp.prime.transform.Transformer;
@@ -21,15 +23,44 @@ import com.realcomp.prime.transform.ValueSurgeon;
 import com.realcomp.prime.validation.RecordValidationException;
 import com.realcomp.prime.validation.ValidationException;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-
+/**
+ * Writes Records as JSON; one object per line, or a single array if the <i>singleObject</i> attribute is set.
+ * <p/>
+ * By default the output is the IOContext's OutputStream. Set the <i>channel</i> attribute to write through the
+ * FileChannel of a FileOutputStream, or specify any WritableByteChannel with {@link #setChannel}. Channel output
+ * is serialized into pooled direct ByteBuffers of <i>channelBufferSize</i> bytes that are handed to the channel
+ * <i>channelGather</i> at a time with a gathering write. A FileChannel is forced to disk every
+ * <i>syncInterval</i> bytes, if specified.
+ * <p/>
+ * Set the <i>dedup</i> attribute to skip Records whose <i>dedupFields</i> (or whole content, if no fields are
+ * listed) were already written. Fields are compared after the schema's operations run.
+ * See {@link RecordDeduplicator} for the <i>dedupCapacity</i>, <i>dedupMaxCapacity</i>,
+ * <i>dedupBloomFilterBits</i> and <i>dedupSpillDirectory</i> attributes.
+ * <p/>
+ * For a schema with several FieldLists, set the <i>discriminator</i> attribute to the name of a field whose value
+ * selects the FieldList with a hash lookup instead of the schema's classifiers. See {@link Discriminator}.
+ * <p/>
+ * {@link SpilledString} values are streamed from their files without being loaded.
+ * <p/>
+ * A writer may be reused for another output with {@link #reset(IOContext)}, and writers may share a JsonFactory
+ * (see {@link JsonPool}).
+ *
+ * @author krenfro
+ */
 public class JsonWriter extends BaseRecordReaderWriter implements RecordWriter{
 
     private static final Logger logger = Logger.getLogger(JsonWriter.class.getName());
@@ -39,16 +70,42 @@ public class JsonWriter extends BaseRecordReaderWriter implements RecordWriter{
     protected Transformer transformer;
     protected TransformContext xCtx;
     protected ValueSurgeon surgeon;
+    protected WritableByteChannel channel;
+    protected ByteBufferPool bufferPool;
+    protected ChannelOutputStream channelOut;
+    protected Map<FieldList, Set<String>> fieldNamesCache = new IdentityHashMap<>();
+    protected RecordDeduplicator deduplicator;
+    protected Discriminator discriminator;
 
     public JsonWriter(){
+        this(new JsonFactory());
+    }
+
+    /**
+     * @param jsonFactory factory for generators; may be shared between writers. The factory is not modified.
+     */
+    public JsonWriter(JsonFactory jsonFactory){
 
         super();
+        if (jsonFactory == null){
+            throw new IllegalArgumentException("jsonFactory is null");
+        }
         format.putDefault("pretty", "false");
         format.putDefault("type", "JSON");
         format.putDefault("singleObject", "false");
-
-        jsonFactory = new JsonFactory();
-        jsonFactory.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        format.putDefault("channel", "false");
+        format.putDefault("channelBufferSize", Integer.toString(ByteBufferPool.DEFAULT_BUFFER_SIZE));
+        format.putDefault("channelGather", "4");
+        format.putDefault("syncInterval", "0");
+        format.putDefault("dedup", "false");
+        format.putDefault("dedupFields", "");
+        format.putDefault("dedupCapacity", Integer.toString(RecordDeduplicator.DEFAULT_CAPACITY));
+        format.putDefault("dedupMaxCapacity", "");
+        format.putDefault("dedupBloomFilterBits", "0");
+        format.putDefault("dedupSpillDirectory", "");
+        format.putDefault("discriminator", "");
+
+        this.jsonFactory = jsonFactory;
 
         transformer = new Transformer();
         xCtx = new TransformContext();
@@ -68,10 +125,13 @@ public class JsonWriter extends BaseRecordReaderWriter implements RecordWriter{
         try{
             if (schema != null){
                 //modify the record, performing all operations and keeping only the fields defined in the schema
-                FieldList fields = schema.classify(record);
+                FieldList fields = discriminator == null ? schema.classify(record) : discriminator.classify(schema, record);
                 transform(record, fields);
                 filterFields(record, fields);
             }
+            if (deduplicator != null && deduplicator.isDuplicate(record)){
+                return;
+            }
             writeJson(record.asSimpleMap());
         }
         catch(ValidationException ex){
@@ -104,9 +164,13 @@ public class JsonWriter extends BaseRecordReaderWriter implements RecordWriter{
 
     protected void filterFields(Record record, FieldList fields){
         Set<String> filter = new HashSet<>();
-        Set<String> keep = new HashSet<>();
-        for (Field field : fields){
-            keep.add(field.getName());
+        Set<String> keep = fieldNamesCache.get(fields);
+        if (keep == null){
+            keep = new HashSet<>();
+            for (Field field : fields){
+                keep.add(field.getName());
+            }
+            fieldNamesCache.put(fields, keep);
         }
         filter.addAll(record.keySet());
         filter.removeAll(keep);
@@ -132,6 +196,10 @@ public class JsonWriter extends BaseRecordReaderWriter implements RecordWriter{
             json.writeFieldName(name);
             json.writeNull();
         }
+        else if (value instanceof SpilledString){
+            json.writeFieldName(name);
+            writeJson((SpilledString) value);
+        }
         else{
             DataType type = DataType.getDataType(value);
             switch (type){
@@ -182,13 +250,115 @@ public class JsonWriter extends BaseRecordReaderWriter implements RecordWriter{
                 break;
             case LIST:
                 for (Object entry : (List) value){
-                    writeJson(entry, DataType.getDataType(entry));
+                    if (entry instanceof SpilledString){
+                        writeJson((SpilledString) entry);
+                    }
+                    else{
+                        writeJson(entry, DataType.getDataType(entry));
+                    }
                 }
                 break;
         }
     }
 
 
+    /**
+     * Flush buffered output to the underlying stream or channel.
+     */
+    public void flush() throws IOException{
+        if (json != null){
+            json.flush();
+        }
+        if (channelOut != null){
+            channelOut.flush();
+        }
+    }
+
+    /**
+     * Stream a spilled String value from its file, escaping it in chunks.
+     */
+    private void writeJson(SpilledString value) throws IOException{
+        JsonStringEncoder encoder = JsonStringEncoder.getInstance();
+        json.writeRawValue("\"");
+        try (Reader in = value.openReader()){
+            char[] buffer = new char[8192];
+            int carry = 0;
+            int read;
+            while ((read = in.read(buffer, carry, buffer.length - carry)) > 0){
+                int length = carry + read;
+                //never split a surrogate pair between chunks
+                carry = Character.isHighSurrogate(buffer[length - 1]) ? 1 : 0;
+                char[] escaped = encoder.quoteAsString(new String(buffer, 0, length - carry));
+                json.writeRaw(escaped, 0, escaped.length);
+                if (carry > 0){
+                    buffer[0] = buffer[length - 1];
+                }
+            }
+            if (carry > 0){
+                char[] escaped = encoder.quoteAsString(new String(buffer, 0, carry));
+                json.writeRaw(escaped, 0, escaped.length);
+            }
+        }
+        json.writeRaw('"');
+    }
+
+
+    /**
+     * Write a TypedRecord field by field from its slots, without building a Record. Schema operations
+     * are <i>not</i> run, and null fields are omitted.
+     *
+     * @param record the record
+     * @throws IOException
+     * @throws ValidationException
+     * @throws ConversionException
+     */
+    public void write(TypedRecord record) throws IOException, ValidationException, ConversionException{
+        if (record == null){
+            throw new IllegalArgumentException("record is null");
+        }
+        RecordLayout layout = record.getLayout();
+        json.writeStartObject();
+        for (int i = 0; i < layout.getFieldCount(); i++){
+            if (record.isNull(i)){
+                continue;
+            }
+            json.writeFieldName(layout.getName(i));
+            switch (layout.getType(i)){
+                case INTEGER:
+                case LONG:
+                    json.writeNumber(record.getLong(i));
+                    break;
+                case FLOAT:
+                    json.writeNumber(record.getFloat(i));
+                    break;
+                case DOUBLE:
+                    json.writeNumber(record.getDouble(i));
+                    break;
+                case BOOLEAN:
+                    json.writeBoolean(record.getBoolean(i));
+                    break;
+                default:
+                    Object value = record.get(i);
+                    if (value instanceof SpilledString){
+                        writeJson((SpilledString) value);
+                    }
+                    else if (value instanceof List){
+                        json.writeStartArray();
+                        writeJson(value, DataType.LIST);
+                        json.writeEndArray();
+                    }
+                    else{
+                        writeJson(value, DataType.getDataType(value));
+                    }
+            }
+        }
+        json.writeEndObject();
+        if (!isSingleObject()){
+            json.writeRaw("\n");
+        }
+        count++;
+    }
+
     @Override
     public void close(boolean closeIOContext) throws IOException{
 
@@ -210,18 +380,82 @@ public class JsonWriter extends BaseRecordReaderWriter implements RecordWriter{
             catch (IOException ex){
                 logger.log(Level.WARNING, null, ex);
             }
+            json = null;
+        }
+
+        if (channelOut != null){
+            try{
+                channelOut.close();
+            }
+            catch (IOException ex){
+                logger.log(Level.WARNING, null, ex);
+            }
+            channelOut = null;
+        }
+
+        if (deduplicator != null){
+            deduplicator.close();
         }
 
         super.close(closeIOContext);
     }
 
+    /**
+     * Finish the current output, without closing its IOContext, and open the specified IOContext.
+     * The JsonFactory, buffer pool and field names compiled for the schema are kept.
+     *
+     * @param context the next output
+     * @throws IOException
+     * @throws SchemaException
+     */
+    public void reset(IOContext context) throws IOException, SchemaException{
+        if (json != null){
+            close(false);
+        }
+        count = 0;
+        beforeFirstOperationsRun = false;
+        open(context);
+    }
+
     @Override
     public void open(IOContext context) throws IOException, SchemaException{
+        Schema previous = schema;
         super.open(context);
-        if (context.getOut() == null){
+        if (schema != previous){
+            fieldNamesCache.clear();
+            discriminator = null;
+        }
+        String discriminatorField = format.get("discriminator");
+        if (schema == null || discriminatorField.isEmpty()){
+            discriminator = null;
+        }
+        else if (discriminator == null || !discriminator.getField().equals(discriminatorField)){
+            discriminator = Discriminator.create(schema, discriminatorField);
+        }
+        WritableByteChannel target = channel;
+        if (target == null && isChannel() && context.getOut() instanceof FileOutputStream){
+            target = ((FileOutputStream) context.getOut()).getChannel();
+        }
+
+        if (target != null){
+            int bufferSize = Integer.parseInt(format.get("channelBufferSize"));
+            int gather = Integer.parseInt(format.get("channelGather"));
+            if (bufferPool == null || bufferPool.getBufferSize() != bufferSize){
+                bufferPool = new ByteBufferPool(bufferSize, gather + 1);
+            }
+            channelOut = new ChannelOutputStream(target, bufferPool, gather, Long.parseLong(format.get("syncInterval")));
+            json = jsonFactory.createJsonGenerator(channelOut, JsonEncoding.UTF8);
+        }
+        else if (context.getOut() == null){
             throw new IllegalArgumentException("Invalid IOContext. No OutputStream specified");
         }
-        json = jsonFactory.createJsonGenerator(context.getOut(), JsonEncoding.UTF8);
+        else{
+            json = jsonFactory.createJsonGenerator(context.getOut(), JsonEncoding.UTF8);
+        }
+
+        //the IOContext owns the OutputStream
+        json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
         if (isPretty()){
             json.setPrettyPrinter(new DefaultPrettyPrinter());
         }
@@ -231,6 +465,42 @@ public class JsonWriter extends BaseRecordReaderWriter implements RecordWriter{
         if (isSingleObject()){
             json.writeStartArray();
         }
+        openDeduplicator();
+    }
+
+    private void openDeduplicator(){
+        if (!isDedup()){
+            if (deduplicator != null){
+                deduplicator.close();
+                deduplicator = null;
+            }
+            return;
+        }
+        List<String> fields = new ArrayList<>();
+        for (String name : format.get("dedupFields").split(",")){
+            if (!name.trim().isEmpty()){
+                fields.add(name.trim());
+            }
+        }
+        int capacity = Integer.parseInt(format.get("dedupCapacity"));
+        String max = format.get("dedupMaxCapacity");
+        String path = format.get("dedupSpillDirectory");
+        File spillDirectory = path.isEmpty() ? null : new File(path);
+        int maxCapacity = max.isEmpty()
+                ? RecordDeduplicator.defaultMaxCapacity(capacity, spillDirectory)
+                : Integer.parseInt(max);
+        long bloomFilterBits = Long.parseLong(format.get("dedupBloomFilterBits"));
+
+        //reuse the off-heap tables of the last open, rather than leave them for the garbage collector
+        if (deduplicator != null
+                && deduplicator.hasSettings(fields, capacity, maxCapacity, bloomFilterBits, spillDirectory)){
+            deduplicator.reset();
+            return;
+        }
+        if (deduplicator != null){
+            deduplicator.close();
+        }
+        deduplicator = new RecordDeduplicator(fields, capacity, maxCapacity, bloomFilterBits, spillDirectory);
     }
 
 
@@ -265,4 +535,40 @@ public class JsonWriter extends BaseRecordReaderWriter implements RecordWriter{
         return Boolean.parseBoolean(format.get("singleObject"));
     }
 
+    public boolean isDedup(){
+        return Boolean.parseBoolean(format.get("dedup"));
+    }
+
+    /**
+     * @return number of duplicate Records not written since the writer was opened
+     */
+    public long getDuplicates(){
+        return deduplicator == null ? 0 : deduplicator.getDuplicates();
+    }
+
+    public boolean isChannel(){
+        return Boolean.parseBoolean(format.get("channel"));
+    }
+
+    /**
+     * Write to the specified channel instead of the IOContext's OutputStream. Must be called before open().
+     * The channel must be in blocking mode, and is not closed by this writer.
+     *
+     * @param channel destination, or null to use the IOContext
+     */
+    public void setChannel(WritableByteChannel channel){
+        this.channel = channel;
+    }
+
+    public WritableByteChannel getChannel(){
+        return channel;
+    }
+
+    /**
+     * Share a pool of direct buffers between writers. Must be called before open().
+     */
+    public void setBufferPool(ByteBufferPool bufferPool){
+        this.bufferPool = bufferPool;
+    }
+
 }
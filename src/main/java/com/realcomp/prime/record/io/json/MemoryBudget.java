@@ -0,0 +1,193 @@
+package com.realcomp.prime.record.io.json;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A limit on the estimated heap used by in-flight Records, shared by the readers and buffering stages of a
+ * process. A stage acquires the estimated size of a Record (see {@link RecordSize}) before buffering or returning
+ * it, and releases it when the Record is consumed; when the budget is used up, acquire() blocks until memory is
+ * released.
+ * <p/>
+ * A request larger than the whole budget is granted when nothing else is in use, so that one large Record cannot
+ * block forever. The gauges report current and peak use, and how often and how long stages waited.
+ * <p/>
+ * Thread-safe.
+ *
+ * @author krenfro
+ */
+public class MemoryBudget{
+
+    private final long limit;
+    private long used;
+    private long peak;
+    private long waits;
+    private long waitNanos;
+
+    /**
+     * @param limit max bytes in use at once
+     */
+    public MemoryBudget(long limit){
+        if (limit < 1){
+            throw new IllegalArgumentException("limit < 1");
+        }
+        this.limit = limit;
+    }
+
+    /**
+     * Acquire memory, waiting until enough is available.
+     *
+     * @param bytes estimated size
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public void acquire(long bytes) throws InterruptedIOException{
+        try{
+            acquire(bytes, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Acquire memory, waiting up to a timeout until enough is available.
+     *
+     * @param bytes estimated size
+     * @return true if acquired; false if the timeout elapsed first
+     * @throws InterruptedException
+     */
+    public synchronized boolean acquire(long bytes, long timeout, TimeUnit unit) throws InterruptedException{
+        if (bytes < 0){
+            throw new IllegalArgumentException("bytes < 0");
+        }
+        if (!isAvailable(bytes)){
+            long start = System.nanoTime();
+            long remaining = unit.toNanos(timeout);
+            waits++;
+            try{
+                while (!isAvailable(bytes)){
+                    if (remaining <= 0){
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    remaining = unit.toNanos(timeout) - (System.nanoTime() - start);
+                }
+            }
+            finally{
+                waitNanos += System.nanoTime() - start;
+            }
+        }
+        used += bytes;
+        peak = Math.max(peak, used);
+        return true;
+    }
+
+    /**
+     * Acquire memory if it is available now.
+     *
+     * @param bytes estimated size
+     * @return true if acquired
+     */
+    public synchronized boolean tryAcquire(long bytes){
+        if (bytes < 0){
+            throw new IllegalArgumentException("bytes < 0");
+        }
+        if (!isAvailable(bytes)){
+            return false;
+        }
+        used += bytes;
+        peak = Math.max(peak, used);
+        return true;
+    }
+
+    /**
+     * Acquire memory without waiting, even if that exceeds the limit. For a stage that cannot wait without
+     * deadlocking.
+     *
+     * @param bytes estimated size
+     */
+    public synchronized void force(long bytes){
+        if (bytes < 0){
+            throw new IllegalArgumentException("bytes < 0");
+        }
+        used += bytes;
+        peak = Math.max(peak, used);
+    }
+
+    /**
+     * Return memory acquired earlier.
+     *
+     * @param bytes estimated size
+     */
+    public synchronized void release(long bytes){
+        if (bytes < 0){
+            throw new IllegalArgumentException("bytes < 0");
+        }
+        if (bytes > used){
+            throw new IllegalStateException("released " + bytes + " bytes; only " + used + " in use");
+        }
+        used -= bytes;
+        if (bytes > 0){
+            notifyAll();
+        }
+    }
+
+    private boolean isAvailable(long bytes){
+        return used == 0 || used + bytes <= limit;
+    }
+
+    public long getLimit(){
+        return limit;
+    }
+
+    /**
+     * @return bytes in use
+     */
+    public synchronized long getUsed(){
+        return used;
+    }
+
+    public synchronized long getAvailable(){
+        return Math.max(0, limit - used);
+    }
+
+    /**
+     * @return most bytes in use at once
+     */
+    public synchronized long getPeak(){
+        return peak;
+    }
+
+    /**
+     * @return number of times a stage waited for memory
+     */
+    public synchronized long getWaits(){
+        return waits;
+    }
+
+    /**
+     * @return total time stages waited for memory, in milliseconds
+     */
+    public synchronized long getWaitMillis(){
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos);
+    }
+
+    /**
+     * @return ratio of bytes in use to the limit
+     */
+    public synchronized double getUtilization(){
+        return (double) used / limit;
+    }
+
+    @Override
+    public synchronized String toString(){
+        return "MemoryBudget{" +
+                "limit=" + limit +
+                ", used=" + used +
+                ", peak=" + peak +
+                ", waits=" + waits +
+                ", waitMillis=" + getWaitMillis() +
+                '}';
+    }
+}
@@ -0,0 +1,72 @@
+package com.realcomp.prime.record.io.json;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * A Bloom filter over 64-bit hashes, with its bits in a direct ByteBuffer.
+ *
+ * @author krenfro
+ */
+class OffHeapBloomFilter{
+
+    private final LongBuffer bits;
+    private final long bitCount;
+    private final int hashCount;
+
+    /**
+     * @param bitCount number of bits; rounded up to a multiple of 64
+     * @param hashCount number of bits set for each value
+     */
+    OffHeapBloomFilter(long bitCount, int hashCount){
+        if (bitCount < 64){
+            throw new IllegalArgumentException("bitCount < 64");
+        }
+        if (bitCount > 64L * (Integer.MAX_VALUE / 8)){
+            throw new IllegalArgumentException("bitCount too large: " + bitCount);
+        }
+        if (hashCount < 1){
+            throw new IllegalArgumentException("hashCount < 1");
+        }
+        int words = (int) ((bitCount + 63) / 64);
+        bits = ByteBuffer.allocateDirect(words * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+        this.bitCount = words * 64L;
+        this.hashCount = hashCount;
+    }
+
+    void add(long hash){
+        long h1 = hash;
+        long h2 = (hash >>> 32) | (hash << 32) | 1;
+        for (int i = 0; i < hashCount; i++){
+            long bit = Long.remainderUnsigned(h1 + i * h2, bitCount);
+            int word = (int) (bit >>> 6);
+            bits.put(word, bits.get(word) | (1L << bit));
+        }
+    }
+
+    /**
+     * @return false if the value was definitely never added
+     */
+    boolean mightContain(long hash){
+        long h1 = hash;
+        long h2 = (hash >>> 32) | (hash << 32) | 1;
+        for (int i = 0; i < hashCount; i++){
+            long bit = Long.remainderUnsigned(h1 + i * h2, bitCount);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void clear(){
+        for (int i = 0; i < bits.capacity(); i++){
+            bits.put(i, 0);
+        }
+    }
+
+    long getBitCount(){
+        return bitCount;
+    }
+}
@@ -0,0 +1,235 @@
+package com.realcomp.prime.record.io.json;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * A set of long values in a direct ByteBuffer, outside of the Java heap. Open addressing with linear probing;
+ * neither the values nor the table are visible to the garbage collector.
+ * <p/>
+ * Not thread-safe.
+ *
+ * @author krenfro
+ */
+public class OffHeapLongHashSet{
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /**
+     * Largest table, in slots. A direct ByteBuffer holds at most Integer.MAX_VALUE bytes.
+     */
+    private static final int MAX_SLOTS = 1 << 27;
+
+    /**
+     * Largest number of values a set can hold.
+     */
+    public static final int MAX_CAPACITY = (int) (MAX_SLOTS * LOAD_FACTOR);
+
+    private LongBuffer table;
+    private int mask;
+    private int size;
+    private boolean containsZero;
+
+    /**
+     * @param capacity number of values the set holds before it is full, at most {@link #MAX_CAPACITY}.
+     *                 Rounded up so the table size is a power of two.
+     */
+    public OffHeapLongHashSet(int capacity){
+        if (capacity < 1){
+            throw new IllegalArgumentException("capacity < 1");
+        }
+        if (capacity > MAX_CAPACITY){
+            throw new IllegalArgumentException("capacity > " + MAX_CAPACITY + ": " + capacity);
+        }
+        allocate(tableSize(capacity));
+    }
+
+    private static int tableSize(int capacity){
+        long slots = (long) Math.ceil(capacity / LOAD_FACTOR);
+        return (int) Math.min(MAX_SLOTS, Math.max(2, Long.highestOneBit(slots - 1) << 1));
+    }
+
+    private void allocate(int slots){
+        long bytes = slots * 8L;
+        if (slots > MAX_SLOTS || bytes > Integer.MAX_VALUE){
+            throw new IllegalStateException("table too large: " + slots + " slots");
+        }
+        table = ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder()).asLongBuffer();
+        mask = slots - 1;
+        size = 0;
+        containsZero = false;
+    }
+
+    /**
+     * @param value value to add
+     * @return true if the value was not already in the set
+     */
+    public boolean add(long value){
+        if (value == 0){
+            if (containsZero){
+                return false;
+            }
+            containsZero = true;
+            size++;
+            return true;
+        }
+        int slot = slot(value);
+        long current = table.get(slot);
+        while (current != 0){
+            if (current == value){
+                return false;
+            }
+            slot = (slot + 1) & mask;
+            current = table.get(slot);
+        }
+        table.put(slot, value);
+        size++;
+        return true;
+    }
+
+    public boolean contains(long value){
+        if (value == 0){
+            return containsZero;
+        }
+        int slot = slot(value);
+        long current = table.get(slot);
+        while (current != 0){
+            if (current == value){
+                return true;
+            }
+            slot = (slot + 1) & mask;
+            current = table.get(slot);
+        }
+        return false;
+    }
+
+    private int slot(long value){
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    /**
+     * @return number of values the set holds before {@link #isFull()}
+     */
+    public int getCapacity(){
+        return (int) (table.capacity() * LOAD_FACTOR);
+    }
+
+    public boolean isFull(){
+        return size >= getCapacity();
+    }
+
+    /**
+     * @return true if the set can {@link #grow()}
+     */
+    public boolean canGrow(){
+        return table.capacity() < MAX_SLOTS;
+    }
+
+    /**
+     * Double the capacity of the set.
+     *
+     * @throws IllegalStateException if the set is already at {@link #MAX_CAPACITY}
+     */
+    public void grow(){
+        if (!canGrow()){
+            throw new IllegalStateException("capacity is already " + MAX_CAPACITY);
+        }
+        LongBuffer old = table;
+        boolean zero = containsZero;
+        int oldSize = size;
+        allocate(old.capacity() * 2);
+        for (int i = 0; i < old.capacity(); i++){
+            long value = old.get(i);
+            if (value != 0){
+                add(value);
+            }
+        }
+        containsZero = zero;
+        size = oldSize;
+    }
+
+    public void clear(){
+        for (int i = 0; i < table.capacity(); i++){
+            table.put(i, 0);
+        }
+        size = 0;
+        containsZero = false;
+    }
+
+    /**
+     * Sort the values in ascending order into the front of the table, and clear the set. The sorted values
+     * remain readable through the returned buffer until the next change to the set.
+     *
+     * @return the sorted values
+     */
+    LongBuffer drainSorted(){
+        int n = 0;
+        for (int i = 0; i < table.capacity(); i++){
+            long value = table.get(i);
+            if (value != 0){
+                if (i != n){
+                    table.put(n, value);
+                    table.put(i, 0);
+                }
+                n++;
+            }
+        }
+        if (containsZero){
+            //the table is never full, so there is room after the other values
+            table.put(n++, 0);
+        }
+        heapSort(table, n);
+        LongBuffer sorted = table.duplicate();
+        sorted.position(0);
+        sorted.limit(n);
+        size = 0;
+        containsZero = false;
+        return sorted;
+    }
+
+    /**
+     * Clear the table after the buffer returned by {@link #drainSorted()} has been used.
+     */
+    void clearDrained(int n){
+        for (int i = 0; i < n; i++){
+            table.put(i, 0);
+        }
+    }
+
+    private static void heapSort(LongBuffer values, int n){
+        for (int i = n / 2 - 1; i >= 0; i--){
+            siftDown(values, i, n);
+        }
+        for (int end = n - 1; end > 0; end--){
+            long top = values.get(0);
+            values.put(0, values.get(end));
+            values.put(end, top);
+            siftDown(values, 0, end);
+        }
+    }
+
+    private static void siftDown(LongBuffer values, int i, int n){
+        long value = values.get(i);
+        while (true){
+            int child = 2 * i + 1;
+            if (child >= n){
+                break;
+            }
+            if (child + 1 < n && values.get(child + 1) > values.get(child)){
+                child++;
+            }
+            if (values.get(child) <= value){
+                break;
+            }
+            values.put(i, values.get(child));
+            i = child;
+        }
+        values.put(i, value);
+    }
+}
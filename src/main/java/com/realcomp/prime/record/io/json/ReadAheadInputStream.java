@@ -0,0 +1,239 @@
+package com.realcomp.prime.record.io.json;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An InputStream that reads ahead of its consumer on a background thread, so that I/O waits overlap parsing.
+ * <p/>
+ * A bounded ring of buffers is filled from the wrapped stream while the consumer drains them. Stall
+ * counters report how often, and for how long, each side waited on the other: consumer stalls mean
+ * the input is the bottleneck; producer stalls mean the consumer is.
+ * <p/>
+ * Any failure on the background thread is rethrown to the consumer, wrapped in an IOException if necessary.
+ * <p/>
+ * Closing this stream stops the background thread and closes the wrapped stream.
+ *
+ * @author krenfro
+ */
+public class ReadAheadInputStream extends InputStream{
+
+    public static final int DEFAULT_BUFFER_COUNT = 4;
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    private static final Chunk EOF = new Chunk(null, -1, null);
+
+    private final InputStream in;
+    private final BlockingQueue<Chunk> filled;
+    private final BlockingQueue<byte[]> free;
+    private final Thread thread;
+
+    private final AtomicLong producerStalls = new AtomicLong();
+    private final AtomicLong producerStallNanos = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private long consumerStalls;
+    private long consumerStallNanos;
+
+    private Chunk current;
+    private int position;
+    private volatile boolean closed;
+
+    public ReadAheadInputStream(InputStream in){
+        this(in, DEFAULT_BUFFER_COUNT, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param in the stream to read ahead
+     * @param bufferCount number of buffers in the ring
+     * @param bufferSize size, in bytes, of each buffer
+     */
+    public ReadAheadInputStream(InputStream in, int bufferCount, int bufferSize){
+        if (in == null){
+            throw new IllegalArgumentException("in is null");
+        }
+        if (bufferCount < 1){
+            throw new IllegalArgumentException("bufferCount < 1");
+        }
+        if (bufferSize < 1){
+            throw new IllegalArgumentException("bufferSize < 1");
+        }
+        this.in = in;
+        filled = new ArrayBlockingQueue<>(bufferCount + 1);
+        free = new ArrayBlockingQueue<>(bufferCount);
+        for (int i = 0; i < bufferCount; i++){
+            free.add(new byte[bufferSize]);
+        }
+        thread = new Thread(new Runnable(){
+            @Override
+            public void run(){
+                fill();
+            }
+        }, "prime-json-read-ahead");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void fill(){
+        try{
+            while (!closed){
+                byte[] buffer = free.poll();
+                if (buffer == null){
+                    long start = System.nanoTime();
+                    buffer = free.take();
+                    producerStalls.incrementAndGet();
+                    producerStallNanos.addAndGet(System.nanoTime() - start);
+                }
+                int read = in.read(buffer, 0, buffer.length);
+                if (read < 0){
+                    filled.put(EOF);
+                    return;
+                }
+                if (read == 0){
+                    free.put(buffer);
+                    continue;
+                }
+                bytesRead.addAndGet(read);
+                filled.put(new Chunk(buffer, read, null));
+            }
+        }
+        catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+        }
+        catch (Throwable ex){
+            //report any failure, not only I/O, so the consumer is never left waiting on a dead thread
+            if (!closed){
+                filled.offer(new Chunk(null, -1, ex));
+            }
+        }
+    }
+
+    /**
+     * @return the current chunk with unread bytes, or null at end of stream.
+     */
+    private Chunk next() throws IOException{
+        if (closed){
+            throw new IOException("stream closed");
+        }
+        if (current != null && position < current.length){
+            return current;
+        }
+        if (current == EOF){
+            return null;
+        }
+        if (current != null){
+            free.offer(current.buffer);
+        }
+
+        current = filled.poll();
+        if (current == null){
+            long start = System.nanoTime();
+            try{
+                current = filled.take();
+            }
+            catch (InterruptedException ex){
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            consumerStalls++;
+            consumerStallNanos += System.nanoTime() - start;
+        }
+        position = 0;
+
+        if (current.error != null){
+            Throwable error = current.error;
+            current = EOF;
+            if (error instanceof IOException){
+                throw (IOException) error;
+            }
+            throw new IOException("read-ahead failed", error);
+        }
+        return current == EOF ? null : current;
+    }
+
+    @Override
+    public int read() throws IOException{
+        Chunk chunk = next();
+        if (chunk == null){
+            return -1;
+        }
+        return chunk.buffer[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException{
+        if (off < 0 || len < 0 || off + len > b.length){
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0){
+            return 0;
+        }
+        Chunk chunk = next();
+        if (chunk == null){
+            return -1;
+        }
+        int count = Math.min(len, chunk.length - position);
+        System.arraycopy(chunk.buffer, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException{
+        return current == null || current == EOF ? 0 : current.length - position;
+    }
+
+    @Override
+    public void close() throws IOException{
+        if (!closed){
+            closed = true;
+            thread.interrupt();
+            in.close();
+        }
+    }
+
+    /**
+     * @return number of times the parser waited for input
+     */
+    public long getConsumerStalls(){
+        return consumerStalls;
+    }
+
+    public long getConsumerStallNanos(){
+        return consumerStallNanos;
+    }
+
+    /**
+     * @return number of times the background thread waited for the parser to free a buffer
+     */
+    public long getProducerStalls(){
+        return producerStalls.get();
+    }
+
+    public long getProducerStallNanos(){
+        return producerStallNanos.get();
+    }
+
+    /**
+     * @return number of bytes read from the wrapped stream
+     */
+    public long getBytesRead(){
+        return bytesRead.get();
+    }
+
+    private static class Chunk{
+
+        final byte[] buffer;
+        final int length;
+        final Throwable error;
+
+        Chunk(byte[] buffer, int length, Throwable error){
+            this.buffer = buffer;
+            this.length = length;
+            this.error = error;
+        }
+    }
+}
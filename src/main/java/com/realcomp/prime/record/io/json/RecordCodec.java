@@ -0,0 +1,232 @@
+package com.realcomp.prime.record.io.json;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary encoding of the Maps and Lists of a Record. Each value is a one-byte tag followed by its
+ * content; lengths and counts are variable-length ints. Values of types JSON does not have are encoded as
+ * their String.
+ * <p/>
+ * Not thread-safe.
+ *
+ * @author krenfro
+ */
+class RecordCodec{
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte FLOAT = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte TRUE = 6;
+    private static final byte FALSE = 7;
+    private static final byte MAP = 8;
+    private static final byte LIST = 9;
+
+    private byte[] buffer = new byte[1024];
+    private int length;
+
+    /**
+     * @param map a Record's values
+     * @return the encoded map; valid until the next call. Its length is {@link #getLength()}.
+     */
+    byte[] encode(Map<?, ?> map){
+        length = 0;
+        write(map);
+        return buffer;
+    }
+
+    int getLength(){
+        return length;
+    }
+
+    private void write(Object value){
+        if (value == null){
+            writeByte(NULL);
+        }
+        else if (value instanceof String){
+            writeByte(STRING);
+            writeString((String) value);
+        }
+        else if (value instanceof Integer){
+            writeByte(INTEGER);
+            writeVarLong(zigZag((Integer) value));
+        }
+        else if (value instanceof Long){
+            writeByte(LONG);
+            writeVarLong(zigZag((Long) value));
+        }
+        else if (value instanceof Float){
+            writeByte(FLOAT);
+            writeInt(Float.floatToIntBits((Float) value));
+        }
+        else if (value instanceof Double){
+            writeByte(DOUBLE);
+            writeLong(Double.doubleToLongBits((Double) value));
+        }
+        else if (value instanceof Boolean){
+            writeByte((Boolean) value ? TRUE : FALSE);
+        }
+        else if (value instanceof Map){
+            Map<?, ?> map = (Map<?, ?>) value;
+            writeByte(MAP);
+            writeVarLong(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()){
+                writeString(String.valueOf(entry.getKey()));
+                write(entry.getValue());
+            }
+        }
+        else if (value instanceof List){
+            List<?> list = (List<?>) value;
+            writeByte(LIST);
+            writeVarLong(list.size());
+            for (Object item : list){
+                write(item);
+            }
+        }
+        else{
+            writeByte(STRING);
+            writeString(value.toString());
+        }
+    }
+
+    private void ensure(int n){
+        if (length + n > buffer.length){
+            byte[] larger = new byte[Math.max(buffer.length * 2, length + n)];
+            System.arraycopy(buffer, 0, larger, 0, length);
+            buffer = larger;
+        }
+    }
+
+    private void writeByte(byte b){
+        ensure(1);
+        buffer[length++] = b;
+    }
+
+    private void writeString(String s){
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(bytes.length);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void writeVarLong(long value){
+        ensure(10);
+        while ((value & ~0x7FL) != 0){
+            buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[length++] = (byte) value;
+    }
+
+    private void writeInt(int value){
+        ensure(4);
+        for (int shift = 24; shift >= 0; shift -= 8){
+            buffer[length++] = (byte) (value >>> shift);
+        }
+    }
+
+    private void writeLong(long value){
+        ensure(8);
+        for (int shift = 56; shift >= 0; shift -= 8){
+            buffer[length++] = (byte) (value >>> shift);
+        }
+    }
+
+    private static long zigZag(long value){
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * @param in positioned at an encoded map; left positioned after it
+     * @return the map
+     * @throws IOException if the encoding is invalid
+     */
+    Map decode(ByteBuffer in) throws IOException{
+        if (in.get() != MAP){
+            throw new IOException("Invalid record encoding");
+        }
+        return (Map) readMap(in);
+    }
+
+    private Object read(ByteBuffer in) throws IOException{
+        byte tag = in.get();
+        switch (tag){
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case INTEGER:
+                return (int) unZigZag(readVarLong(in));
+            case LONG:
+                return unZigZag(readVarLong(in));
+            case FLOAT:
+                return Float.intBitsToFloat(in.getInt());
+            case DOUBLE:
+                return Double.longBitsToDouble(in.getLong());
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case MAP:
+                return readMap(in);
+            case LIST:
+                int size = (int) readVarLong(in);
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++){
+                    list.add(read(in));
+                }
+                return list;
+            default:
+                throw new IOException("Invalid record encoding; unknown tag " + tag);
+        }
+    }
+
+    private Map<String, Object> readMap(ByteBuffer in) throws IOException{
+        int size = (int) readVarLong(in);
+        Map<String, Object> map = new HashMap<>(Math.max(4, size * 4 / 3 + 1));
+        for (int i = 0; i < size; i++){
+            String key = readString(in);
+            map.put(key, read(in));
+        }
+        return map;
+    }
+
+    private String readString(ByteBuffer in){
+        int n = (int) readVarLong(in);
+        if (in.hasArray()){
+            String s = new String(in.array(), in.arrayOffset() + in.position(), n, StandardCharsets.UTF_8);
+            in.position(in.position() + n);
+            return s;
+        }
+        if (n > buffer.length){
+            buffer = new byte[Math.max(n, buffer.length * 2)];
+        }
+        in.get(buffer, 0, n);
+        return new String(buffer, 0, n, StandardCharsets.UTF_8);
+    }
+
+    private static long readVarLong(ByteBuffer in){
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do{
+            b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static long unZigZag(long value){
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,355 @@
+package com.realcomp.prime.record.io.json;
+
+import com.realcomp.prime.record.Record;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Detects duplicate Records by a 64-bit hash of their key fields, or of their whole content if no key fields are
+ * specified. The hashes are kept off-heap in an {@link OffHeapLongHashSet}, so the heap used does not depend on
+ * the number of distinct keys.
+ * <p/>
+ * When the set is full it doubles in size, up to a maximum capacity. Past that, its hashes are sorted and
+ * written to a memory-mapped run file in the spill directory (or the system temporary directory) and the set
+ * is cleared, so the memory used is bounded however many distinct keys there are. An optional Bloom filter in
+ * front of the runs avoids searching them for most new keys.
+ * <p/>
+ * {@link #close()} deletes the runs and clears the set, which keeps its off-heap table so the deduplicator can
+ * be used again.
+ * <p/>
+ * Records are compared by hash only; two different keys are reported as duplicates with a probability of about
+ * n<sup>2</sup>/2<sup>65</sup> for n distinct keys. Map keys are compared without regard to order, and numbers
+ * by their text.
+ * <p/>
+ * Not thread-safe.
+ *
+ * @author krenfro
+ */
+public class RecordDeduplicator implements AutoCloseable{
+
+    private static final Logger logger = Logger.getLogger(RecordDeduplicator.class.getName());
+
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+    public static final int DEFAULT_MAX_CAPACITY = 1 << 23;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final List<String> fields;
+    private final OffHeapLongHashSet set;
+    private final OffHeapBloomFilter bloomFilter;
+    private final File spillDirectory;
+    private final int capacity;
+    private final int maxCapacity;
+    private final long bloomFilterBits;
+    private final List<Run> runs = new ArrayList<>();
+    private long duplicates;
+    private long distinct;
+
+    /**
+     * @param fields names of the key fields; empty to compare whole Records
+     * @param capacity number of hashes held in memory before the set grows or spills
+     * @param bloomFilterBits size of the Bloom filter in bits, or 0 for none
+     * @param spillDirectory where to write runs once <i>capacity</i> is reached, or null to grow the set
+     *                       up to {@link #DEFAULT_MAX_CAPACITY} and then spill to the system temporary directory
+     */
+    public RecordDeduplicator(List<String> fields, int capacity, long bloomFilterBits, File spillDirectory){
+        this(fields, capacity, defaultMaxCapacity(capacity, spillDirectory), bloomFilterBits, spillDirectory);
+    }
+
+    /**
+     * @return <i>capacity</i> if runs are spilled to a given directory, else the larger of <i>capacity</i> and
+     *         {@link #DEFAULT_MAX_CAPACITY}
+     */
+    static int defaultMaxCapacity(int capacity, File spillDirectory){
+        return spillDirectory == null ? Math.max(capacity, DEFAULT_MAX_CAPACITY) : capacity;
+    }
+
+    /**
+     * @param fields names of the key fields; empty to compare whole Records
+     * @param capacity number of hashes initially held in memory before the set grows
+     * @param maxCapacity number of hashes held in memory before the set spills, at most
+     *                    {@link OffHeapLongHashSet#MAX_CAPACITY}
+     * @param bloomFilterBits size of the Bloom filter in bits, or 0 for none
+     * @param spillDirectory where to write runs, or null for the system temporary directory
+     */
+    public RecordDeduplicator(
+            List<String> fields, int capacity, int maxCapacity, long bloomFilterBits, File spillDirectory){
+        if (fields == null){
+            throw new IllegalArgumentException("fields is null");
+        }
+        if (maxCapacity < 1 || maxCapacity > OffHeapLongHashSet.MAX_CAPACITY){
+            throw new IllegalArgumentException("maxCapacity out of range: " + maxCapacity);
+        }
+        if (bloomFilterBits < 0){
+            throw new IllegalArgumentException("bloomFilterBits < 0");
+        }
+        if (spillDirectory != null && !spillDirectory.isDirectory()){
+            throw new IllegalArgumentException("spillDirectory is not a directory: " + spillDirectory);
+        }
+        this.fields = Collections.unmodifiableList(new ArrayList<>(fields));
+        set = new OffHeapLongHashSet(Math.min(capacity, maxCapacity));
+        bloomFilter = bloomFilterBits == 0 ? null : new OffHeapBloomFilter(bloomFilterBits, 4);
+        this.spillDirectory = spillDirectory;
+        this.capacity = capacity;
+        this.maxCapacity = maxCapacity;
+        this.bloomFilterBits = bloomFilterBits;
+    }
+
+    public RecordDeduplicator(List<String> fields){
+        this(fields, DEFAULT_CAPACITY, 0, null);
+    }
+
+    /**
+     * @param record a Record
+     * @return true if a Record with the same key has been seen before
+     * @throws IOException if the hashes could not be spilled
+     */
+    public boolean isDuplicate(Record record) throws IOException{
+        if (record == null){
+            throw new IllegalArgumentException("record is null");
+        }
+        if (add(hash(record))){
+            distinct++;
+            return false;
+        }
+        duplicates++;
+        return true;
+    }
+
+    private boolean add(long hash) throws IOException{
+        if (bloomFilter == null || bloomFilter.mightContain(hash)){
+            if (set.contains(hash)){
+                return false;
+            }
+            for (Run run : runs){
+                if (run.contains(hash)){
+                    return false;
+                }
+            }
+        }
+        if (set.isFull()){
+            if (set.getCapacity() < maxCapacity && set.canGrow()){
+                set.grow();
+            }
+            else{
+                spill();
+            }
+        }
+        set.add(hash);
+        if (bloomFilter != null){
+            bloomFilter.add(hash);
+        }
+        return true;
+    }
+
+    private void spill() throws IOException{
+        LongBuffer sorted = set.drainSorted();
+        int n = sorted.remaining();
+        File file = File.createTempFile("dedup.", ".run", spillDirectory);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()){
+            ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024).order(ByteOrder.nativeOrder());
+            LongBuffer longs = out.asLongBuffer();
+            while (sorted.hasRemaining()){
+                longs.clear();
+                while (longs.hasRemaining() && sorted.hasRemaining()){
+                    longs.put(sorted.get());
+                }
+                out.clear();
+                out.limit(longs.position() * 8);
+                while (out.hasRemaining()){
+                    channel.write(out);
+                }
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, n * 8L);
+            runs.add(new Run(file, mapped.order(ByteOrder.nativeOrder()).asLongBuffer()));
+        }
+        catch (IOException ex){
+            if (!file.delete()){
+                logger.log(Level.WARNING, "Unable to delete {0}", file);
+            }
+            throw ex;
+        }
+        set.clearDrained(n);
+    }
+
+    /**
+     * @param record a Record
+     * @return the hash of the Record's key fields, or of the whole Record if there are no key fields
+     */
+    public long hash(Record record){
+        long h = FNV_OFFSET;
+        if (fields.isEmpty()){
+            h = hash(h, record.asSimpleMap());
+        }
+        else{
+            for (String field : fields){
+                h = hash(h, record.get(field));
+            }
+        }
+        return mix(h);
+    }
+
+    private static long hash(long h, Object value){
+        if (value == null){
+            return hash(h, 'z');
+        }
+        if (value instanceof String){
+            return hash(hash(h, 's'), (String) value);
+        }
+        if (value instanceof Number){
+            return hash(hash(h, 'n'), value.toString());
+        }
+        if (value instanceof Boolean){
+            return hash(h, ((Boolean) value) ? 't' : 'f');
+        }
+        if (value instanceof Map){
+            Map<?, ?> map = (Map<?, ?>) value;
+            String[] keys = new String[map.size()];
+            int i = 0;
+            for (Object key : map.keySet()){
+                keys[i++] = String.valueOf(key);
+            }
+            Arrays.sort(keys);
+            h = hash(h, '{');
+            for (String key : keys){
+                h = hash(hash(h, key), ':');
+                h = hash(h, map.get(key));
+            }
+            return hash(h, '}');
+        }
+        if (value instanceof List){
+            h = hash(h, '[');
+            for (Object item : (List<?>) value){
+                h = hash(hash(h, item), ',');
+            }
+            return hash(h, ']');
+        }
+        return hash(hash(h, 's'), value.toString());
+    }
+
+    private static long hash(long h, String s){
+        for (int i = 0; i < s.length(); i++){
+            h = hash(h, s.charAt(i));
+        }
+        //terminate, so that adjacent values cannot run together
+        return hash(h, '\u0000');
+    }
+
+    private static long hash(long h, char c){
+        return (h ^ c) * FNV_PRIME;
+    }
+
+    private static long mix(long h){
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    public List<String> getFields(){
+        return fields;
+    }
+
+    public int getMaxCapacity(){
+        return maxCapacity;
+    }
+
+    /**
+     * @return true if this deduplicator was built with these settings, and can be reused for them
+     */
+    boolean hasSettings(List<String> fields, int capacity, int maxCapacity, long bloomFilterBits, File spillDirectory){
+        return this.fields.equals(fields)
+                && this.capacity == capacity
+                && this.maxCapacity == maxCapacity
+                && this.bloomFilterBits == bloomFilterBits
+                && (this.spillDirectory == null ? spillDirectory == null : this.spillDirectory.equals(spillDirectory));
+    }
+
+    public long getDuplicates(){
+        return duplicates;
+    }
+
+    public long getDistinct(){
+        return distinct;
+    }
+
+    /**
+     * @return number of runs spilled to disk
+     */
+    public int getRuns(){
+        return runs.size();
+    }
+
+    /**
+     * Delete the spilled runs and forget every key. The off-heap set and Bloom filter are cleared, not released,
+     * so the deduplicator can be used again without allocating. The counts are kept.
+     */
+    @Override
+    public void close(){
+        for (Run run : runs){
+            if (!run.file.delete()){
+                logger.log(Level.WARNING, "Unable to delete {0}", run.file);
+            }
+        }
+        runs.clear();
+        set.clear();
+        if (bloomFilter != null){
+            bloomFilter.clear();
+        }
+    }
+
+    /**
+     * {@link #close()}, and zero the duplicate and distinct counts.
+     */
+    void reset(){
+        close();
+        duplicates = 0;
+        distinct = 0;
+    }
+
+    private static class Run{
+
+        private final File file;
+        private final LongBuffer hashes;
+
+        Run(File file, LongBuffer hashes){
+            this.file = file;
+            this.hashes = hashes;
+        }
+
+        boolean contains(long hash){
+            int low = 0;
+            int high = hashes.limit() - 1;
+            while (low <= high){
+                int mid = (low + high) >>> 1;
+                long value = hashes.get(mid);
+                if (value < hash){
+                    low = mid + 1;
+                }
+                else if (value > hash){
+                    high = mid - 1;
+                }
+                else{
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.realcomp.prime.record.io.json;
+
+import com.realcomp.prime.DataType;
+import com.realcomp.prime.schema.Field;
+import com.realcomp.prime.schema.FieldList;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The fields of a FieldList compiled to fixed slots for {@link TypedRecord}s. INTEGER, LONG and BOOLEAN fields are
+ * stored in a long slot, FLOAT and DOUBLE fields in a double slot, and all others in an Object slot, so that
+ * reading a field is an array access rather than a hashed, boxed Map lookup.
+ * <p/>
+ * Field names are found with an open-addressing table; a field's position in the layout is its position in
+ * the FieldList. Immutable and thread-safe.
+ *
+ * @author krenfro
+ */
+public final class RecordLayout{
+
+    private final String[] names;
+    private final DataType[] types;
+    private final int[] slots;
+    private final int longSlots;
+    private final int doubleSlots;
+    private final int objectSlots;
+    private final String[] table;
+    private final int[] tablePositions;
+    private final int mask;
+
+    /**
+     * @param fields the fields, in order
+     */
+    public RecordLayout(FieldList fields){
+        this(names(fields), types(fields));
+    }
+
+    public RecordLayout(String[] names, DataType[] types){
+        if (names == null || types == null || names.length != types.length){
+            throw new IllegalArgumentException("names and types must be the same length");
+        }
+        this.names = names.clone();
+        this.types = types.clone();
+        slots = new int[names.length];
+        int longs = 0;
+        int doubles = 0;
+        int objects = 0;
+        for (int i = 0; i < names.length; i++){
+            if (names[i] == null || types[i] == null){
+                throw new IllegalArgumentException("null name or type at " + i);
+            }
+            switch (types[i]){
+                case INTEGER:
+                case LONG:
+                case BOOLEAN:
+                    slots[i] = longs++;
+                    break;
+                case FLOAT:
+                case DOUBLE:
+                    slots[i] = doubles++;
+                    break;
+                default:
+                    slots[i] = objects++;
+            }
+        }
+        longSlots = longs;
+        doubleSlots = doubles;
+        objectSlots = objects;
+
+        int size = Integer.highestOneBit(Math.max(2, names.length * 2) - 1) << 1;
+        table = new String[size];
+        tablePositions = new int[size];
+        mask = size - 1;
+        for (int i = 0; i < names.length; i++){
+            int slot = names[i].hashCode() & mask;
+            while (table[slot] != null){
+                if (table[slot].equals(names[i])){
+                    throw new IllegalArgumentException("duplicate field " + names[i]);
+                }
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = names[i];
+            tablePositions[slot] = i;
+        }
+    }
+
+    private static String[] names(FieldList fields){
+        if (fields == null){
+            throw new IllegalArgumentException("fields is null");
+        }
+        List<String> names = new ArrayList<>();
+        for (Field field : fields){
+            names.add(field.getName());
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    private static DataType[] types(FieldList fields){
+        List<DataType> types = new ArrayList<>();
+        for (Field field : fields){
+            types.add(field.getType());
+        }
+        return types.toArray(new DataType[types.size()]);
+    }
+
+    /**
+     * @return position of the named field, or -1
+     */
+    public int indexOf(String name){
+        int slot = name.hashCode() & mask;
+        String candidate = table[slot];
+        while (candidate != null){
+            //names from the parser are usually the same instance
+            if (candidate == name || candidate.equals(name)){
+                return tablePositions[slot];
+            }
+            slot = (slot + 1) & mask;
+            candidate = table[slot];
+        }
+        return -1;
+    }
+
+    public TypedRecord newRecord(){
+        return new TypedRecord(this);
+    }
+
+    public int getFieldCount(){
+        return names.length;
+    }
+
+    public String getName(int field){
+        return names[field];
+    }
+
+    public DataType getType(int field){
+        return types[field];
+    }
+
+    /**
+     * @return index of the field's value in the array for its type
+     */
+    int getSlot(int field){
+        return slots[field];
+    }
+
+    /**
+     * @return true if the field's value is stored as an Object
+     */
+    boolean isObject(int field){
+        switch (types[field]){
+            case INTEGER:
+            case LONG:
+            case BOOLEAN:
+            case FLOAT:
+            case DOUBLE:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    int getLongSlots(){
+        return longSlots;
+    }
+
+    int getDoubleSlots(){
+        return doubleSlots;
+    }
+
+    int getObjectSlots(){
+        return objectSlots;
+    }
+}
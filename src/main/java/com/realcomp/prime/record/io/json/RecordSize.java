@@ -0,0 +1,115 @@
+package com.realcomp.prime.record.io.json;
+
+import com.realcomp.prime.record.Record;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Map;
+
+/**
+ * Estimates the heap retained by a Record or a parsed JSON value, assuming a 64-bit JVM with compressed
+ * references. The estimate walks the value with an explicit stack, and is meant for accounting against a
+ * {@link MemoryBudget}, not for exact measurement.
+ *
+ * @author krenfro
+ */
+public final class RecordSize{
+
+    private static final long OBJECT = 16;
+    private static final long REFERENCE = 4;
+    private static final long STRING = 24 + 16;
+    private static final long BOXED = 16;
+    private static final long BOXED_WIDE = 24;
+    private static final long MAP = 48;
+    private static final long MAP_ENTRY = 32;
+    private static final long LIST = 24 + 16;
+
+    private RecordSize(){
+    }
+
+    /**
+     * @return estimated bytes retained by the Record
+     */
+    public static long estimate(Record record){
+        if (record == null){
+            return 0;
+        }
+        return OBJECT + estimate(record.asSimpleMap());
+    }
+
+    /**
+     * @param value a parsed JSON value: a Map, Collection, String, Number, Boolean or SpilledString
+     * @return estimated bytes retained by the value
+     */
+    public static long estimate(Object value){
+        if (value == null){
+            return 0;
+        }
+        long size = 0;
+        Deque<Object> stack = new ArrayDeque<>();
+        stack.push(value);
+        while (!stack.isEmpty()){
+            Object next = stack.pop();
+            if (next instanceof Map){
+                Map<?, ?> map = (Map<?, ?>) next;
+                //entries plus a half-full table of references
+                size += MAP + map.size() * (MAP_ENTRY + REFERENCE * 2);
+                for (Map.Entry<?, ?> entry : map.entrySet()){
+                    size += scalar(entry.getKey());
+                    push(stack, entry.getValue());
+                }
+            }
+            else if (next instanceof Collection){
+                Collection<?> collection = (Collection<?>) next;
+                size += LIST + collection.size() * REFERENCE;
+                for (Object item : collection){
+                    push(stack, item);
+                }
+            }
+            else{
+                size += scalar(next);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return estimated bytes retained by a String of <i>length</i> chars
+     */
+    static long string(int length){
+        return STRING + length * 2L;
+    }
+
+    /**
+     * @return estimated bytes retained by an array of <i>length</i> elements of <i>elementBytes</i> each
+     */
+    static long array(int length, int elementBytes){
+        return OBJECT + (long) length * elementBytes;
+    }
+
+    private static void push(Deque<Object> stack, Object value){
+        if (value != null){
+            stack.push(value);
+        }
+    }
+
+    private static long scalar(Object value){
+        if (value == null || value instanceof Boolean){
+            return 0;
+        }
+        if (value instanceof String){
+            return string(((String) value).length());
+        }
+        if (value instanceof Long || value instanceof Double){
+            return BOXED_WIDE;
+        }
+        if (value instanceof Number){
+            return BOXED;
+        }
+        if (value instanceof SpilledString){
+            return OBJECT + 64;
+        }
+        return OBJECT;
+    }
+}
@@ -0,0 +1,112 @@
+package com.realcomp.prime.record.io.json;
+
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A handle to a large String value that has been written to a temporary file instead of being held in memory.
+ * <p/>
+ * Created by {@link JsonReader} for String values longer than its <i>spillThreshold</i>, and streamed back out
+ * by {@link JsonWriter} without being loaded. The value is held in memory once while it is parsed. The reader owns the file: it is deleted when the reader reads the
+ * next Record or is closed, so the value must be used (e.g., written) before then. {@link #delete()} deletes it
+ * sooner.
+ *
+ * @author krenfro
+ */
+public class SpilledString{
+
+    private final File file;
+    private final long length;
+
+    public SpilledString(File file, long length){
+        if (file == null){
+            throw new IllegalArgumentException("file is null");
+        }
+        this.file = file;
+        this.length = length;
+    }
+
+    /**
+     * Write the parser's current String value to a new temporary file. The parser has already decoded the value
+     * into its text buffer, so it is copied from memory rather than streamed from the input.
+     *
+     * @param directory where to create the file; null for the default temporary directory
+     */
+    static SpilledString spill(JsonParser parser, File directory) throws IOException{
+        File file = File.createTempFile("prime-json", ".spill", directory);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))){
+            int length = parser.getText(out);
+            return new SpilledString(file, length);
+        }
+        catch (IOException ex){
+            file.delete();
+            throw ex;
+        }
+    }
+
+    public File getFile(){
+        return file;
+    }
+
+    /**
+     * @return number of chars in the value
+     */
+    public long length(){
+        return length;
+    }
+
+    public Reader openReader() throws IOException{
+        return new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
+    }
+
+    public boolean delete(){
+        return file.delete();
+    }
+
+    /**
+     * @return the whole value, loaded into memory.
+     */
+    @Override
+    public String toString(){
+        StringWriter out = new StringWriter((int) Math.min(length, Integer.MAX_VALUE));
+        try (Reader in = openReader()){
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0){
+                out.write(buffer, 0, read);
+            }
+        }
+        catch (IOException ex){
+            throw new IllegalStateException("Unable to read spilled value from " + file, ex);
+        }
+        return out.toString();
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if (this == o){
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()){
+            return false;
+        }
+        SpilledString that = (SpilledString) o;
+        return file.equals(that.file);
+    }
+
+    @Override
+    public int hashCode(){
+        return file.hashCode();
+    }
+}
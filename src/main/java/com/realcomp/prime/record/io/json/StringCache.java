@@ -0,0 +1,145 @@
+package com.realcomp.prime.record.io.json;
+
+/**
+ * A fixed-size cache of short String values, keyed directly on a character buffer so that
+ * a cache hit does not allocate.
+ * <p/>
+ * The table is two-way set associative. A hit in the second way is promoted to the first, and a
+ * miss in a full set evicts the least recently used entry. Strings longer than <i>maxLength</i>
+ * are never cached.
+ * <p/>
+ * Not thread-safe; intended to be owned by a single reader.
+ *
+ * @author krenfro
+ */
+public class StringCache{
+
+    public static final int DEFAULT_SIZE = 4096;
+    public static final int DEFAULT_MAX_LENGTH = 32;
+
+    private final String[] values;
+    private final int[] hashes;
+    private final int mask;
+    private final int maxLength;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public StringCache(){
+        this(DEFAULT_SIZE, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * @param size number of entries in the cache. Rounded up to a power of two.
+     * @param maxLength longest String that will be cached
+     */
+    public StringCache(int size, int maxLength){
+        if (size < 2){
+            throw new IllegalArgumentException("size < 2");
+        }
+        if (maxLength < 0){
+            throw new IllegalArgumentException("maxLength < 0");
+        }
+        int capacity = Integer.highestOneBit(size - 1) << 1;
+        values = new String[capacity];
+        hashes = new int[capacity];
+        mask = (capacity >> 1) - 1;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * @param buffer character buffer
+     * @param offset start of the value in the buffer
+     * @param length length of the value
+     * @return a String equal to the specified characters; the cached instance if there is one.
+     */
+    public String get(char[] buffer, int offset, int length){
+        if (length > maxLength){
+            return new String(buffer, offset, length);
+        }
+
+        int hash = CharBuffers.hash(buffer, offset, length);
+        int slot = (hash & mask) << 1;
+
+        String value = values[slot];
+        if (value != null && hashes[slot] == hash && CharBuffers.matches(value, buffer, offset, length)){
+            hits++;
+            return value;
+        }
+
+        value = values[slot + 1];
+        if (value != null && hashes[slot + 1] == hash && CharBuffers.matches(value, buffer, offset, length)){
+            //promote to most recently used
+            values[slot + 1] = values[slot];
+            hashes[slot + 1] = hashes[slot];
+            values[slot] = value;
+            hashes[slot] = hash;
+            hits++;
+            return value;
+        }
+
+        misses++;
+        if (values[slot + 1] != null){
+            evictions++;
+        }
+        values[slot + 1] = values[slot];
+        hashes[slot + 1] = hashes[slot];
+        value = new String(buffer, offset, length);
+        values[slot] = value;
+        hashes[slot] = hash;
+        return value;
+    }
+
+    public void clear(){
+        for (int i = 0; i < values.length; i++){
+            values[i] = null;
+            hashes[i] = 0;
+        }
+    }
+
+    public void resetStatistics(){
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    public long getHits(){
+        return hits;
+    }
+
+    public long getMisses(){
+        return misses;
+    }
+
+    public long getEvictions(){
+        return evictions;
+    }
+
+    /**
+     * @return ratio of hits to lookups, or 0 if there have been no lookups.
+     */
+    public double getHitRate(){
+        long lookups = hits + misses;
+        return lookups == 0 ? 0d : (double) hits / lookups;
+    }
+
+    public int getSize(){
+        return values.length;
+    }
+
+    public int getMaxLength(){
+        return maxLength;
+    }
+
+    @Override
+    public String toString(){
+        return "StringCache{" +
+                "size=" + values.length +
+                ", maxLength=" + maxLength +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                '}';
+    }
+}
@@ -0,0 +1,107 @@
+package com.realcomp.prime.record.io.json;
+
+import java.util.Arrays;
+
+/**
+ * Assigns a stable integer code to each distinct String, keyed directly on a character buffer so
+ * that a lookup of a known value does not allocate.
+ * <p/>
+ * Not thread-safe.
+ *
+ * @author krenfro
+ */
+public class StringDictionary{
+
+    private static final int EMPTY = -1;
+
+    private String[] values;
+    private int[] hashes;
+    private int[] table;
+    private int size;
+    private long stringBytes;
+
+    public StringDictionary(){
+        this(64);
+    }
+
+    public StringDictionary(int expectedSize){
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) << 1;
+        table = new int[capacity];
+        Arrays.fill(table, EMPTY);
+        values = new String[capacity >> 1];
+        hashes = new int[capacity >> 1];
+    }
+
+    /**
+     * @return the code for the specified characters, adding them to the dictionary if not already present.
+     */
+    public int encode(char[] buffer, int offset, int length){
+        int hash = CharBuffers.hash(buffer, offset, length);
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        int code = table[slot];
+        while (code != EMPTY){
+            if (hashes[code] == hash && CharBuffers.matches(values[code], buffer, offset, length)){
+                return code;
+            }
+            slot = (slot + 1) & mask;
+            code = table[slot];
+        }
+
+        if (size == values.length){
+            grow();
+            return encode(buffer, offset, length);
+        }
+        code = size++;
+        values[code] = new String(buffer, offset, length);
+        stringBytes += RecordSize.string(length);
+        hashes[code] = hash;
+        table[slot] = code;
+        return code;
+    }
+
+    public String decode(int code){
+        if (code < 0 || code >= size){
+            throw new IndexOutOfBoundsException("code " + code);
+        }
+        return values[code];
+    }
+
+    public int size(){
+        return size;
+    }
+
+    /**
+     * Remove all values. Codes assigned earlier are no longer valid.
+     */
+    public void clear(){
+        Arrays.fill(table, EMPTY);
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+        stringBytes = 0;
+    }
+
+    /**
+     * @return estimated heap retained by the dictionary and its values; see {@link RecordSize}
+     */
+    public long getEstimatedBytes(){
+        return RecordSize.array(table.length, 4) + RecordSize.array(values.length, 4)
+                + RecordSize.array(hashes.length, 4) + stringBytes;
+    }
+
+    private void grow(){
+        int capacity = table.length << 1;
+        int mask = capacity - 1;
+        table = new int[capacity];
+        Arrays.fill(table, EMPTY);
+        values = Arrays.copyOf(values, capacity >> 1);
+        hashes = Arrays.copyOf(hashes, capacity >> 1);
+        for (int code = 0; code < size; code++){
+            int slot = hashes[code] & mask;
+            while (table[slot] != EMPTY){
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = code;
+        }
+    }
+}
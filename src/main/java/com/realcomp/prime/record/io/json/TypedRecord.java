@@ -0,0 +1,189 @@
+package com.realcomp.prime.record.io.json;
+
+import com.realcomp.prime.record.Record;
+
+import java.util.Arrays;
+
+/**
+ * A record with the fixed, typed fields of a {@link RecordLayout}. Numeric and boolean values are stored
+ * unboxed, and fields are accessed by position.
+ * <p/>
+ * Filled by {@link JsonReader#readTyped(TypedRecord)} and written by {@link JsonWriter#write(TypedRecord)}.
+ * {@link #toRecord()} and {@link #set(Record)} convert to and from a Record for schema operations and other code
+ * that expects one. Reused from record to record; not thread-safe.
+ *
+ * @author krenfro
+ */
+public final class TypedRecord{
+
+    private final RecordLayout layout;
+    private final long[] longs;
+    private final double[] doubles;
+    private final Object[] objects;
+    private final boolean[] present;
+
+    TypedRecord(RecordLayout layout){
+        this.layout = layout;
+        longs = new long[layout.getLongSlots()];
+        doubles = new double[layout.getDoubleSlots()];
+        objects = new Object[layout.getObjectSlots()];
+        present = new boolean[layout.getFieldCount()];
+    }
+
+    public RecordLayout getLayout(){
+        return layout;
+    }
+
+    /**
+     * Set every field to null.
+     */
+    public void clear(){
+        Arrays.fill(present, false);
+        Arrays.fill(objects, null);
+    }
+
+    public boolean isNull(int field){
+        return !present[field];
+    }
+
+    public void setNull(int field){
+        present[field] = false;
+        if (layout.isObject(field)){
+            objects[layout.getSlot(field)] = null;
+        }
+    }
+
+    public int getInt(int field){
+        return (int) longs[layout.getSlot(field)];
+    }
+
+    public long getLong(int field){
+        return longs[layout.getSlot(field)];
+    }
+
+    public boolean getBoolean(int field){
+        return longs[layout.getSlot(field)] != 0;
+    }
+
+    public float getFloat(int field){
+        return (float) doubles[layout.getSlot(field)];
+    }
+
+    public double getDouble(int field){
+        return doubles[layout.getSlot(field)];
+    }
+
+    public String getString(int field){
+        Object value = objects[layout.getSlot(field)];
+        return value == null ? null : value.toString();
+    }
+
+    public void setInt(int field, int value){
+        setLong(field, value);
+    }
+
+    public void setLong(int field, long value){
+        longs[layout.getSlot(field)] = value;
+        present[field] = true;
+    }
+
+    public void setBoolean(int field, boolean value){
+        setLong(field, value ? 1 : 0);
+    }
+
+    public void setFloat(int field, float value){
+        setDouble(field, value);
+    }
+
+    public void setDouble(int field, double value){
+        doubles[layout.getSlot(field)] = value;
+        present[field] = true;
+    }
+
+    /**
+     * @param field a STRING, MAP or LIST field
+     * @param value the value; null to set the field to null
+     */
+    public void setObject(int field, Object value){
+        objects[layout.getSlot(field)] = value;
+        present[field] = value != null;
+    }
+
+    /**
+     * @return the value of the field, boxed as the field's DataType; null if the field is null
+     */
+    public Object get(int field){
+        if (!present[field]){
+            return null;
+        }
+        switch (layout.getType(field)){
+            case INTEGER:
+                return getInt(field);
+            case LONG:
+                return getLong(field);
+            case BOOLEAN:
+                return getBoolean(field);
+            case FLOAT:
+                return getFloat(field);
+            case DOUBLE:
+                return getDouble(field);
+            default:
+                return objects[layout.getSlot(field)];
+        }
+    }
+
+    /**
+     * @param field a field
+     * @param value the value, converted to the field's DataType; null to set the field to null
+     * @throws IllegalArgumentException if the value cannot be converted
+     */
+    public void set(int field, Object value){
+        if (value == null){
+            setNull(field);
+            return;
+        }
+        switch (layout.getType(field)){
+            case INTEGER:
+            case LONG:
+                setLong(field, value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString()));
+                break;
+            case BOOLEAN:
+                setBoolean(field, value instanceof Boolean ? (Boolean) value : Boolean.parseBoolean(value.toString()));
+                break;
+            case FLOAT:
+            case DOUBLE:
+                setDouble(field,
+                        value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString()));
+                break;
+            default:
+                setObject(field, value);
+        }
+    }
+
+    /**
+     * @return a Record with the non-null fields
+     */
+    public Record toRecord(){
+        Record record = new Record();
+        for (int i = 0; i < present.length; i++){
+            if (present[i]){
+                record.put(layout.getName(i), get(i));
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Set every field from the Record; fields not in the Record are set to null.
+     */
+    public void set(Record record){
+        for (int i = 0; i < present.length; i++){
+            set(i, record.get(layout.getName(i)));
+        }
+    }
+
+    @Override
+    public String toString(){
+        return toRecord().toString();
+    }
+}
@@ -0,0 +1,25 @@
+package com.realcomp.prime.record.io.json;
+
+/**
+ * Wraps a checked ValidationException, ConversionException or SchemaException thrown while reading
+ * or writing a Record where a checked exception cannot be thrown, such as in a java.util.stream pipeline.
+ * I/O failures are wrapped in {@link java.io.UncheckedIOException} instead.
+ *
+ * @author krenfro
+ */
+public class UncheckedRecordException extends RuntimeException{
+
+    private static final long serialVersionUID = 1L;
+
+    public UncheckedRecordException(Exception cause){
+        super(cause.getMessage(), cause);
+    }
+
+    /**
+     * @return the checked exception
+     */
+    @Override
+    public synchronized Exception getCause(){
+        return (Exception) super.getCause();
+    }
+}
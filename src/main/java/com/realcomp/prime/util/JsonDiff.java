@@ -0,0 +1,775 @@
+package com.realcomp.prime.util;
+
+import com.realcomp.prime.conversion.ConversionException;
+import com.realcomp.prime.record.Record;
+import com.realcomp.prime.record.io.IOContext;
+import com.realcomp.prime.record.io.IOContextBuilder;
+import com.realcomp.prime.record.io.json.JsonReader;
+import com.realcomp.prime.record.io.json.JsonWriter;
+import com.realcomp.prime.record.io.json.RecordDeduplicator;
+import com.realcomp.prime.schema.Schema;
+import com.realcomp.prime.schema.SchemaException;
+import com.realcomp.prime.schema.SchemaFactory;
+import com.realcomp.prime.validation.ValidationException;
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Record-level diff of two JSON extracts. Writes a change record for each key that was inserted, updated or
+ * deleted between the <i>old</i> and <i>new</i> extracts, with a {@value #CHANGE} field of <i>insert</i>,
+ * <i>update</i> or <i>delete</i>. Optionally, updates list their changed fields in {@value #CHANGED_FIELDS}.
+ * <p/>
+ * Both extracts are hash-partitioned by key into temporary files. Each extract of newline-delimited JSON is split
+ * at record boundaries into up to one byte range per thread, and the ranges are partitioned concurrently. Each
+ * range buffers its output for every partition and appends it to the partition's file a block at a time, so only
+ * one file per range is open at once, however many partitions there are. Each pair of partitions is then compared on a pool of threads, by a hash of each record's content.
+ * Only keys and hashes are held in memory, not records, so memory use is bounded by the keys of one pair of
+ * partitions per thread. By default, the number of partitions is derived from the size of the extracts.
+ * <p/>
+ * Key fields are specified directly or with the <i>keyFields</i> attribute of the schema's format. If a key
+ * appears more than once in an extract, the last record with the key is used.
+ */
+public class JsonDiff{
+
+    private static final Logger logger = Logger.getLogger(JsonDiff.class.getName());
+
+    public static final String CHANGE = "_change";
+    public static final String CHANGED_FIELDS = "_changedFields";
+    public static final String INSERT = "insert";
+    public static final String UPDATE = "update";
+    public static final String DELETE = "delete";
+
+    static final long TARGET_PARTITION_BYTES = 64L * 1024 * 1024;
+    static final int MAX_AUTO_PARTITIONS = 256;
+    static final long MIN_RANGE_BYTES = 1024 * 1024;
+    private static final int PARTITION_BUFFER_SIZE = 16 * 1024;
+
+    private List<String> keyFields = Collections.emptyList();
+    private Schema schema;
+    private int partitions;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private File tempDirectory;
+    private boolean changedFields;
+
+    private final AtomicLong inserts = new AtomicLong();
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong deletes = new AtomicLong();
+    private final AtomicLong unchanged = new AtomicLong();
+
+    /**
+     * Write the changes from the old extract to the new extract.
+     *
+     * @param oldFile the old extract
+     * @param newFile the new extract
+     * @param out destination of the change records, as newline-delimited JSON; not closed
+     * @throws IOException
+     */
+    public void diff(File oldFile, File newFile, OutputStream out) throws IOException{
+        if (oldFile == null || newFile == null){
+            throw new IllegalArgumentException("input file is null");
+        }
+        if (out == null){
+            throw new IllegalArgumentException("out is null");
+        }
+        List<String> keys = resolveKeyFields();
+        inserts.set(0);
+        updates.set(0);
+        deletes.set(0);
+        unchanged.set(0);
+
+        int partitionCount = partitionCount(oldFile.length() + newFile.length());
+        int maxRanges = threads;
+        File work = Files.createTempDirectory(
+                tempDirectory == null ? new File(System.getProperty("java.io.tmpdir")).toPath() : tempDirectory.toPath(),
+                "jsondiff").toFile();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(2, threads));
+        try{
+            File oldDirectory = new File(work, "old");
+            File newDirectory = new File(work, "new");
+            long[] oldRanges = ranges(oldFile, maxRanges);
+            long[] newRanges = ranges(newFile, maxRanges);
+            List<Future<?>> partitioning = new ArrayList<>();
+            for (int r = 0; r < oldRanges.length - 1; r++){
+                partitioning.add(submitPartition(
+                        executor, oldFile, oldRanges[r], oldRanges[r + 1], oldDirectory, r, partitionCount, keys));
+            }
+            for (int r = 0; r < newRanges.length - 1; r++){
+                partitioning.add(submitPartition(
+                        executor, newFile, newRanges[r], newRanges[r + 1], newDirectory, r, partitionCount, keys));
+            }
+            for (Future<?> future : partitioning){
+                await(future);
+            }
+
+            try (JsonWriter writer = new JsonWriter();
+                 IOContext ctx = new IOContextBuilder().out(new FilterOutputStream(out){
+                     @Override
+                     public void close() throws IOException{
+                         flush();
+                     }
+                 }).build()){
+                writer.open(ctx);
+                List<Future<?>> compares = new ArrayList<>();
+                for (int p = 0; p < partitionCount; p++){
+                    final List<File> oldFiles = partitionFiles(oldDirectory, p, oldRanges.length - 1);
+                    final List<File> newFiles = partitionFiles(newDirectory, p, newRanges.length - 1);
+                    compares.add(executor.submit(() -> compare(oldFiles, newFiles, keys, writer)));
+                }
+                for (Future<?> compare : compares){
+                    await(compare);
+                }
+            }
+            catch (SchemaException ex){
+                throw new IOException(ex);
+            }
+        }
+        finally{
+            executor.shutdownNow();
+            delete(work);
+        }
+    }
+
+    /**
+     * @return the configured number of partitions or, if none, enough to keep each pair of partitions near
+     *         {@value #TARGET_PARTITION_BYTES} bytes, with at least one per thread and at most
+     *         {@value #MAX_AUTO_PARTITIONS}
+     */
+    private int partitionCount(long bytes){
+        if (partitions > 0){
+            return partitions;
+        }
+        long count = (bytes + TARGET_PARTITION_BYTES - 1) / TARGET_PARTITION_BYTES;
+        return (int) Math.min(MAX_AUTO_PARTITIONS, Math.max(threads, count));
+    }
+
+    private Future<?> submitPartition(ExecutorService executor, File file, long start, long end, File directory,
+            int range, int partitionCount, List<String> keys){
+        return executor.submit(() -> partition(file, start, end, directory, range, partitionCount, keys));
+    }
+
+    private List<String> resolveKeyFields(){
+        if (!keyFields.isEmpty()){
+            return keyFields;
+        }
+        if (schema != null && schema.getFormat() != null && schema.getFormat().get("keyFields") != null){
+            List<String> keys = new ArrayList<>();
+            for (String name : schema.getFormat().get("keyFields").split(",")){
+                if (!name.trim().isEmpty()){
+                    keys.add(name.trim());
+                }
+            }
+            if (!keys.isEmpty()){
+                return keys;
+            }
+        }
+        throw new IllegalStateException("no key fields specified");
+    }
+
+    private static void await(Future<?> future) throws IOException{
+        try{
+            future.get();
+        }
+        catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException ex){
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException){
+                throw (IOException) cause;
+            }
+            if (cause instanceof UncheckedIOException){
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * @return the partition's file for each range of an extract, in the order of the ranges
+     */
+    private static List<File> partitionFiles(File directory, int partition, int ranges){
+        List<File> files = new ArrayList<>(ranges);
+        for (int r = 0; r < ranges; r++){
+            files.add(partitionFile(directory, partition, r));
+        }
+        return files;
+    }
+
+    private static File partitionFile(File directory, int partition, int range){
+        return new File(directory, partition + "." + range + ".json");
+    }
+
+    /**
+     * Split an extract into at most <i>count</i> byte ranges of at least {@value #MIN_RANGE_BYTES} bytes, each
+     * starting at a record boundary, so the ranges can be partitioned concurrently.
+     *
+     * @return the offsets of the ranges, followed by the size of the file
+     */
+    private static long[] ranges(File file, int count) throws IOException{
+        long size = file.length();
+        count = (int) Math.max(1, Math.min(count, size / MIN_RANGE_BYTES));
+        List<Long> offsets = new ArrayList<>();
+        offsets.add(0L);
+        if (count > 1){
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+                for (int i = 1; i < count; i++){
+                    long previous = offsets.get(offsets.size() - 1);
+                    long boundary = findBoundary(channel, Math.max(size / count * i, previous), size);
+                    if (boundary >= size){
+                        break;
+                    }
+                    if (boundary > previous){
+                        offsets.add(boundary);
+                    }
+                }
+            }
+        }
+        offsets.add(size);
+        long[] ranges = new long[offsets.size()];
+        for (int i = 0; i < ranges.length; i++){
+            ranges[i] = offsets.get(i);
+        }
+        return ranges;
+    }
+
+    /**
+     * Find the first record boundary at or after <i>position</i>: a '{' that starts a line, where the line before
+     * ends with '}'. JSON strings cannot contain a newline, and '{' cannot follow '}' inside an object or array, so
+     * such a '{' always starts a top-level value. A single JSON array is never split.
+     *
+     * @return the offset of the boundary, or <i>size</i> if there is none
+     */
+    private static long findBoundary(FileChannel channel, long position, long size) throws IOException{
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        byte last = 0;
+        boolean newline = false;
+        while (position < size){
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0){
+                break;
+            }
+            for (int i = 0; i < read; i++){
+                byte b = buffer.get(i);
+                if (b == '\n'){
+                    newline = true;
+                }
+                else if (b != ' ' && b != '\t' && b != '\r'){
+                    if (b == '{' && newline && last == '}'){
+                        return position + i;
+                    }
+                    last = b;
+                    newline = false;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    /**
+     * Split a byte range of an extract into partitions by the hash of each record's key.
+     */
+    private Void partition(File file, long start, long end, File directory, int range, int partitionCount,
+            List<String> keys) throws IOException{
+        Files.createDirectories(directory.toPath());
+        JsonWriter[] writers = new JsonWriter[partitionCount];
+        FileInputStream in = new FileInputStream(file);
+        try (JsonReader reader = new JsonReader();
+             IOContext ctx = new IOContextBuilder()
+                     .schema(schema)
+                     .in(new BufferedInputStream(new RangeInputStream(in, end - start), 64 * 1024)).build()){
+            in.getChannel().position(start);
+            for (int p = 0; p < partitionCount; p++){
+                writers[p] = new JsonWriter();
+                writers[p].open(new IOContextBuilder()
+                        .out(new AppendingOutputStream(partitionFile(directory, p, range)))
+                        .build());
+            }
+            reader.open(ctx);
+            Record record = reader.read();
+            while (record != null){
+                int partition = (key(record, keys).hashCode() & Integer.MAX_VALUE) % partitionCount;
+                writers[partition].write(record);
+                record = reader.read();
+            }
+        }
+        catch (SchemaException | ValidationException | ConversionException ex){
+            throw new IOException("Unable to read " + file + ": " + ex.getMessage(), ex);
+        }
+        finally{
+            in.close();
+            for (JsonWriter writer : writers){
+                if (writer != null){
+                    writer.close();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Buffers the output for one partition of a range, and appends it to the partition's file when the buffer is
+     * full; the file is open only while appending. The file is created on close, even if it is empty.
+     */
+    private static final class AppendingOutputStream extends OutputStream{
+
+        private final File file;
+        private final byte[] buffer = new byte[PARTITION_BUFFER_SIZE];
+        private int count;
+        private boolean closed;
+
+        AppendingOutputStream(File file){
+            this.file = file;
+        }
+
+        @Override
+        public void write(int b) throws IOException{
+            if (count == buffer.length){
+                append(buffer, 0, count);
+                count = 0;
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException{
+            if (len > buffer.length - count){
+                append(buffer, 0, count);
+                count = 0;
+                if (len > buffer.length){
+                    append(b, off, len);
+                    return;
+                }
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        @Override
+        public void flush(){
+            //appended when the buffer is full or closed; not for every record
+        }
+
+        @Override
+        public void close() throws IOException{
+            if (!closed){
+                closed = true;
+                append(buffer, 0, count);
+                count = 0;
+            }
+        }
+
+        private void append(byte[] b, int off, int len) throws IOException{
+            try (FileOutputStream out = new FileOutputStream(file, true)){
+                out.write(b, off, len);
+            }
+        }
+    }
+
+    /**
+     * Compare one partition of each extract, and write the changes.
+     * <p/>
+     * Only keys are held in memory: the old partition's key, content hash and position of each record, and the
+     * position of the last record with each key in the new partition. The new partition is then streamed and
+     * compared against the old hashes. Deleted records, and the old side of updates when changed fields are
+     * listed, are found by reading the old partition again; only those updated new records are held until then.
+     */
+    private Void compare(List<File> oldFiles, List<File> newFiles, List<String> keys, JsonWriter writer)
+            throws IOException{
+        RecordDeduplicator hasher = new RecordDeduplicator(Collections.<String>emptyList(), 16, 0, null);
+        try{
+            Map<String, OldRecord> old = new HashMap<>();
+            try (JsonReader reader = new JsonReader(); IOContext ctx = concat(oldFiles)){
+                reader.open(ctx);
+                int index = 0;
+                Record record = reader.read();
+                while (record != null){
+                    old.put(key(record, keys), new OldRecord(hasher.hash(record), index++));
+                    record = reader.read();
+                }
+            }
+
+            //position of the last record with each key, which is the one used
+            Map<String, Integer> last = new HashMap<>();
+            try (JsonReader reader = new JsonReader(); IOContext ctx = concat(newFiles)){
+                reader.open(ctx);
+                int index = 0;
+                Record record = reader.read();
+                while (record != null){
+                    last.put(key(record, keys), index++);
+                    record = reader.read();
+                }
+            }
+
+            Map<String, Record> updated = new HashMap<>();
+            try (JsonReader reader = new JsonReader(); IOContext ctx = concat(newFiles)){
+                reader.open(ctx);
+                int index = 0;
+                Record record = reader.read();
+                while (record != null){
+                    String key = key(record, keys);
+                    if (last.get(key) == index){
+                        OldRecord before = old.get(key);
+                        if (before == null){
+                            inserts.incrementAndGet();
+                            write(writer, record, INSERT, null);
+                        }
+                        else if (before.hash == hasher.hash(record)){
+                            unchanged.incrementAndGet();
+                            old.remove(key);
+                        }
+                        else if (changedFields){
+                            //written once the old record is read again
+                            updated.put(key, record);
+                        }
+                        else{
+                            updates.incrementAndGet();
+                            write(writer, record, UPDATE, null);
+                            old.remove(key);
+                        }
+                    }
+                    index++;
+                    record = reader.read();
+                }
+            }
+            last = null;
+
+            if (!old.isEmpty()){
+                try (JsonReader reader = new JsonReader(); IOContext ctx = concat(oldFiles)){
+                    reader.open(ctx);
+                    int index = 0;
+                    Record record = reader.read();
+                    while (record != null){
+                        String key = key(record, keys);
+                        OldRecord before = old.get(key);
+                        if (before != null && before.index == index){
+                            Record after = updated.remove(key);
+                            if (after == null){
+                                deletes.incrementAndGet();
+                                write(writer, record, DELETE, null);
+                            }
+                            else{
+                                updates.incrementAndGet();
+                                write(writer, after, UPDATE, diff(record, after));
+                            }
+                        }
+                        index++;
+                        record = reader.read();
+                    }
+                }
+            }
+        }
+        catch (SchemaException | ValidationException | ConversionException ex){
+            throw new IOException(ex);
+        }
+        return null;
+    }
+
+    /**
+     * @return an IOContext reading the files one after another
+     */
+    private static IOContext concat(List<File> files){
+        final Iterator<File> i = files.iterator();
+        InputStream in = new SequenceInputStream(new Enumeration<InputStream>(){
+            @Override
+            public boolean hasMoreElements(){
+                return i.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement(){
+                try{
+                    return new FileInputStream(i.next());
+                }
+                catch (FileNotFoundException ex){
+                    throw new UncheckedIOException(ex);
+                }
+            }
+        });
+        return new IOContextBuilder().in(new BufferedInputStream(in, 64 * 1024)).build();
+    }
+
+    private static List<String> diff(Record before, Record after){
+        Set<String> names = new TreeSet<>(before.keySet());
+        names.addAll(after.keySet());
+        List<String> changed = new ArrayList<>();
+        for (String name : names){
+            if (!Objects.equals(before.get(name), after.get(name))){
+                changed.add(name);
+            }
+        }
+        return changed;
+    }
+
+    private static void write(JsonWriter writer, Record record, String change, List<String> changed)
+            throws IOException, ValidationException, ConversionException, SchemaException{
+        record.put(CHANGE, change);
+        if (changed != null){
+            record.put(CHANGED_FIELDS, changed);
+        }
+        synchronized (writer){
+            writer.write(record);
+        }
+    }
+
+    private static String key(Record record, List<String> keys){
+        if (keys.size() == 1){
+            return String.valueOf(record.get(keys.get(0)));
+        }
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < keys.size(); i++){
+            if (i > 0){
+                key.append('\u0001');
+            }
+            key.append(record.get(keys.get(i)));
+        }
+        return key.toString();
+    }
+
+    private static void delete(File file){
+        File[] children = file.listFiles();
+        if (children != null){
+            for (File child : children){
+                delete(child);
+            }
+        }
+        if (!file.delete()){
+            logger.log(Level.WARNING, "Unable to delete {0}", file);
+        }
+    }
+
+    public List<String> getKeyFields(){
+        return keyFields;
+    }
+
+    public void setKeyFields(List<String> keyFields){
+        this.keyFields = keyFields == null ? Collections.<String>emptyList() : new ArrayList<>(keyFields);
+    }
+
+    public Schema getSchema(){
+        return schema;
+    }
+
+    /**
+     * @param schema used to read both extracts, and for the <i>keyFields</i> attribute; may be null
+     */
+    public void setSchema(Schema schema){
+        this.schema = schema;
+    }
+
+    public int getPartitions(){
+        return partitions;
+    }
+
+    /**
+     * @param partitions number of partitions of each extract; 0 (the default) to derive it from their size
+     */
+    public void setPartitions(int partitions){
+        if (partitions < 0){
+            throw new IllegalArgumentException("partitions < 0");
+        }
+        this.partitions = partitions;
+    }
+
+    public int getThreads(){
+        return threads;
+    }
+
+    public void setThreads(int threads){
+        if (threads < 1){
+            throw new IllegalArgumentException("threads < 1");
+        }
+        this.threads = threads;
+    }
+
+    public File getTempDirectory(){
+        return tempDirectory;
+    }
+
+    public void setTempDirectory(File tempDirectory){
+        this.tempDirectory = tempDirectory;
+    }
+
+    public boolean isChangedFields(){
+        return changedFields;
+    }
+
+    /**
+     * @param changedFields if true, update records list the names of the fields that changed
+     */
+    public void setChangedFields(boolean changedFields){
+        this.changedFields = changedFields;
+    }
+
+    public long getInserts(){
+        return inserts.get();
+    }
+
+    public long getUpdates(){
+        return updates.get();
+    }
+
+    public long getDeletes(){
+        return deletes.get();
+    }
+
+    public long getUnchanged(){
+        return unchanged.get();
+    }
+
+    /**
+     * The content hash and position, in its partition, of the last old record with a key.
+     */
+    private static class OldRecord{
+
+        final long hash;
+        final int index;
+
+        OldRecord(long hash, int index){
+            this.hash = hash;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Reads at most <i>length</i> bytes of a stream.
+     */
+    private static class RangeInputStream extends FilterInputStream{
+
+        private long remaining;
+
+        RangeInputStream(InputStream in, long length){
+            super(in);
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException{
+            if (remaining <= 0){
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0){
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException{
+            if (remaining <= 0){
+                return -1;
+            }
+            int read = super.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0){
+                remaining -= read;
+            }
+            return read;
+        }
+    }
+
+    private static void printHelp(OptionParser parser){
+        try{
+            parser.printHelpOn(System.err);
+        }
+        catch (IOException ignored){
+        }
+    }
+
+    public static void main(String[] args){
+
+        OptionParser parser = new OptionParser(){
+            {
+                accepts("old", "old extract").withRequiredArg().describedAs("file").required();
+                accepts("new", "new extract").withRequiredArg().describedAs("file").required();
+                accepts("out", "output file (default: STDOUT)").withRequiredArg().describedAs("file");
+                accepts("key", "comma-separated key fields (default: schema keyFields attribute)")
+                        .withRequiredArg().describedAs("fields");
+                accepts("schema", "schema for both extracts").withRequiredArg().describedAs("file");
+                accepts("partitions", "number of partitions (default: from the size of the extracts)")
+                        .withRequiredArg().describedAs("count");
+                accepts("threads", "number of threads (default: processors)").withRequiredArg().describedAs("count");
+                accepts("temp", "directory for partitions (default: java.io.tmpdir)")
+                        .withRequiredArg().describedAs("dir");
+                accepts("changed-fields", "list the changed fields of updates");
+                acceptsAll(Arrays.asList("h", "?", "help"), "help");
+            }
+        };
+
+        int result = 1;
+
+        try{
+            OptionSet options = parser.parse(args);
+            if (options.has("?")){
+                printHelp(parser);
+                result = 0;
+            }
+            else{
+                JsonDiff diff = new JsonDiff();
+                if (options.has("key")){
+                    diff.setKeyFields(Arrays.asList(((String) options.valueOf("key")).split(",")));
+                }
+                if (options.has("schema")){
+                    try (InputStream in = new FileInputStream((String) options.valueOf("schema"))){
+                        diff.setSchema(SchemaFactory.buildSchema(in));
+                    }
+                }
+                if (options.has("partitions")){
+                    diff.setPartitions(Integer.parseInt((String) options.valueOf("partitions")));
+                }
+                if (options.has("threads")){
+                    diff.setThreads(Integer.parseInt((String) options.valueOf("threads")));
+                }
+                if (options.has("temp")){
+                    diff.setTempDirectory(new File((String) options.valueOf("temp")));
+                }
+                diff.setChangedFields(options.has("changed-fields"));
+
+                OutputStream out = options.has("out")
+                        ? new BufferedOutputStream(new FileOutputStream((String) options.valueOf("out")))
+                        : new BufferedOutputStream(System.out);
+                diff.diff(new File((String) options.valueOf("old")), new File((String) options.valueOf("new")), out);
+                out.close();
+                logger.info(String.format("%s inserts, %s updates, %s deletes, %s unchanged",
+                        diff.getInserts(), diff.getUpdates(), diff.getDeletes(), diff.getUnchanged()));
+                result = 0;
+            }
+        }
+        catch (IOException | SchemaException | IllegalStateException ex){
+            logger.severe(ex.getMessage());
+        }
+        catch (OptionException ex){
+            logger.severe(ex.getMessage());
+            printHelp(parser);
+        }
+
+        System.exit(result);
+    }
+}
@@ -0,0 +1,133 @@
+package com.realcomp.prime.record.io.json;
+
+import com.realcomp.prime.DataType;
+import com.realcomp.prime.record.Record;
+import com.realcomp.prime.record.io.IOContextBuilder;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CachedJsonReaderTest{
+
+    private List<Record> readAll(CachedJsonReader reader) throws Exception{
+        List<Record> records = new ArrayList<>();
+        reader.open(new IOContextBuilder().build());
+        Record record = reader.read();
+        while (record != null){
+            records.add(record);
+            record = reader.read();
+        }
+        reader.close();
+        return records;
+    }
+
+    private File write(File dir, String name, String json) throws Exception{
+        File file = new File(dir, name);
+        Files.write(file.toPath(), json.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    @Test
+    public void testCache() throws Exception{
+        File dir = Files.createTempDirectory("cache").toFile();
+        JsonRecordCache cache = new JsonRecordCache(new File(dir, "cache"), 0);
+        File input = write(dir, "in.json",
+                "{\"a\":\"x\",\"n\":1,\"l\":12345678901,\"d\":1.5,\"b\":true,\"m\":{\"c\":[\"p\",\"q\"]}}\n{\"a\":\"y\"}\n");
+
+        CachedJsonReader reader = new CachedJsonReader(cache, input);
+        List<Record> parsed = readAll(reader);
+        assertFalse(reader.isCached());
+        assertEquals(2, parsed.size());
+        assertEquals(1, cache.getMisses());
+
+        reader = new CachedJsonReader(cache, input);
+        List<Record> cached = readAll(reader);
+        assertTrue(reader.isCached());
+        assertEquals(parsed, cached);
+        assertEquals(2, reader.getCount());
+        assertEquals(1, cache.getHits());
+
+        //changed input
+        write(dir, "in.json", "{\"a\":\"z\"}\n");
+        reader = new CachedJsonReader(cache, input);
+        assertEquals("z", readAll(reader).get(0).get("a"));
+        assertFalse(reader.isCached());
+    }
+
+    @Test
+    public void testSkipNotCached() throws Exception{
+        File dir = Files.createTempDirectory("cache").toFile();
+        JsonRecordCache cache = new JsonRecordCache(new File(dir, "cache"), 0);
+        File input = write(dir, "in.json", "{\"a\":\"x\"}\n{\"a\":\"y\"}\n{\"a\":\"z\"}\n");
+
+        CachedJsonReader reader = new CachedJsonReader(cache, input);
+        reader.open(new IOContextBuilder().build());
+        assertEquals(1, reader.skip(1));
+        assertEquals("y", reader.read().get("a"));
+        assertEquals("z", reader.read().get("a"));
+        assertNull(reader.read());
+        reader.close();
+        assertEquals(0, cache.getDirectory().list().length);
+
+        reader = new CachedJsonReader(cache, input);
+        reader.open(new IOContextBuilder().build());
+        assertEquals(3, reader.count());
+        assertNull(reader.read());
+        reader.close();
+        assertEquals(0, cache.getDirectory().list().length);
+
+        //skip and count on a cached entry
+        assertEquals(3, readAll(new CachedJsonReader(cache, input)).size());
+        reader = new CachedJsonReader(cache, input);
+        reader.open(new IOContextBuilder().build());
+        assertTrue(reader.isCached());
+        assertEquals(1, reader.skip(1));
+        assertEquals("y", reader.read().get("a"));
+        assertEquals(1, reader.count());
+        assertNull(reader.read());
+        try{
+            reader.readBatch(new ColumnBatch(
+                    new String[]{"a"}, new DataType[]{DataType.STRING}, 1));
+            fail("expected IllegalStateException");
+        }
+        catch (IllegalStateException expected){
+        }
+        reader.close();
+    }
+
+    @Test
+    public void testIncompleteReadNotCached() throws Exception{
+        File dir = Files.createTempDirectory("cache").toFile();
+        JsonRecordCache cache = new JsonRecordCache(new File(dir, "cache"), 0);
+        File input = write(dir, "in.json", "{\"a\":\"x\"}\n{\"a\":\"y\"}\n");
+
+        CachedJsonReader reader = new CachedJsonReader(cache, input);
+        reader.open(new IOContextBuilder().build());
+        reader.read();
+        reader.close();
+        assertEquals(0, cache.getDirectory().list().length);
+
+        reader = new CachedJsonReader(cache, input);
+        readAll(reader);
+        assertFalse(reader.isCached());
+        assertEquals(1, cache.getDirectory().list().length);
+    }
+
+    @Test
+    public void testEviction() throws Exception{
+        File dir = Files.createTempDirectory("cache").toFile();
+        JsonRecordCache cache = new JsonRecordCache(new File(dir, "cache"), 100);
+        for (String name : Arrays.asList("a.json", "b.json", "c.json")){
+            readAll(new CachedJsonReader(cache, write(dir, name, "{\"value\":\"0123456789012345678901234567890\"}")));
+        }
+        assertTrue(cache.getEvictions() > 0);
+        assertTrue(cache.getDirectory().list().length < 3);
+    }
+}
@@ -0,0 +1,129 @@
+package com.realcomp.prime.record.io.json;
+
+import com.realcomp.prime.DataType;
+import com.realcomp.prime.record.io.IOContext;
+import com.realcomp.prime.record.io.IOContextBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+
+public class ColumnBatchTest {
+
+    private String getJson(){
+        return "{\"i\":1,\"l\":10000000000,\"d\":1.5,\"b\":true,\"s\":\"TX\",\"skip\":{\"a\":[1,2]}}\n"
+                + "{\"i\":2,\"d\":2.5,\"b\":false,\"s\":\"OK\"}\n"
+                + "{\"i\":3,\"l\":7,\"d\":null,\"b\":true,\"s\":\"TX\"}\n";
+    }
+
+    private ColumnBatch getBatch(int capacity){
+        return new ColumnBatch(
+                new String[]{"i", "l", "d", "b", "s"},
+                new DataType[]{DataType.INTEGER, DataType.LONG, DataType.DOUBLE, DataType.BOOLEAN, DataType.STRING},
+                capacity);
+    }
+
+    @Test
+    public void testReadBatch() throws Exception{
+
+        IOContext ctx = new IOContextBuilder().in(new ByteArrayInputStream(getJson().getBytes())).build();
+        JsonReader reader = new JsonReader();
+        reader.open(ctx);
+
+        ColumnBatch batch = getBatch(10);
+        assertEquals(3, reader.readBatch(batch));
+        assertEquals(3, batch.getSize());
+        assertEquals(3, reader.getCount());
+
+        assertArrayEquals(new int[]{1, 2, 3}, Arrays.copyOf(batch.getColumn("i").getInts(), 3));
+
+        ColumnVector l = batch.getColumn("l");
+        assertEquals(10000000000L, l.getLong(0));
+        assertTrue(l.isNull(1));
+        assertEquals(7L, l.getLong(2));
+
+        ColumnVector d = batch.getColumn("d");
+        assertEquals(2.5d, d.getDouble(1), 0.0001d);
+        assertTrue(d.isNull(2));
+
+        ColumnVector b = batch.getColumn("b");
+        assertTrue(b.getBoolean(0));
+        assertFalse(b.getBoolean(1));
+
+        ColumnVector s = batch.getColumn("s");
+        assertEquals("TX", s.getString(0));
+        assertEquals("OK", s.getString(1));
+        assertEquals(s.getCode(0), s.getCode(2));
+        assertEquals(2, s.getDictionary().size());
+
+        assertEquals(0, reader.readBatch(batch));
+        reader.close();
+    }
+
+    @Test
+    public void testMultipleBatches() throws Exception{
+
+        IOContext ctx = new IOContextBuilder()
+                .in(this.getClass().getResourceAsStream("multiRecordSample.json")).build();
+        JsonReader reader = new JsonReader();
+        reader.open(ctx);
+
+        ColumnBatch batch = new ColumnBatch(
+                new String[]{"address", "zip"}, new DataType[]{DataType.STRING, DataType.INTEGER}, 1);
+        assertEquals(1, reader.readBatch(batch));
+        assertEquals("8665 EPHRAIM RD", batch.getColumn("address").getString(0));
+        assertEquals(78717, batch.getColumn("zip").getInt(0));
+        assertEquals(1, reader.readBatch(batch));
+        assertEquals("8666 EPHRAIM RD", batch.getColumn("address").getString(0));
+        assertEquals(0, reader.readBatch(batch));
+        reader.close();
+    }
+
+    @Test
+    public void testTypeMismatch() throws Exception{
+
+        String json = "{\"i\":1.9,\"l\":\"abc\",\"d\":\"x1.5\",\"b\":0,\"s\":12}\n"
+                + "{\"i\":10000000000,\"l\":3,\"d\":4,\"b\":false,\"s\":true}\n";
+        JsonReader reader = new JsonReader();
+        reader.open(new IOContextBuilder().in(new ByteArrayInputStream(json.getBytes())).build());
+        ColumnBatch batch = getBatch(10);
+        assertEquals(2, reader.readBatch(batch));
+        assertTrue(batch.getColumn("i").isNull(0));
+        assertTrue(batch.getColumn("i").isNull(1));
+        assertTrue(batch.getColumn("l").isNull(0));
+        assertEquals(3L, batch.getColumn("l").getLong(1));
+        assertTrue(batch.getColumn("d").isNull(0));
+        assertEquals(4d, batch.getColumn("d").getDouble(1), 0.0001d);
+        assertTrue(batch.getColumn("b").isNull(0));
+        assertFalse(batch.getColumn("b").isNull(1));
+        assertEquals("12", batch.getColumn("s").getString(0));
+        assertEquals("true", batch.getColumn("s").getString(1));
+        reader.close();
+    }
+
+    @Test
+    public void testDictionaryLimit() throws Exception{
+
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 100; i++){
+            json.append("{\"s\":\"v").append(i).append("\"}\n");
+        }
+        JsonReader reader = new JsonReader();
+        reader.open(new IOContextBuilder().in(new ByteArrayInputStream(json.toString().getBytes())).build());
+        ColumnBatch batch = new ColumnBatch(new String[]{"s"}, new DataType[]{DataType.STRING}, 10);
+        batch.setMaxDictionarySize(25);
+        ColumnVector s = batch.getColumn("s");
+        int batches = 0;
+        while (reader.readBatch(batch) > 0){
+            assertTrue(s.getDictionary().size() <= 25 + 10);
+            assertEquals("v" + (batches * 10 + 9), s.getString(9));
+            batches++;
+        }
+        assertEquals(10, batches);
+        assertEquals(3, s.getDictionaryResets());
+        reader.close();
+    }
+}
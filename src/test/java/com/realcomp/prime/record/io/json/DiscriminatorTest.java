@@ -0,0 +1,94 @@
+package com.realcomp.prime.record.io.json;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.realcomp.prime.record.Record;
+import com.realcomp.prime.schema.FieldList;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class DiscriminatorTest{
+
+    private final FieldList person = new FieldList();
+    private final FieldList company = new FieldList();
+
+    private Discriminator discriminator(){
+        Map<String, FieldList> layouts = new HashMap<>();
+        layouts.put("PERSON", person);
+        layouts.put("COMPANY", company);
+        Map<FieldList, Set<String>> projections = new IdentityHashMap<>();
+        projections.put(person, new HashSet<>(Arrays.asList("type", "name")));
+        projections.put(company, new HashSet<>(Arrays.asList("type", "name", "employees")));
+        return new Discriminator("type", layouts, projections);
+    }
+
+    private Map build(String json, Discriminator discriminator) throws Exception{
+        JsonParser parser = new JsonFactory().createJsonParser(json);
+        parser.nextToken();
+        return new JsonTreeBuilder().build(parser, discriminator);
+    }
+
+    @Test
+    public void testLiterals(){
+        assertEquals(Collections.singletonList("PERSON"), Discriminator.literals("PERSON"));
+        assertEquals(Arrays.asList("PERSON", "PEOPLE"), Discriminator.literals("^(PERSON|PEOPLE)$"));
+        assertEquals(Collections.singletonList("a.b"), Discriminator.literals("\\Qa.b\\E"));
+        assertTrue(Discriminator.literals("P.*").isEmpty());
+        assertTrue(Discriminator.literals("PERSON|[A-Z]+").isEmpty());
+    }
+
+    @Test
+    public void testGet(){
+        Discriminator discriminator = discriminator();
+        assertSame(person, discriminator.get("PERSON"));
+        assertSame(company, discriminator.get("COMPANY"));
+        assertNull(discriminator.get("ANIMAL"));
+        assertNull(discriminator.get(null));
+
+        Record record = new Record();
+        record.put("type", "COMPANY");
+        try{
+            assertSame(company, discriminator.classify(null, record));
+        }
+        catch (Exception ex){
+            fail(ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testProjection() throws Exception{
+        Discriminator discriminator = discriminator();
+        Map map = build(
+                "{\"id\":1,\"type\":\"PERSON\",\"name\":\"x\",\"employees\":[1,2],\"address\":{\"name\":\"y\"}}",
+                discriminator);
+        assertEquals(3, map.size());
+        assertEquals(1, map.get("id"));
+        assertEquals("PERSON", map.get("type"));
+        assertEquals("x", map.get("name"));
+
+        map = build(
+                "{\"type\":\"COMPANY\",\"name\":\"x\",\"employees\":[1,2],\"address\":{\"name\":\"y\"}}",
+                discriminator);
+        assertEquals(3, map.size());
+        assertEquals(Arrays.asList(1, 2), map.get("employees"));
+
+        //unknown value; nothing is skipped
+        map = build("{\"type\":\"ANIMAL\",\"name\":\"x\",\"address\":{\"name\":\"y\"}}", discriminator);
+        assertEquals(3, map.size());
+        assertEquals("y", ((Map) map.get("address")).get("name"));
+
+        //discriminator in a nested object is ignored
+        map = build("{\"address\":{\"type\":\"PERSON\",\"zip\":\"78717\"},\"zip\":\"78717\"}", discriminator);
+        assertEquals(2, map.size());
+        assertEquals(2, ((Map) map.get("address")).size());
+    }
+}
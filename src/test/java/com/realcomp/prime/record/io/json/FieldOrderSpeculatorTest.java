@@ -0,0 +1,85 @@
+package com.realcomp.prime.record.io.json;
+
+import com.realcomp.prime.record.Record;
+import com.realcomp.prime.record.io.IOContextBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FieldOrderSpeculatorTest{
+
+    private List<Record> read(String ndjson, JsonReader reader, boolean speculative) throws Exception{
+        reader.open(new IOContextBuilder()
+                .attribute("speculative", Boolean.toString(speculative))
+                .in(new ByteArrayInputStream(ndjson.getBytes("UTF-8"))).build());
+        List<Record> records = new ArrayList<>();
+        Record record = reader.read();
+        while (record != null){
+            records.add(record);
+            record = reader.read();
+        }
+        return records;
+    }
+
+    @Test
+    public void testSameAsGeneric() throws Exception{
+        String ndjson =
+                "{\"id\":1,\"name\":\"a\",\"amount\":1.5,\"active\":true,\"tags\":[\"x\"],\"address\":{\"zip\":\"78717\"}}\n"
+                + "{\"id\":2,\"name\":\"b\",\"amount\":2.5,\"active\":false,\"tags\":[],\"address\":{\"zip\":\"78701\"}}\n"
+                + "{\"id\":3,\"name\":\"c\",\"amount\":3.5,\"active\":true,\"tags\":[\"y\",\"z\"],\"address\":null}\n"
+                //long value, type change
+                + "{\"id\":12345678901,\"name\":7,\"amount\":4.5,\"active\":true,\"tags\":[],\"address\":{}}\n"
+                //missing field
+                + "{\"id\":5,\"name\":\"e\",\"amount\":5.5}\n"
+                //extra field
+                + "{\"id\":6,\"name\":\"f\",\"amount\":6.5,\"active\":true,\"tags\":[],\"address\":{},\"extra\":1}\n"
+                //reordered
+                + "{\"name\":\"g\",\"id\":7,\"amount\":7.5,\"active\":true,\"tags\":[],\"address\":{}}\n"
+                + "{\"id\":8,\"name\":\"h\",\"amount\":8.5,\"active\":false,\"tags\":[\"q\"],\"address\":{\"zip\":\"1\"}}\n";
+
+        List<Record> expected = read(ndjson, new JsonReader(), false);
+        JsonReader reader = new JsonReader();
+        List<Record> actual = read(ndjson, reader, true);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++){
+            assertEquals(expected.get(i).asSimpleMap(), actual.get(i).asSimpleMap());
+        }
+
+        FieldOrderSpeculator speculator = reader.getSpeculator();
+        assertEquals(Arrays.asList("id", "name", "amount", "active", "tags", "address"), speculator.getLayout());
+        assertEquals(3, speculator.getHits());
+        assertEquals(4, speculator.getMisses());
+        assertEquals(0, speculator.getRelearns());
+        reader.close();
+    }
+
+    @Test
+    public void testRelearn() throws Exception{
+        StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i < 5; i++){
+            ndjson.append("{\"a\":").append(i).append(",\"b\":\"x\"}\n");
+        }
+        for (int i = 0; i < 20; i++){
+            ndjson.append("{\"c\":\"y\",\"a\":").append(i).append("}\n");
+        }
+        JsonReader reader = new JsonReader();
+        List<Record> records = read(ndjson.toString(), reader, true);
+        assertEquals(25, records.size());
+        assertEquals(19, records.get(24).get("a"));
+        assertEquals("y", records.get(24).get("c"));
+
+        FieldOrderSpeculator speculator = reader.getSpeculator();
+        assertEquals(1, speculator.getRelearns());
+        assertEquals(Arrays.asList("c", "a"), speculator.getLayout());
+        assertEquals(FieldOrderSpeculator.DEFAULT_RELEARN_THRESHOLD, speculator.getMisses());
+        assertEquals(4 + 20 - FieldOrderSpeculator.DEFAULT_RELEARN_THRESHOLD - 1, speculator.getHits());
+        reader.close();
+
+        assertNull(new JsonReader().getSpeculator());
+    }
+}
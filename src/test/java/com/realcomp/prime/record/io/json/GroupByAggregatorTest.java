@@ -0,0 +1,122 @@
+package com.realcomp.prime.record.io.json;
+
+import com.realcomp.prime.record.Record;
+import com.realcomp.prime.record.io.IOContextBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class GroupByAggregatorTest{
+
+    private final List<Aggregate> aggregates = Aggregate.parseList("count,sum:amount,min:amount,max:amount,distinct:user");
+
+    private Record record(String zip, Object amount, String user){
+        Record record = new Record();
+        record.put("zip", zip);
+        record.put("amount", amount);
+        record.put("user", user);
+        return record;
+    }
+
+    private Map<String, Record> write(GroupByAggregator aggregator) throws Exception{
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonWriter writer = new JsonWriter();
+        writer.open(new IOContextBuilder().out(out).build());
+        aggregator.write(writer);
+        writer.close();
+
+        Map<String, Record> groups = new HashMap<>();
+        JsonReader reader = new JsonReader();
+        reader.open(new IOContextBuilder().in(new ByteArrayInputStream(out.toByteArray())).build());
+        Record record = reader.read();
+        while (record != null){
+            assertNull(groups.put((String) record.get("zip"), record));
+            record = reader.read();
+        }
+        reader.close();
+        return groups;
+    }
+
+    @Test
+    public void testParse(){
+        Aggregate aggregate = Aggregate.parse("sum:amount:total");
+        assertEquals(Aggregate.Function.SUM, aggregate.getFunction());
+        assertEquals("amount", aggregate.getField());
+        assertEquals("total", aggregate.getName());
+        assertEquals("count", Aggregate.parse("count").getName());
+        assertEquals("max_amount", Aggregate.parse("MAX:amount").getName());
+        assertEquals(Aggregate.parse("MAX:amount"), Aggregate.parse("max:amount:max_amount"));
+        assertEquals(Aggregate.parse("MAX:amount").hashCode(), Aggregate.parse("max:amount:max_amount").hashCode());
+        assertFalse(Aggregate.parse("max:amount").equals(Aggregate.parse("min:amount")));
+        assertFalse(Aggregate.parse("count").equals(Aggregate.parse("count:amount")));
+        try{
+            Aggregate.parse("median:amount");
+            fail("expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException expected){
+        }
+    }
+
+    @Test
+    public void testAggregate() throws Exception{
+        try (GroupByAggregator aggregator = new GroupByAggregator(Arrays.asList("zip"), aggregates, 0, null)){
+            aggregator.add(record("78717", 5, "a"));
+            aggregator.add(record("78717", 3, "b"));
+            aggregator.add(record("78717", 9, "a"));
+            aggregator.add(record("78701", 1.5f, "c"));
+            aggregator.add(record("78701", null, "c"));
+            assertEquals(2, aggregator.getGroups());
+
+            Map<String, Record> groups = write(aggregator);
+            assertEquals(2, groups.size());
+            Record record = groups.get("78717");
+            assertEquals(3, ((Number) record.get("count")).longValue());
+            assertEquals(17, ((Number) record.get("sum_amount")).longValue());
+            assertEquals(3, ((Number) record.get("min_amount")).longValue());
+            assertEquals(9, ((Number) record.get("max_amount")).longValue());
+            assertEquals(2, ((Number) record.get("distinct_user")).longValue());
+
+            record = groups.get("78701");
+            assertEquals(2, ((Number) record.get("count")).longValue());
+            assertEquals(1.5d, ((Number) record.get("sum_amount")).doubleValue(), 0.0001d);
+            assertEquals(1, ((Number) record.get("distinct_user")).longValue());
+            assertEquals(0, aggregator.getGroups());
+        }
+    }
+
+    @Test
+    public void testSpillAndMerge() throws Exception{
+        File dir = Files.createTempDirectory("groupby").toFile();
+        try (GroupByAggregator aggregator = new GroupByAggregator(Arrays.asList("zip"), aggregates, 16 * 1024, dir)){
+            GroupByAggregator result = IntStream.range(0, 20000).parallel()
+                    .mapToObj(i -> record(Integer.toString(i % 1000), i % 10, Integer.toString(i % 3)))
+                    .collect(aggregator.collector());
+            assertSame(aggregator, result);
+            assertTrue(aggregator.getSpillCount() > 0);
+
+            Map<String, Record> groups = write(aggregator);
+            assertEquals(1000, groups.size());
+            for (int zip = 0; zip < 1000; zip++){
+                Record record = groups.get(Integer.toString(zip));
+                assertEquals(20, ((Number) record.get("count")).longValue());
+                assertEquals(20 * (zip % 10), ((Number) record.get("sum_amount")).longValue());
+                assertEquals(zip % 10, ((Number) record.get("min_amount")).longValue());
+                assertEquals(3, ((Number) record.get("distinct_user")).longValue());
+            }
+            assertEquals(0, dir.list().length);
+        }
+        finally{
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.realcomp.prime.record.io.json;
+
+import com.realcomp.prime.record.Record;
+import com.realcomp.prime.record.io.IOContextBuilder;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+
+public class JsonDirectoryReaderTest {
+
+    private Path getDirectory() throws Exception{
+        Path directory = Files.createTempDirectory("prime-json");
+        directory.toFile().deleteOnExit();
+        for (int f = 0; f < 5; f++){
+            StringBuilder json = new StringBuilder();
+            for (int i = 0; i < 100; i++){
+                json.append("{\"f\":").append(f).append(",\"i\":").append(i).append("}\n");
+            }
+            Path file = directory.resolve("file" + f + ".json");
+            Files.write(file, json.toString().getBytes());
+            file.toFile().deleteOnExit();
+        }
+        Path bad = directory.resolve("file5.json");
+        Files.write(bad, "{\"f\":5,\"i\":0}\n{\"f\":5,\"i\":".getBytes());
+        bad.toFile().deleteOnExit();
+        Path skipped = directory.resolve("readme.txt");
+        Files.write(skipped, "not json".getBytes());
+        skipped.toFile().deleteOnExit();
+        return directory;
+    }
+
+    @Test
+    public void testGrouped() throws Exception{
+
+        Path directory = getDirectory();
+        try (JsonDirectoryReader reader = new JsonDirectoryReader(
+                directory, "*.json", new IOContextBuilder().build(), 3, JsonDirectoryReader.Order.GROUPED, 10)){
+            reader.open();
+            List<Record> records = new ArrayList<>();
+            Record record = reader.read();
+            while (record != null){
+                records.add(record);
+                record = reader.read();
+            }
+            assertEquals(501, records.size());
+            for (int i = 0; i < 500; i++){
+                assertEquals(i / 100, records.get(i).get("f"));
+                assertEquals(i % 100, records.get(i).get("i"));
+            }
+            assertEquals(6, reader.getCounts().size());
+            assertEquals(Long.valueOf(100), reader.getCounts().get(directory.resolve("file0.json")));
+            assertEquals(Long.valueOf(1), reader.getCounts().get(directory.resolve("file5.json")));
+            assertEquals(1, reader.getErrors().size());
+            assertTrue(reader.getErrors().containsKey(directory.resolve("file5.json")));
+        }
+    }
+
+    @Test
+    public void testInterleaved() throws Exception{
+
+        Path directory = getDirectory();
+        try (JsonDirectoryReader reader = new JsonDirectoryReader(
+                directory, "*.json", new IOContextBuilder().build(), 4, JsonDirectoryReader.Order.INTERLEAVED)){
+            reader.open();
+            int[] perFile = new int[6];
+            Record record = reader.read();
+            while (record != null){
+                perFile[(Integer) record.get("f")]++;
+                record = reader.read();
+            }
+            assertArrayEquals(new int[]{100, 100, 100, 100, 100, 1}, perFile);
+            assertEquals(501, reader.getCount());
+            assertEquals(1, reader.getErrors().size());
+        }
+    }
+
+    @Test
+    public void testMemoryBudget() throws Exception{
+
+        Path directory = getDirectory();
+        MemoryBudget budget = new MemoryBudget(4096);
+        for (JsonDirectoryReader.Order order : JsonDirectoryReader.Order.values()){
+            try (JsonDirectoryReader reader = new JsonDirectoryReader(
+                    directory, "*.json", new IOContextBuilder().build(), 3, order, 1000)){
+                reader.setMemoryBudget(budget);
+                reader.open();
+                int count = 0;
+                while (reader.read() != null){
+                    count++;
+                    Thread.sleep(count % 50 == 0 ? 1 : 0);
+                }
+                assertEquals(501, count);
+            }
+            assertEquals(0, budget.getUsed());
+        }
+        assertTrue(budget.getPeak() > 0);
+        assertTrue(budget.getWaits() > 0);
+    }
+
+    @Test
+    public void testSpilledValues() throws Exception{
+
+        Path directory = Files.createTempDirectory("prime-json");
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 20; i++){
+            json.append("{\"i\":").append(i).append(",\"big\":\"");
+            for (int c = 0; c < 100; c++){
+                json.append(i % 10);
+            }
+            json.append("\"}\n");
+        }
+        Path file = directory.resolve("file.json");
+        Files.write(file, json.toString().getBytes());
+        Path spillDirectory = Files.createTempDirectory("prime-spill");
+
+        try (JsonDirectoryReader reader = new JsonDirectoryReader(directory, "*.json",
+                new IOContextBuilder()
+                        .attribute("spillThreshold", "50")
+                        .attribute("spillDirectory", spillDirectory.toString())
+                        .build(),
+                1, JsonDirectoryReader.Order.GROUPED, 10)){
+            reader.open();
+            Record record = reader.read();
+            while (record != null){
+                //still available, although the worker has read ahead
+                String big = record.get("big").toString();
+                assertEquals(100, big.length());
+                assertEquals((Integer) record.get("i") % 10, big.charAt(0) - '0');
+                record = reader.read();
+            }
+            assertEquals(20, reader.getCount());
+        }
+        assertEquals(0, spillDirectory.toFile().list().length);
+        Files.delete(spillDirectory);
+        Files.delete(file);
+        Files.delete(directory);
+    }
+}
@@ -0,0 +1,139 @@
+package com.realcomp.prime.record.io.json;
+
+import com.realcomp.prime.record.Record;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class JsonIngestListenerTest{
+
+    private void awaitRecords(JsonIngestListener listener, long handled) throws InterruptedException{
+        long deadline = System.currentTimeMillis() + 10000;
+        while (listener.getHandled() < handled && System.currentTimeMillis() < deadline){
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testIngest() throws Exception{
+
+        Set<String> received = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        JsonIngestListener listener = new JsonIngestListener(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                (Record r) -> {
+                    try{
+                        //slow enough for the small queue to fill
+                        Thread.sleep(1);
+                    }
+                    catch (InterruptedException ex){
+                        Thread.currentThread().interrupt();
+                    }
+                    received.add(r.get("client") + ":" + r.get("n"));
+                },
+                executor, 2, 4);
+        listener.start();
+
+        List<Thread> clients = new ArrayList<>();
+        for (int c = 0; c < 5; c++){
+            final int client = c;
+            Thread thread = new Thread(() -> {
+                try (Socket socket = new Socket(listener.getAddress().getAddress(), listener.getAddress().getPort())){
+                    OutputStream out = socket.getOutputStream();
+                    StringBuilder json = new StringBuilder();
+                    for (int n = 0; n < 200; n++){
+                        json.append("{\"client\":\"").append(client).append("\",\"n\":").append(n).append("}\r\n");
+                    }
+                    json.append("not json\n");
+                    //the last record has no newline
+                    json.append("{\"client\":\"").append(client).append("\",\"n\":200}");
+                    out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+                catch (Exception ex){
+                    throw new RuntimeException(ex);
+                }
+            });
+            thread.start();
+            clients.add(thread);
+        }
+        for (Thread thread : clients){
+            thread.join();
+        }
+
+        awaitRecords(listener, 5 * 201);
+        //waits for the handlers, which also count parse errors
+        listener.close();
+        executor.shutdown();
+        assertEquals(5 * 201, listener.getRecords());
+        assertEquals(5 * 201, received.size());
+        assertEquals(5, listener.getParseErrors());
+        assertEquals(5, listener.getAccepted());
+        assertTrue(listener.getPauses() > 0);
+        assertTrue(listener.getBytes() > 0);
+        assertEquals(0, listener.getConnections());
+    }
+
+    @Test
+    public void testMaxRecordBytes() throws Exception{
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        JsonIngestListener listener = new JsonIngestListener(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), r -> {}, executor, 1, 16);
+        listener.setMaxRecordBytes(100);
+        listener.start();
+        try (Socket socket = new Socket(listener.getAddress().getAddress(), listener.getAddress().getPort())){
+            StringBuilder json = new StringBuilder("{\"a\":\"");
+            for (int i = 0; i < 5000; i++){
+                json.append('x');
+            }
+            json.append("\"}\n{\"a\":\"b\"}\n");
+            socket.getOutputStream().write(json.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        awaitRecords(listener, 1);
+        assertEquals(1, listener.getRecords());
+        assertEquals(1, listener.getParseErrors());
+        listener.close();
+        executor.shutdown();
+    }
+
+    @Test
+    public void testLimitsAndMemoryBudget() throws Exception{
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        JsonIngestListener listener = new JsonIngestListener(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), r -> {}, executor, 1, 16);
+        MemoryBudget budget = new MemoryBudget(1024 * 1024);
+        listener.setMemoryBudget(budget);
+        listener.setLimits(2, 0);
+        listener.start();
+        try{
+            listener.setMemoryBudget(null);
+            fail("expected IllegalStateException");
+        }
+        catch (IllegalStateException expected){
+        }
+        try (Socket socket = new Socket(listener.getAddress().getAddress(), listener.getAddress().getPort())){
+            socket.getOutputStream().write(
+                    "{\"a\":{\"b\":{\"c\":1}}}\n{\"a\":{\"b\":1}}\n".getBytes(StandardCharsets.UTF_8));
+        }
+        awaitRecords(listener, 1);
+        listener.close();
+        executor.shutdown();
+        assertEquals(1, listener.getRecords());
+        assertEquals(1, listener.getParseErrors());
+        assertEquals(0, budget.getUsed());
+    }
+}
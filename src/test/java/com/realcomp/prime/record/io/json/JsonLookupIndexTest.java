@@ -0,0 +1,101 @@
+package com.realcomp.prime.record.io.json;
+
+import com.realcomp.prime.record.Record;
+import com.realcomp.prime.record.io.IOContextBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class JsonLookupIndexTest{
+
+    private File build(String json, List<String> keyFields) throws Exception{
+        File file = File.createTempFile("lookup", ".idx");
+        file.deleteOnExit();
+        JsonLookupIndex.build(
+                new IOContextBuilder().in(new ByteArrayInputStream(json.getBytes("UTF-8"))).build(),
+                keyFields, file);
+        return file;
+    }
+
+    @Test
+    public void testLookup() throws Exception{
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 1000; i++){
+            json.append("{\"zip\":\"").append(70000 + i).append("\",\"county\":\"C").append(i)
+                    .append("\",\"codes\":[1,2.5,true]}\n");
+        }
+        json.append("{\"zip\":\"70001\",\"county\":\"duplicate\"}\n");
+
+        try (JsonLookupIndex index = new JsonLookupIndex(build(json.toString(), Collections.singletonList("zip")))){
+            assertEquals(1001, index.size());
+            assertEquals("C0", index.get("70000").get("county"));
+            assertEquals("C1", index.get("70001").get("county"));
+            assertEquals("C999", index.get("70999").get("county"));
+            assertEquals(Arrays.asList(1, 2.5f, true), index.get("70500").get("codes"));
+            assertNull(index.get("71000"));
+
+            index.setCacheSize(2);
+            index.get("70000");
+            index.get("70000");
+            assertEquals(1, index.getCacheHits());
+            assertEquals(1, index.getCacheMisses());
+
+            //a cached record is not shared with callers
+            Record record = index.get("70500");
+            ((List) record.get("codes")).clear();
+            record.put("county", "changed");
+            assertEquals("C500", index.get("70500").get("county"));
+            assertEquals(Arrays.asList(1, 2.5f, true), index.get("70500").get("codes"));
+        }
+    }
+
+    @Test
+    public void testCompositeKey() throws Exception{
+        String json = "{\"a\":\"1\",\"b\":2,\"v\":\"x\"}\n{\"a\":\"1\",\"b\":3,\"v\":\"y\"}";
+        try (JsonLookupIndex index = new JsonLookupIndex(build(json, Arrays.asList("a", "b")))){
+            assertEquals("x", index.get(JsonLookupIndex.key("1", 2)).get("v"));
+            assertEquals("y", index.get(JsonLookupIndex.key("1", 3)).get("v"));
+            assertNull(index.get(JsonLookupIndex.key("1", 4)));
+        }
+    }
+
+    @Test
+    public void testMissingKey() throws Exception{
+        String json = "{\"v\":\"missing\"}\n{\"id\":null,\"v\":\"null value\"}\n{\"id\":\"null\",\"v\":\"real\"}";
+        try (JsonLookupIndex index = new JsonLookupIndex(build(json, Collections.singletonList("id")))){
+            assertEquals(1, index.size());
+            assertEquals("real", index.get("null").get("v"));
+            assertNull(index.get(JsonLookupIndex.key((Object) null)));
+        }
+    }
+
+    @Test
+    public void testConversion() throws Exception{
+        File file = build("{\"code\":\"A\",\"category\":\"Auto\"}", Collections.singletonList("code"));
+        JsonLookupRegistry.register("products", new JsonLookupIndex(file));
+        try{
+            JsonLookup lookup = new JsonLookup("products", "category");
+            assertEquals("Auto", lookup.convert("A"));
+            assertNull(lookup.convert("B"));
+            assertEquals("Auto", lookup.copyOf().convert("A"));
+            assertEquals("Auto", new JsonLookup(file.getPath(), "category").convert("A"));
+        }
+        finally{
+            JsonLookupRegistry.unregister("products").close();
+            JsonLookupRegistry.unregister(file.getPath()).close();
+        }
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void testNotAnIndex() throws Exception{
+        File file = File.createTempFile("lookup", ".idx");
+        file.deleteOnExit();
+        new JsonLookupIndex(file);
+    }
+}
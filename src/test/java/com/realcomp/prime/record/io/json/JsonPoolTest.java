@@ -0,0 +1,74 @@
+package com.realcomp.prime.record.io.json;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.realcomp.prime.record.Record;
+import com.realcomp.prime.record.io.IOContext;
+import com.realcomp.prime.record.io.IOContextBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+
+public class JsonPoolTest {
+
+    @Test
+    public void testReaderReuse() throws Exception{
+
+        JsonPool pool = new JsonPool();
+        JsonReader first = null;
+        for (int i = 0; i < 3; i++){
+            IOContext ctx = new IOContextBuilder()
+                    .in(new ByteArrayInputStream(("{\"i\":" + i + "}").getBytes())).build();
+            JsonReader reader = pool.borrowReader(ctx);
+            if (first == null){
+                first = reader;
+            }
+            assertSame(first, reader);
+            Record record = reader.read();
+            assertEquals(i, record.get("i"));
+            assertEquals(1, reader.getCount());
+            assertNull(reader.read());
+            pool.returnReader(reader);
+        }
+    }
+
+    @Test
+    public void testWriterReuse() throws Exception{
+
+        JsonPool pool = new JsonPool();
+        JsonWriter first = null;
+        for (int i = 0; i < 3; i++){
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            IOContext ctx = new IOContextBuilder().out(out).attribute("singleObject", "true").build();
+            JsonWriter writer = pool.borrowWriter(ctx);
+            if (first == null){
+                first = writer;
+            }
+            assertSame(first, writer);
+            Record record = new Record();
+            record.put("i", i);
+            writer.write(record);
+            pool.returnWriter(writer);
+            assertEquals("[{\"i\":" + i + "}]", new String(out.toByteArray()));
+        }
+    }
+
+    @Test
+    public void testFactoryNotModified() throws Exception{
+
+        JsonFactory factory = new JsonFactory();
+        JsonWriter writer = new JsonWriter(factory);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.open(new IOContextBuilder().out(out).build());
+        Record record = new Record();
+        record.put("i", 1);
+        writer.write(record);
+        writer.close(false);
+        assertTrue(factory.isEnabled(JsonGenerator.Feature.AUTO_CLOSE_TARGET));
+        assertEquals("{\"i\":1}\n", out.toString("UTF-8"));
+    }
+}
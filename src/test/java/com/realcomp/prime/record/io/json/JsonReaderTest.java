@@ -1,6 +1,7 @@
 package com.realcomp.prime.record.io.json;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.realcomp.prime.DataType;
 import com.realcomp.prime.record.Record;
 import com.realcomp.prime.record.io.IOContext;
 import com.realcomp.prime.record.io.IOContextBuilder;
@@ -8,9 +9,26 @@ import com.realcomp.prime.record.io.RecordReaderFactory;
 import com.realcomp.prime.schema.SchemaFactory;
 import org.junit.Test;
 
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.*;
 
@@ -159,6 +177,485 @@ public class JsonReaderTest {
 
     }
 
+
+    @Test
+    public void testStringCache() throws Exception{
+
+        IOContext ctx = new IOContextBuilder()
+                .attribute("stringCacheFields", "source")
+                .in(this.getClass().getResourceAsStream("sample2.json")).build();
+        JsonReader reader = new JsonReader();
+        reader.open(ctx);
+
+        Record first = reader.read();
+        Record second = reader.read();
+        assertEquals("relevate", first.get("source"));
+        assertSame(first.get("source"), second.get("source"));
+        assertNotSame(first.get("product"), second.get("product"));
+        assertEquals(1, reader.getStringCache().getHits());
+        reader.close();
+    }
+
+    @Test
+    public void testDeeplyNested() throws Exception{
+
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 100000; i++){
+            json.append("{\"a\":");
+        }
+        json.append("1");
+        for (int i = 0; i < 100000; i++){
+            json.append("}");
+        }
+        json.append("\n{\"b\":[[[[2]]]]}");
+
+        IOContext ctx = new IOContextBuilder()
+                .attribute("maxDepth", "0")
+                .in(new ByteArrayInputStream(json.toString().getBytes())).build();
+        JsonReader reader = new JsonReader();
+        reader.open(ctx);
+        assertNotNull(reader.read());
+        assertNotNull(reader.read());
+        assertNull(reader.read());
+        reader.close();
+    }
+
+    @Test
+    public void testLimits() throws Exception{
+
+        String json = "{\"a\":[[[[1]]]]}\n{\"b\":1}\n{\"c\":[1,2,3,4]}\n{\"d\":\"0123456789\"}\n{\"e\":2}";
+        IOContext ctx = new IOContextBuilder()
+                .attribute("maxDepth", "3")
+                .attribute("maxObjectSize", "3")
+                .in(new ByteArrayInputStream(json.getBytes())).build();
+        JsonReader reader = new JsonReader();
+        reader.open(ctx);
+        try{
+            reader.read();
+            fail("expected JsonLimitException");
+        }
+        catch (JsonLimitException expected){
+        }
+        assertEquals(1, reader.read().get("b"));
+        try{
+            reader.read();
+            fail("expected JsonLimitException");
+        }
+        catch (JsonLimitException expected){
+        }
+        assertEquals("0123456789", reader.read().get("d"));
+        assertEquals(2, reader.read().get("e"));
+        assertNull(reader.read());
+        assertEquals(3, reader.getCount());
+        reader.close();
+
+        ctx = new IOContextBuilder()
+                .attribute("maxDocumentBytes", "10")
+                .in(new ByteArrayInputStream(json.getBytes())).build();
+        reader = new JsonReader();
+        reader.open(ctx);
+        try{
+            reader.read();
+            fail("expected JsonLimitException");
+        }
+        catch (JsonLimitException expected){
+        }
+        assertEquals(1, reader.read().get("b"));
+        reader.close();
+    }
+
+    @Test
+    public void testReadAhead() throws Exception{
+
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 1000; i++){
+            json.append("{\"i\":").append(i).append("}\n");
+        }
+        IOContext ctx = new IOContextBuilder()
+                .attribute("readAhead", "true")
+                .attribute("readAheadBuffers", "2")
+                .attribute("readAheadBufferSize", "64")
+                .in(new ByteArrayInputStream(json.toString().getBytes())).build();
+        JsonReader reader = new JsonReader();
+        reader.open(ctx);
+        for (int i = 0; i < 1000; i++){
+            assertEquals(i, reader.read().get("i"));
+        }
+        assertNull(reader.read());
+        assertEquals(json.length(), reader.getReadAhead().getBytesRead());
+        reader.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testReadAheadFailure() throws Exception{
+
+        InputStream broken = new InputStream(){
+            @Override
+            public int read(){
+                throw new IllegalStateException("broken");
+            }
+        };
+        ReadAheadInputStream in = new ReadAheadInputStream(broken, 2, 64);
+        try{
+            in.read();
+            fail("expected IOException");
+        }
+        catch (IOException expected){
+            assertTrue(expected.getCause() instanceof IllegalStateException);
+        }
+        in.close();
+    }
+
+    @Test
+    public void testStream() throws Exception{
+
+        IOContext ctx = new IOContextBuilder()
+                .in(this.getClass().getResourceAsStream("multiRecordSample.json")).build();
+        JsonReader reader = new JsonReader();
+        reader.open(ctx);
+        try (Stream<Record> stream = reader.stream()){
+            List<Object> addresses = stream.map(r -> r.get("address")).collect(Collectors.toList());
+            assertEquals(Arrays.asList("8665 EPHRAIM RD", "8666 EPHRAIM RD"), addresses);
+        }
+    }
+
+    @Test
+    public void testStreamClosesWhenExhausted() throws Exception{
+
+        final boolean[] closed = new boolean[1];
+        InputStream in = new ByteArrayInputStream("{\"a\":1}\n{\"a\":2}\n".getBytes("UTF-8")){
+            @Override
+            public void close() throws IOException{
+                closed[0] = true;
+                super.close();
+            }
+        };
+        JsonReader reader = new JsonReader();
+        reader.open(new IOContextBuilder().in(in).build());
+        //not closed by the caller
+        assertEquals(2, reader.stream().count());
+        assertTrue(closed[0]);
+    }
+
+    @Test
+    public void testSkipAndCount() throws Exception{
+
+        JsonReader reader = new JsonReader();
+        reader.open(new IOContextBuilder()
+                .in(this.getClass().getResourceAsStream("multiRecordSample.json")).build());
+        assertEquals(1, reader.skip(1));
+        assertEquals("8666 EPHRAIM RD", reader.read().get("address"));
+        assertNull(reader.read());
+        reader.close();
+
+        String ndjson = "{\"a\":\"}{\"}\n{\"a\":\"\\\"}\",\"b\":[{\"c\":1}]}\n{\"a\":\"x\"}\n{\"a\":\"y\"}\n";
+        reader.open(new IOContextBuilder().in(new ByteArrayInputStream(ndjson.getBytes("UTF-8"))).build());
+        assertEquals(2, reader.skip(2));
+        assertEquals("x", reader.read().get("a"));
+        assertEquals(1, reader.count());
+        reader.close();
+
+        reader.open(new IOContextBuilder().in(new ByteArrayInputStream(ndjson.getBytes("UTF-8"))).build());
+        assertEquals(4, reader.count());
+        reader.close();
+
+        reader.open(new IOContextBuilder()
+                .in(this.getClass().getResourceAsStream("multiRecordSample.json")).build());
+        reader.read();
+        assertEquals(1, reader.skip(5));
+        assertNull(reader.read());
+        reader.close();
+
+        //past the end of the top-level array on the raw path
+        reader.open(new IOContextBuilder()
+                .in(this.getClass().getResourceAsStream("multiRecordSample.json")).build());
+        assertEquals(2, reader.skip(5));
+        assertNull(reader.read());
+        reader.close();
+
+        reader.open(new IOContextBuilder()
+                .in(this.getClass().getResourceAsStream("multiRecordSample.json")).build());
+        assertEquals(2, reader.count());
+        assertNull(reader.read());
+        reader.close();
+    }
+
+    @Test
+    public void testQuarantineRawBytes() throws Exception{
+
+        byte[] malformed = new byte[]{'{', '"', 'a', '"', ':', '"', (byte) 0xff, (byte) 0xfe, '"', '}'};
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        input.write(malformed);
+        input.write("\n{\"a\":\"1\"}\n".getBytes("UTF-8"));
+        ByteArrayOutputStream quarantine = new ByteArrayOutputStream();
+        JsonReader reader = new JsonReader();
+        reader.setQuarantine(quarantine);
+        reader.open(new IOContextBuilder()
+                .attribute("tolerant", "true")
+                .in(new ByteArrayInputStream(input.toByteArray())).build());
+        assertEquals("1", reader.read().get("a"));
+        assertNull(reader.read());
+        reader.close();
+
+        Map entry = new ObjectMapper().readValue(quarantine.toByteArray(), Map.class);
+        assertNull(entry.get("record"));
+        assertArrayEquals(malformed, Base64.getDecoder().decode((String) entry.get("recordBase64")));
+    }
+
+    @Test
+    public void testTolerantShortReads() throws Exception{
+
+        StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i < 200; i++){
+            ndjson.append(i == 150 ? "{\"a\": tru}" : "{\"a\":" + i + "}").append("\n");
+        }
+        int badOffset = ndjson.indexOf("{\"a\": tru}");
+        //returns at most 3 bytes, and nothing on every other call
+        InputStream in = new FilterInputStream(new ByteArrayInputStream(ndjson.toString().getBytes("UTF-8"))){
+            private boolean empty;
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException{
+                empty = !empty;
+                return empty ? 0 : super.read(b, off, Math.min(len, 3));
+            }
+        };
+        ByteArrayOutputStream quarantine = new ByteArrayOutputStream();
+        JsonReader reader = new JsonReader();
+        reader.setQuarantine(quarantine);
+        reader.open(new IOContextBuilder().attribute("tolerant", "true").in(in).build());
+        int count = 0;
+        for (Record record = reader.read(); record != null; record = reader.read()){
+            assertEquals(count < 150 ? count : count + 1, record.get("a"));
+            count++;
+        }
+        reader.close();
+        assertEquals(199, count);
+        Map entry = new ObjectMapper().readValue(quarantine.toByteArray(), Map.class);
+        assertEquals(badOffset, ((Number) entry.get("offset")).intValue());
+    }
+
+    @Test
+    public void testTolerant() throws Exception{
+
+        String ndjson = "{\"a\":\"1\"}\n{\"a\":\"2\",\n\n{\"a\":\"3\"}\n{\"a\": tru}\n\n{\"a\":\"4\"} x\n{\"a\":\"5\"}";
+        ByteArrayOutputStream quarantine = new ByteArrayOutputStream();
+        JsonReader reader = new JsonReader();
+        reader.setQuarantine(quarantine);
+        reader.open(new IOContextBuilder()
+                .attribute("tolerant", "true")
+                .in(new ByteArrayInputStream(ndjson.getBytes("UTF-8"))).build());
+        List<Object> values = new ArrayList<>();
+        Record record = reader.read();
+        while (record != null){
+            values.add(record.get("a"));
+            record = reader.read();
+        }
+        reader.close();
+        assertEquals(Arrays.asList("1", "3", "5"), values);
+        assertEquals(3, reader.getParseErrors());
+
+        String[] lines = quarantine.toString("UTF-8").split("\n");
+        assertEquals(3, lines.length);
+        Map entry = new ObjectMapper().readValue(lines[0], Map.class);
+        assertEquals(10, ((Number) entry.get("offset")).intValue());
+        assertEquals("{\"a\":\"2\",", entry.get("record"));
+        assertEquals("{\"a\": tru}", new ObjectMapper().readValue(lines[1], Map.class).get("record"));
+
+        reader.open(new IOContextBuilder()
+                .attribute("tolerant", "true")
+                .attribute("maxParseErrors", "1")
+                .in(new ByteArrayInputStream(ndjson.getBytes("UTF-8"))).build());
+        assertEquals("1", reader.read().get("a"));
+        assertEquals("3", reader.read().get("a"));
+        try{
+            reader.read();
+            fail("expected IOException");
+        }
+        catch (IOException expected){
+        }
+        reader.close();
+    }
+
+    @Test
+    public void testDedup() throws Exception{
+
+        String ndjson = "{\"id\":\"1\",\"a\":\"x\"}\n{\"id\":\"2\",\"a\":\"x\"}\n{\"a\":\"y\",\"id\":\"1\"}\n";
+        JsonReader reader = new JsonReader();
+        reader.open(new IOContextBuilder()
+                .attribute("dedup", "true")
+                .attribute("dedupFields", "id")
+                .in(new ByteArrayInputStream(ndjson.getBytes("UTF-8"))).build());
+        assertEquals("1", reader.read().get("id"));
+        assertEquals("2", reader.read().get("id"));
+        assertNull(reader.read());
+        assertEquals(2, reader.getCount());
+        assertEquals(1, reader.getDuplicates());
+        reader.close();
+    }
+
+    @Test
+    public void testMemoryBudget() throws Exception{
+
+        String ndjson = "{\"id\":\"1\",\"a\":\"x\"}\n{\"id\":\"2\",\"a\":\"xyz\"}\n";
+        MemoryBudget budget = new MemoryBudget(1024 * 1024);
+        JsonReader reader = new JsonReader();
+        reader.setMemoryBudget(budget);
+        reader.open(new IOContextBuilder().in(new ByteArrayInputStream(ndjson.getBytes("UTF-8"))).build());
+        Record record = reader.read();
+        assertEquals(RecordSize.estimate(record), reader.getInFlight());
+        assertEquals(reader.getInFlight(), budget.getUsed());
+        assertEquals(18, reader.getLastRecordBytes());
+        record = reader.read();
+        assertEquals(RecordSize.estimate(record), budget.getUsed());
+        assertEquals(38, reader.getBytesParsed());
+        assertNull(reader.read());
+        assertEquals(0, budget.getUsed());
+        reader.close();
+    }
+
+    @Test
+    public void testMemoryBudgetReservesBeforeParsing() throws Exception{
+
+        String ndjson = "{\"id\":\"1\"}\n{\"id\":\"2\"}\n";
+        MemoryBudget budget = new MemoryBudget(1024 * 1024);
+        JsonReader reader = new JsonReader();
+        reader.setMemoryBudget(budget);
+        reader.open(new IOContextBuilder().in(new ByteArrayInputStream(ndjson.getBytes("UTF-8"))).build());
+        long size = RecordSize.estimate(reader.read());
+
+        //the budget is used up by another stage; the next read waits before it parses
+        budget.force(budget.getLimit());
+        long bytesParsed = reader.getBytesParsed();
+        AtomicLong parsedWhileWaiting = new AtomicLong(-1);
+        Thread thread = new Thread(() -> {
+            try{
+                Thread.sleep(100);
+                parsedWhileWaiting.set(reader.getBytesParsed());
+                budget.release(budget.getLimit());
+            }
+            catch (InterruptedException ex){
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        assertNotNull(reader.read());
+        thread.join();
+        assertEquals(bytesParsed, parsedWhileWaiting.get());
+        assertTrue(reader.getBytesParsed() > bytesParsed);
+        assertEquals(size, budget.getUsed());
+        reader.close();
+        assertEquals(0, budget.getUsed());
+    }
+
+    @Test
+    public void testMemoryBudgetBatchAndReadAhead() throws Exception{
+
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 25; i++){
+            json.append("{\"i\":").append(i).append(",\"s\":\"v").append(i).append("\"}\n");
+        }
+        MemoryBudget budget = new MemoryBudget(1024 * 1024);
+        IOContext ctx = new IOContextBuilder()
+                .attribute("readAhead", "true")
+                .attribute("readAheadBuffers", "2")
+                .attribute("readAheadBufferSize", "64")
+                .in(new ByteArrayInputStream(json.toString().getBytes())).build();
+        JsonReader reader = new JsonReader();
+        reader.setMemoryBudget(budget);
+        reader.open(ctx);
+        long readAhead = budget.getUsed();
+        assertTrue(readAhead >= 128);
+
+        ColumnBatch batch = new ColumnBatch(
+                new String[]{"i", "s"}, new DataType[]{DataType.INTEGER, DataType.STRING}, 10);
+        assertEquals(10, reader.readBatch(batch));
+        assertEquals(readAhead + batch.getEstimatedBytes(), budget.getUsed());
+        assertEquals(10, reader.readBatch(batch));
+        assertEquals(5, reader.readBatch(batch));
+        assertEquals(readAhead + batch.getEstimatedBytes(), budget.getUsed());
+        assertEquals(0, reader.readBatch(batch));
+        assertEquals(readAhead, budget.getUsed());
+        reader.close();
+        assertEquals(0, budget.getUsed());
+    }
+
+    @Test
+    public void testParallelStream() throws Exception{
+
+        File file = File.createTempFile("prime-json", ".json");
+        file.deleteOnExit();
+        int count = 100000;
+        long expected = 0;
+        try (Writer out = new BufferedWriter(new FileWriter(file))){
+            for (int i = 0; i < count; i++){
+                out.write("{\"i\":" + i + ",\"s\":\"some padding text\"}\n");
+                expected += i;
+            }
+        }
+
+        IOContext ctx = new IOContextBuilder().build();
+        try (Stream<Record> stream = JsonReader.stream(file, ctx)){
+            assertEquals(expected, stream.parallel().mapToLong(r -> (Integer) r.get("i")).sum());
+        }
+        try (Stream<Record> stream = JsonReader.stream(file, ctx)){
+            assertEquals(count, stream.parallel().count());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testFollow() throws Exception{
+
+        final Path file = Files.createTempFile("prime-json", ".json");
+        file.toFile().deleteOnExit();
+        Files.write(file, "{\"i\":1}\n{\"i\":2}\n{\"i\":".getBytes());
+
+        FollowInputStream in = new FollowInputStream(file, 0, 5, 20);
+        JsonReader reader = new JsonReader();
+        reader.open(new IOContextBuilder().in(in).build());
+        assertEquals(1, reader.read().get("i"));
+        assertEquals(2, reader.read().get("i"));
+        assertEquals(15, reader.getFollowOffset());
+        try{
+            reader.skip(1);
+            fail("expected IllegalStateException");
+        }
+        catch (IllegalStateException expected){
+        }
+
+        Thread appender = new Thread(() -> {
+            try{
+                Thread.sleep(100);
+                Files.write(file, "3}\n{\"i\":4}\n".getBytes(), StandardOpenOption.APPEND);
+            }
+            catch (Exception ex){
+                throw new RuntimeException(ex);
+            }
+        });
+        appender.start();
+        //blocks on the partial record until the rest is appended
+        assertEquals(3, reader.read().get("i"));
+        assertEquals(4, reader.read().get("i"));
+        appender.join();
+
+        //rotate
+        Path rotated = file.resolveSibling(file.getFileName() + ".1");
+        rotated.toFile().deleteOnExit();
+        Files.move(file, rotated);
+        Files.write(file, "{\"i\":5}\n".getBytes());
+        assertEquals(5, reader.read().get("i"));
+        assertEquals(7, reader.getFollowOffset());
+
+        //truncate
+        Files.write(file, "{\"i\":6}".getBytes(), StandardOpenOption.TRUNCATE_EXISTING);
+        assertEquals(6, reader.read().get("i"));
+        assertEquals(6, reader.getCount());
+
+        in.close();
+        assertNull(reader.read());
+        reader.close();
+    }
+
    
     @Test
     public void testWithSchema() throws Exception{
@@ -0,0 +1,97 @@
+package com.realcomp.prime.record.io.json;
+
+import com.realcomp.prime.record.Record;
+import com.realcomp.prime.record.io.IOContext;
+import com.realcomp.prime.record.io.IOContextBuilder;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+
+public class JsonRecordPublisherTest {
+
+    private String getJson(int count){
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < count; i++){
+            json.append("{\"i\":").append(i).append("}\n");
+        }
+        return json.toString();
+    }
+
+    private JsonReader getReader(String json) throws Exception{
+        IOContext ctx = new IOContextBuilder().in(new ByteArrayInputStream(json.getBytes())).build();
+        JsonReader reader = new JsonReader();
+        reader.open(ctx);
+        return reader;
+    }
+
+    @Test
+    public void testPublishToSubscriber() throws Exception{
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try{
+            String json = getJson(1000);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            JsonWriter writer = new JsonWriter();
+            writer.open(new IOContextBuilder().out(out).build());
+
+            JsonRecordSubscriber subscriber = new JsonRecordSubscriber(writer, 64, executor);
+            new JsonRecordPublisher(getReader(json), executor).subscribe(subscriber);
+
+            assertEquals(Long.valueOf(1000), subscriber.getCompletion().get(10, TimeUnit.SECONDS));
+            assertEquals(json, new String(out.toByteArray()));
+        }
+        finally{
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testBackpressure() throws Exception{
+
+        final JsonReader reader = getReader(getJson(10));
+        final List<Record> received = new ArrayList<>();
+        final Subscription[] subscription = new Subscription[1];
+        final boolean[] complete = new boolean[1];
+
+        new JsonRecordPublisher(reader, Runnable::run).subscribe(new Subscriber<Record>(){
+            @Override
+            public void onSubscribe(Subscription s){
+                subscription[0] = s;
+            }
+
+            @Override
+            public void onNext(Record record){
+                received.add(record);
+            }
+
+            @Override
+            public void onError(Throwable t){
+                fail(t.getMessage());
+            }
+
+            @Override
+            public void onComplete(){
+                complete[0] = true;
+            }
+        });
+
+        assertEquals(0, reader.getCount());
+        subscription[0].request(3);
+        assertEquals(3, received.size());
+        assertEquals(3, reader.getCount());
+        subscription[0].request(100);
+        assertEquals(10, received.size());
+        assertTrue(complete[0]);
+    }
+}
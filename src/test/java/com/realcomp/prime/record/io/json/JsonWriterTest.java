@@ -10,8 +10,13 @@ import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
 
@@ -119,6 +124,29 @@ public class JsonWriterTest {
     }
     
     
+    @Test
+    public void testDedup() throws Exception{
+
+        JsonWriter writer = new JsonWriter();
+        for (int pass = 0; pass < 2; pass++){
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writer.open(new IOContextBuilder().out(out)
+                    .attribute("dedup", "true")
+                    .attribute("dedupFields", "id")
+                    .attribute("dedupMaxCapacity", "1024")
+                    .build());
+            for (String id : new String[]{"1", "2", "1"}){
+                Record record = new Record();
+                record.put("id", id);
+                writer.write(record);
+            }
+            writer.close();
+            //the deduplicator is reused, but starts empty
+            assertEquals(1, writer.getDuplicates());
+            assertEquals(2, new String(out.toByteArray()).trim().split("\n").length);
+        }
+    }
+
     @Test
     public void testOneRecordSingleObject() throws Exception{
 
@@ -177,6 +205,111 @@ public class JsonWriterTest {
     }
 
 
+    @Test
+    public void testWriteToChannel() throws Exception{
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IOContext ctx = new IOContextBuilder()
+                .attribute("channelBufferSize", "8")
+                .attribute("channelGather", "2")
+                .build();
+
+        JsonWriter writer = new JsonWriter();
+        writer.setChannel(Channels.newChannel(out));
+        writer.open(ctx);
+        Record record = new Record();
+        record.put("a", "a long enough value to span several buffers");
+        writer.write(record);
+        writer.write(record);
+        writer.close();
+
+        assertEquals(
+                "{\"a\":\"a long enough value to span several buffers\"}\n"
+                + "{\"a\":\"a long enough value to span several buffers\"}\n",
+                new String(out.toByteArray()));
+    }
+
+    @Test
+    public void testWriteToFileChannel() throws Exception{
+
+        File file = File.createTempFile("prime-json", ".json");
+        file.deleteOnExit();
+        IOContext ctx = new IOContextBuilder()
+                .out(new FileOutputStream(file))
+                .attribute("channel", "true")
+                .attribute("channelBufferSize", "16")
+                .attribute("syncInterval", "32")
+                .build();
+
+        JsonWriter writer = new JsonWriter();
+        writer.open(ctx);
+        for (int i = 0; i < 100; i++){
+            Record record = new Record();
+            record.put("i", i);
+            writer.write(record);
+        }
+        writer.close();
+
+        List<String> lines = Files.readAllLines(file.toPath());
+        assertEquals(100, lines.size());
+        assertEquals("{\"i\":0}", lines.get(0));
+        assertEquals("{\"i\":99}", lines.get(99));
+    }
+
+
+    @Test
+    public void testSpilledString() throws Exception{
+
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 10000; i++){
+            big.append("line ").append(i).append(" \"quoted\"\n");
+        }
+        Record record = new Record();
+        record.put("big", big.toString());
+        record.put("small", "x");
+        List<String> list = new ArrayList<>();
+        list.add(big.toString());
+        record.put("list", list);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonWriter writer = new JsonWriter();
+        writer.open(new IOContextBuilder().out(out).build());
+        writer.write(record);
+        writer.close();
+
+        File spillDirectory = Files.createTempDirectory("prime-spill").toFile();
+        JsonReader reader = new JsonReader();
+        reader.open(new IOContextBuilder()
+                .attribute("spillThreshold", "1000")
+                .attribute("spillDirectory", spillDirectory.getAbsolutePath())
+                .in(new ByteArrayInputStream(out.toByteArray())).build());
+        Record spilled = reader.read();
+        assertTrue(spilled.get("big") instanceof SpilledString);
+        assertTrue(((List) spilled.get("list")).get(0) instanceof SpilledString);
+        assertEquals(2, spillDirectory.list().length);
+        assertEquals("x", spilled.get("small"));
+        assertEquals(big.length(), ((SpilledString) spilled.get("big")).length());
+        assertEquals(big.toString(), spilled.get("big").toString());
+
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        writer = new JsonWriter();
+        writer.open(new IOContextBuilder().out(copy).build());
+        writer.write(spilled);
+        writer.close();
+
+        //the reader deletes the spill files of the previous Record
+        assertNull(reader.read());
+        assertEquals(0, spillDirectory.list().length);
+        reader.close();
+        assertTrue(spillDirectory.delete());
+
+        reader = new JsonReader();
+        reader.open(new IOContextBuilder().in(new ByteArrayInputStream(copy.toByteArray())).build());
+        assertEquals(record, reader.read());
+        reader.close();
+    }
+
+
     @Test
     public void testWrite() throws Exception{
 
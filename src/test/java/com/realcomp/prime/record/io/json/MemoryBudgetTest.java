@@ -0,0 +1,80 @@
+package com.realcomp.prime.record.io.json;
+
+import com.realcomp.prime.record.Record;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MemoryBudgetTest{
+
+    @Test
+    public void testAcquireRelease() throws Exception{
+        MemoryBudget budget = new MemoryBudget(100);
+        assertTrue(budget.tryAcquire(60));
+        assertFalse(budget.tryAcquire(50));
+        assertFalse(budget.acquire(50, 10, TimeUnit.MILLISECONDS));
+        assertEquals(1, budget.getWaits());
+        assertTrue(budget.tryAcquire(40));
+        assertEquals(100, budget.getUsed());
+        assertEquals(0, budget.getAvailable());
+        budget.release(100);
+        assertEquals(0, budget.getUsed());
+        assertEquals(100, budget.getPeak());
+
+        //larger than the budget, but nothing else is in use
+        assertTrue(budget.tryAcquire(500));
+        budget.release(500);
+        try{
+            budget.release(1);
+            fail("expected IllegalStateException");
+        }
+        catch (IllegalStateException expected){
+        }
+    }
+
+    @Test
+    public void testBlocks() throws Exception{
+        MemoryBudget budget = new MemoryBudget(100);
+        budget.acquire(80);
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            try{
+                budget.acquire(50);
+                acquired.countDown();
+            }
+            catch (Exception ex){
+                throw new RuntimeException(ex);
+            }
+        });
+        thread.start();
+        assertFalse(acquired.await(50, TimeUnit.MILLISECONDS));
+        budget.release(80);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        thread.join();
+        assertEquals(50, budget.getUsed());
+    }
+
+    @Test
+    public void testRecordSize(){
+        Record small = new Record();
+        small.put("a", "x");
+        Record large = new Record();
+        large.put("a", "xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx");
+        Map<String, Object> nested = new HashMap<>();
+        nested.put("b", Arrays.asList(1, 2L, 3.5d, "four"));
+        Record deep = new Record();
+        deep.put("a", "x");
+        deep.put("nested", nested);
+
+        assertTrue(RecordSize.estimate(small) > 0);
+        assertTrue(RecordSize.estimate(large) > RecordSize.estimate(small));
+        assertTrue(RecordSize.estimate(deep) > RecordSize.estimate(small));
+        assertEquals(0, RecordSize.estimate((Record) null));
+    }
+}
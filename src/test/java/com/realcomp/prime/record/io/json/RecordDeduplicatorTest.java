@@ -0,0 +1,129 @@
+package com.realcomp.prime.record.io.json;
+
+import com.realcomp.prime.record.Record;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class RecordDeduplicatorTest{
+
+    private Record record(String id, Object value){
+        Record record = new Record();
+        record.put("id", id);
+        record.put("value", value);
+        return record;
+    }
+
+    @Test
+    public void testKeyFields() throws Exception{
+        try (RecordDeduplicator dedup = new RecordDeduplicator(Collections.singletonList("id"))){
+            assertFalse(dedup.isDuplicate(record("1", "a")));
+            assertFalse(dedup.isDuplicate(record("2", "a")));
+            assertTrue(dedup.isDuplicate(record("1", "b")));
+            assertEquals(1, dedup.getDuplicates());
+            assertEquals(2, dedup.getDistinct());
+        }
+    }
+
+    @Test
+    public void testWholeRecord() throws Exception{
+        Map<String, Object> a = new HashMap<>();
+        a.put("x", 1);
+        a.put("y", Arrays.asList("p", "q"));
+        Map<String, Object> b = new HashMap<>(a);
+        try (RecordDeduplicator dedup = new RecordDeduplicator(Collections.<String>emptyList())){
+            assertFalse(dedup.isDuplicate(record("1", a)));
+            assertTrue(dedup.isDuplicate(record("1", b)));
+            assertFalse(dedup.isDuplicate(record("1", "a")));
+            assertFalse(dedup.isDuplicate(record("1", Arrays.asList("p", "q"))));
+            assertFalse(dedup.isDuplicate(record("1", Arrays.asList("pq"))));
+        }
+    }
+
+    @Test
+    public void testGrow() throws Exception{
+        try (RecordDeduplicator dedup = new RecordDeduplicator(Collections.singletonList("id"), 16, 0, null)){
+            for (int i = 0; i < 10000; i++){
+                assertFalse(dedup.isDuplicate(record(Integer.toString(i), null)));
+            }
+            for (int i = 0; i < 10000; i += 7){
+                assertTrue(dedup.isDuplicate(record(Integer.toString(i), null)));
+            }
+            assertEquals(0, dedup.getRuns());
+        }
+    }
+
+    @Test
+    public void testSpill() throws Exception{
+        File dir = Files.createTempDirectory("dedup").toFile();
+        RecordDeduplicator dedup = new RecordDeduplicator(Collections.singletonList("id"), 64, 1 << 16, dir);
+        for (int i = 0; i < 1000; i++){
+            assertFalse(dedup.isDuplicate(record(Integer.toString(i), null)));
+        }
+        assertTrue(dedup.getRuns() > 5);
+        for (int i = 0; i < 1000; i++){
+            assertTrue(dedup.isDuplicate(record(Integer.toString(i), null)));
+        }
+        assertFalse(dedup.isDuplicate(record("1000", null)));
+        assertEquals(1001, dedup.getDistinct());
+        assertEquals(1000, dedup.getDuplicates());
+        dedup.close();
+        assertEquals(0, dir.list().length);
+        dir.delete();
+    }
+
+    @Test
+    public void testMaxCapacity() throws Exception{
+        File dir = Files.createTempDirectory("dedup").toFile();
+        RecordDeduplicator dedup = new RecordDeduplicator(Collections.singletonList("id"), 16, 256, 0, dir);
+        for (int i = 0; i < 1000; i++){
+            assertFalse(dedup.isDuplicate(record(Integer.toString(i), null)));
+        }
+        //grew to the maximum, then spilled
+        assertTrue(dedup.getRuns() > 0);
+        assertTrue(dedup.getRuns() < 1000 / 16);
+        for (int i = 0; i < 1000; i += 3){
+            assertTrue(dedup.isDuplicate(record(Integer.toString(i), null)));
+        }
+
+        dedup.reset();
+        assertEquals(0, dir.list().length);
+        assertEquals(0, dedup.getDistinct());
+        assertFalse(dedup.isDuplicate(record("1", null)));
+        dedup.close();
+        dir.delete();
+    }
+
+    @Test
+    public void testOffHeapLongHashSetLimit(){
+        try{
+            new OffHeapLongHashSet(OffHeapLongHashSet.MAX_CAPACITY + 1);
+            fail("expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException expected){
+        }
+    }
+
+    @Test
+    public void testOffHeapLongHashSet(){
+        OffHeapLongHashSet set = new OffHeapLongHashSet(4);
+        assertTrue(set.add(0));
+        assertFalse(set.add(0));
+        assertTrue(set.add(-5));
+        assertTrue(set.add(42));
+        assertTrue(set.contains(0));
+        assertTrue(set.contains(-5));
+        assertFalse(set.contains(5));
+        set.grow();
+        assertEquals(3, set.size());
+        assertTrue(set.contains(42));
+        assertTrue(set.contains(0));
+    }
+}
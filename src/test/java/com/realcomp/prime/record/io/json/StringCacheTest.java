@@ -0,0 +1,50 @@
+package com.realcomp.prime.record.io.json;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class StringCacheTest {
+
+    @Test
+    public void testHit(){
+
+        StringCache cache = new StringCache(16, 32);
+        char[] buffer = "xxrelevatexx".toCharArray();
+        String first = cache.get(buffer, 2, 8);
+        assertEquals("relevate", first);
+        assertSame(first, cache.get("relevate".toCharArray(), 0, 8));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.5d, cache.getHitRate(), 0.0001d);
+    }
+
+    @Test
+    public void testTooLong(){
+
+        StringCache cache = new StringCache(16, 4);
+        char[] buffer = "relevate".toCharArray();
+        String first = cache.get(buffer, 0, buffer.length);
+        assertEquals("relevate", first);
+        assertNotSame(first, cache.get(buffer, 0, buffer.length));
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    public void testEviction(){
+
+        StringCache cache = new StringCache(2, 32);
+        for (int i = 0; i < 100; i++){
+            char[] buffer = Integer.toString(i).toCharArray();
+            assertEquals(Integer.toString(i), cache.get(buffer, 0, buffer.length));
+        }
+        assertEquals(100, cache.getMisses());
+        assertEquals(98, cache.getEvictions());
+
+        char[] buffer = "99".toCharArray();
+        assertEquals("99", cache.get(buffer, 0, buffer.length));
+        assertEquals(1, cache.getHits());
+    }
+}
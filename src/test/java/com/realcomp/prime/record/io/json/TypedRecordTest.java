@@ -0,0 +1,119 @@
+package com.realcomp.prime.record.io.json;
+
+import com.realcomp.prime.DataType;
+import com.realcomp.prime.record.Record;
+import com.realcomp.prime.record.io.IOContextBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class TypedRecordTest{
+
+    private final RecordLayout layout = new RecordLayout(
+            new String[]{"i", "l", "d", "b", "s", "m", "list"},
+            new DataType[]{DataType.INTEGER, DataType.LONG, DataType.DOUBLE, DataType.BOOLEAN,
+                DataType.STRING, DataType.MAP, DataType.LIST});
+
+    @Test
+    public void testLayout(){
+        assertEquals(7, layout.getFieldCount());
+        assertEquals(2, layout.indexOf("d"));
+        assertEquals(6, layout.indexOf("list"));
+        assertEquals(-1, layout.indexOf("x"));
+    }
+
+    @Test
+    public void testReadAndWrite() throws Exception{
+
+        String json = "{\"i\":1,\"l\":10000000000,\"d\":2.5,\"b\":true,\"s\":\"x\",\"m\":{\"k\":\"v\"},"
+                + "\"list\":[\"p\",{\"q\":1}],\"skip\":{\"a\":[1,2]}}\n"
+                + "{\"i\":2,\"s\":null}\n";
+        JsonReader reader = new JsonReader();
+        reader.open(new IOContextBuilder().in(new ByteArrayInputStream(json.getBytes("UTF-8"))).build());
+
+        TypedRecord record = layout.newRecord();
+        assertTrue(reader.readTyped(record));
+        assertEquals(1, record.getInt(0));
+        assertEquals(10000000000L, record.getLong(1));
+        assertEquals(2.5d, record.getDouble(2), 0.0001d);
+        assertTrue(record.getBoolean(3));
+        assertEquals("x", record.getString(4));
+        assertEquals(Collections.singletonMap("k", "v"), record.get(5));
+        assertEquals(Arrays.asList("p", Collections.singletonMap("q", 1)), record.get(6));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonWriter writer = new JsonWriter();
+        writer.open(new IOContextBuilder().out(out).build());
+        writer.write(record);
+
+        assertTrue(reader.readTyped(record));
+        assertEquals(2, record.getInt(0));
+        assertTrue(record.isNull(1));
+        assertTrue(record.isNull(4));
+        writer.write(record);
+        assertFalse(reader.readTyped(record));
+        assertEquals(2, reader.getCount());
+        reader.close();
+        writer.close();
+
+        assertEquals(
+                "{\"i\":1,\"l\":10000000000,\"d\":2.5,\"b\":true,\"s\":\"x\",\"m\":{\"k\":\"v\"},\"list\":[\"p\",{\"q\":1}]}\n"
+                + "{\"i\":2}\n",
+                new String(out.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void testTypeMismatch() throws Exception{
+
+        String json = "{\"i\":\"abc\",\"l\":1.9,\"d\":{\"x\":[1,2]},\"b\":\"yes\",\"s\":3}\n"
+                + "{\"i\":[1],\"l\":\"7\",\"d\":\"2.5\",\"b\":\"false\"}\n"
+                + "{\"i\":10000000000,\"s\":\"last\"}\n";
+        JsonReader reader = new JsonReader();
+        reader.open(new IOContextBuilder().in(new ByteArrayInputStream(json.getBytes("UTF-8"))).build());
+        TypedRecord record = layout.newRecord();
+
+        assertTrue(reader.readTyped(record));
+        assertTrue(record.isNull(0));
+        assertTrue(record.isNull(1));
+        assertTrue(record.isNull(2));
+        assertTrue(record.isNull(3));
+        assertEquals("3", record.getString(4));
+
+        //containers are skipped whole, and strings are parsed exactly
+        assertTrue(reader.readTyped(record));
+        assertTrue(record.isNull(0));
+        assertEquals(7L, record.getLong(1));
+        assertEquals(2.5d, record.getDouble(2), 0.0001d);
+        assertFalse(record.getBoolean(3));
+
+        assertTrue(reader.readTyped(record));
+        assertTrue(record.isNull(0));
+        assertEquals("last", record.getString(4));
+        assertFalse(reader.readTyped(record));
+        reader.close();
+    }
+
+    @Test
+    public void testRecordView(){
+        TypedRecord typed = layout.newRecord();
+        Record record = new Record();
+        record.put("i", "42");
+        record.put("d", 1);
+        record.put("s", "y");
+        typed.set(record);
+        assertEquals(42, typed.getInt(0));
+        assertEquals(1d, typed.getDouble(2), 0.0001d);
+        assertTrue(typed.isNull(1));
+
+        Record view = typed.toRecord();
+        assertEquals(42, view.get("i"));
+        assertEquals(1d, view.get("d"));
+        assertEquals("y", view.get("s"));
+        assertNull(view.get("l"));
+    }
+}
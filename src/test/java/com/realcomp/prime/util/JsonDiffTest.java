@@ -0,0 +1,113 @@
+package com.realcomp.prime.util;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class JsonDiffTest{
+
+    private File write(String json) throws Exception{
+        File file = File.createTempFile("diff", ".json");
+        file.deleteOnExit();
+        Files.write(file.toPath(), json.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    @Test
+    public void testDiff() throws Exception{
+        StringBuilder before = new StringBuilder();
+        StringBuilder after = new StringBuilder();
+        for (int i = 0; i < 100; i++){
+            before.append("{\"id\":\"").append(i).append("\",\"v\":\"a\",\"n\":").append(i).append("}\n");
+            if (i % 10 != 0){
+                //every tenth record deleted; every seventh updated
+                after.append("{\"n\":").append(i).append(",\"v\":\"").append(i % 7 == 0 ? "b" : "a")
+                        .append("\",\"id\":\"").append(i).append("\"}\n");
+            }
+        }
+        after.append("{\"id\":\"new\",\"v\":\"a\"}\n");
+
+        JsonDiff diff = new JsonDiff();
+        diff.setKeyFields(Collections.singletonList("id"));
+        diff.setPartitions(4);
+        diff.setThreads(2);
+        diff.setChangedFields(true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        diff.diff(write(before.toString()), write(after.toString()), out);
+
+        assertEquals(1, diff.getInserts());
+        assertEquals(10, diff.getDeletes());
+        //0, 70 deleted
+        assertEquals(13, diff.getUpdates());
+        assertEquals(77, diff.getUnchanged());
+
+        Map<String, Map> changes = new HashMap<>();
+        ObjectMapper mapper = new ObjectMapper();
+        for (String line : new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n")){
+            Map change = mapper.readValue(line, Map.class);
+            changes.put((String) change.get("id"), change);
+        }
+        assertEquals(24, changes.size());
+        assertEquals(JsonDiff.INSERT, changes.get("new").get(JsonDiff.CHANGE));
+        assertEquals(JsonDiff.DELETE, changes.get("20").get(JsonDiff.CHANGE));
+        assertEquals(JsonDiff.UPDATE, changes.get("7").get(JsonDiff.CHANGE));
+        assertEquals("b", changes.get("7").get("v"));
+        assertEquals(Arrays.asList("v"), changes.get("7").get(JsonDiff.CHANGED_FIELDS));
+    }
+
+    @Test
+    public void testParallelRanges() throws Exception{
+        //large enough to be split into ranges, partitioned concurrently
+        int count = (int) (3 * JsonDiff.MIN_RANGE_BYTES / 60);
+        StringBuilder before = new StringBuilder();
+        StringBuilder after = new StringBuilder();
+        for (int i = 0; i < count; i++){
+            before.append("{\"id\":\"").append(i).append("\",\"v\":\"a\",\"pad\":\"0123456789012345678\"}\n");
+            after.append("{\"id\":\"").append(i).append("\",\"v\":\"a\",\"pad\":\"0123456789012345678\"}\n");
+        }
+        //a key repeated in a later range; the last record with the key is used
+        before.append("{\"id\":\"0\",\"v\":\"old\"}\n");
+        after.append("{\"id\":\"1\",\"v\":\"new\"}\n");
+        after.append("{\"id\":\"0\",\"v\":\"old\"}\n");
+        assertTrue(before.length() > 2 * JsonDiff.MIN_RANGE_BYTES);
+
+        JsonDiff diff = new JsonDiff();
+        diff.setKeyFields(Collections.singletonList("id"));
+        diff.setThreads(4);
+        diff.setChangedFields(true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        diff.diff(write(before.toString()), write(after.toString()), out);
+
+        assertEquals(0, diff.getInserts());
+        assertEquals(0, diff.getDeletes());
+        assertEquals(1, diff.getUpdates());
+        assertEquals(count - 1, diff.getUnchanged());
+        Map change = new ObjectMapper().readValue(out.toByteArray(), Map.class);
+        assertEquals("1", change.get("id"));
+        assertEquals("new", change.get("v"));
+        assertEquals(Arrays.asList("pad", "v"), change.get(JsonDiff.CHANGED_FIELDS));
+
+        //many partitions do not limit the number of ranges
+        diff.setPartitions(300);
+        out = new ByteArrayOutputStream();
+        diff.diff(write(before.toString()), write(after.toString()), out);
+        assertEquals(1, diff.getUpdates());
+        assertEquals(count - 1, diff.getUnchanged());
+        assertEquals("new", new ObjectMapper().readValue(out.toByteArray(), Map.class).get("v"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoKeyFields() throws Exception{
+        new JsonDiff().diff(write("{}"), write("{}"), new ByteArrayOutputStream());
+    }
+}